@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an access token fresh for a {@code Credential}.
+ * <p>
+ * Tokens are refreshed in the background well before they expire, so
+ * requests never wait on a refresh once the first token is available. A
+ * single provider is shared by every client using the same credential.
+ */
+final class AccessTokenProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(Datastore.class);
+
+  // refresh five minutes before the token expires
+  private static final long REFRESH_BEFORE_EXPIRY_SECONDS = 300;
+  private static final long CHECK_INTERVAL_SECONDS = 10;
+
+  private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+      2, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-token-refresh-%d").build());
+
+  private static final Map<Credential, AccessTokenProvider> providers = new IdentityHashMap<>();
+
+  private final Credential credential;
+  private int references;
+  private ScheduledFuture<?> task;
+
+  private volatile String accessToken;
+  private SettableFuture<String> pending = SettableFuture.create();
+  private volatile ListenableFuture<String> current = Futures.nonCancellationPropagating(pending);
+
+  private AccessTokenProvider(final Credential credential) {
+    this.credential = credential;
+  }
+
+  /**
+   * Return the shared provider for a credential, starting it if required.
+   * Every call must be matched by a call to {@link #release()}.
+   */
+  static AccessTokenProvider acquire(final Credential credential) {
+    synchronized (providers) {
+      final AccessTokenProvider provider = providers.computeIfAbsent(credential, AccessTokenProvider::new);
+      if (provider.references++ == 0) {
+        provider.task = executor.scheduleWithFixedDelay(
+            provider::refresh, 0, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+      }
+      return provider;
+    }
+  }
+
+  void release() {
+    synchronized (providers) {
+      if (--references == 0) {
+        providers.remove(credential);
+        task.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Return the current access token, or null if none has been retrieved yet.
+   */
+  String getAccessToken() {
+    return accessToken;
+  }
+
+  /**
+   * Return the current access token, or a future that completes once the
+   * first token has been retrieved, or fails if retrieving it failed.
+   */
+  ListenableFuture<String> accessToken() {
+    return current;
+  }
+
+  // package-private for testing
+  void refresh() {
+    final Long expiresIn = credential.getExpiresInSeconds();
+
+    // trigger refresh if token is null or is about to expire
+    if (credential.getAccessToken() == null
+        || expiresIn != null && expiresIn <= REFRESH_BEFORE_EXPIRY_SECONDS) {
+      final Object event = JfrEvents.tokenRefreshStarted();
+      final boolean refreshed;
+      try {
+        refreshed = credential.refreshToken();
+      } catch (final IOException | RuntimeException e) {
+        JfrEvents.tokenRefreshCompleted(event, false);
+        log.error("Failed to refresh access token", Throwables.getRootCause(e));
+        failed(new DatastoreException(e));
+        return;
+      }
+      JfrEvents.tokenRefreshCompleted(event, refreshed);
+      // a credential without a way to refresh it never gets a token
+      if (!refreshed && credential.getAccessToken() == null) {
+        log.error("Failed to refresh access token");
+        failed(new DatastoreException(401, "Failed to refresh access token"));
+        return;
+      }
+    }
+
+    // update local token if the credentials token has refreshed since last update
+    updated();
+  }
+
+  private synchronized void updated() {
+    final String accessTokenLocal = credential.getAccessToken();
+    if (accessTokenLocal == null || accessTokenLocal.equals(accessToken)) {
+      return;
+    }
+    accessToken = accessTokenLocal;
+    current = Futures.immediateFuture(accessTokenLocal);
+    pending.set(accessTokenLocal);
+  }
+
+  private synchronized void failed(final DatastoreException cause) {
+    // keep using an existing token, it will still be valid for a while
+    if (accessToken == null) {
+      pending.setException(cause);
+      pending = SettableFuture.create();
+      // fail requests fast until a token is retrieved
+      current = Futures.immediateFailedFuture(cause);
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.MessageLite;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Limits the memory held by request and response bodies in flight.
+ * <p>
+ * Every request reserves its serialized size, plus the expected size of its
+ * response, from the budget until it completes. Expected response sizes are
+ * learned per method from a moving average of the responses received. A
+ * request larger than the whole budget is only sent once nothing else is in
+ * flight.
+ * <p>
+ * Requests that don't fit wait, in order, in a bounded queue for at most the
+ * maximum queue time, and otherwise fail immediately. The budget may be
+ * shared between many clients in the same JVM.
+ * <p>
+ * Use {@code ByteBudget.builder()} to build a budget. Defaults are assigned
+ * for any options not provided.
+ */
+public final class ByteBudget {
+
+  private static final Long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+  private static final Long DEFAULT_RESPONSE_BYTES = 64L * 1024;
+  private static final Integer DEFAULT_MAX_QUEUE_SIZE = 1000;
+  private static final Long DEFAULT_MAX_QUEUE_TIME = 1000L;
+
+  // weight of each response in the moving average of response sizes
+  private static final double RESPONSE_SMOOTHING = 0.1;
+
+  private final long maxBytes;
+  private final long defaultResponseBytes;
+  private final int maxQueueSize;
+  private final long maxQueueTime;
+
+  private final ConcurrentMap<String, AtomicLong> responseBytes = new ConcurrentHashMap<>();
+  private final WaitQueue queue;
+
+  private long usedBytes;
+
+  private ByteBudget(final Long maxBytes,
+                     final Long defaultResponseBytes,
+                     final Integer maxQueueSize,
+                     final Long maxQueueTime) {
+    this.maxBytes = firstNonNull(maxBytes, DEFAULT_MAX_BYTES);
+    this.defaultResponseBytes = firstNonNull(defaultResponseBytes, DEFAULT_RESPONSE_BYTES);
+    this.maxQueueSize = firstNonNull(maxQueueSize, DEFAULT_MAX_QUEUE_SIZE);
+    this.maxQueueTime = firstNonNull(maxQueueTime, DEFAULT_MAX_QUEUE_TIME);
+    this.queue = new WaitQueue(this, this::tryAcquire, bytes -> usedBytes -= bytes,
+                               this.maxQueueSize, this.maxQueueTime, "byte budget");
+  }
+
+  public static final class Builder {
+    private Long maxBytes;
+    private Long defaultResponseBytes;
+    private Integer maxQueueSize;
+    private Long maxQueueTime;
+
+    private Builder() {}
+
+    /**
+     * Creates a new {@code ByteBudget}.
+     *
+     * @return a byte budget.
+     */
+    public ByteBudget build() {
+      return new ByteBudget(maxBytes, defaultResponseBytes, maxQueueSize, maxQueueTime);
+    }
+
+    /**
+     * Set the maximum number of request and response bytes in flight.
+     *
+     * @param maxBytes the number of bytes.
+     * @return this budget builder.
+     */
+    public Builder maxBytes(final long maxBytes) {
+      checkArgument(maxBytes > 0, "maxBytes must be positive");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Set the response size expected from a method before any of its
+     * responses have been received.
+     *
+     * @param defaultResponseBytes the number of bytes.
+     * @return this budget builder.
+     */
+    public Builder defaultResponseBytes(final long defaultResponseBytes) {
+      checkArgument(defaultResponseBytes >= 0, "defaultResponseBytes must not be negative");
+      this.defaultResponseBytes = defaultResponseBytes;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests waiting for the budget. Once the
+     * queue is full requests fail immediately; zero disables queuing.
+     *
+     * @param maxQueueSize the maximum number of requests.
+     * @return this budget builder.
+     */
+    public Builder maxQueueSize(final int maxQueueSize) {
+      checkArgument(maxQueueSize >= 0, "maxQueueSize must not be negative");
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in milliseconds a request may wait for the
+     * budget before failing.
+     *
+     * @param maxQueueTime the time in milliseconds.
+     * @return this budget builder.
+     */
+    public Builder maxQueueTime(final long maxQueueTime) {
+      checkArgument(maxQueueTime > 0, "maxQueueTime must be positive");
+      this.maxQueueTime = maxQueueTime;
+      return this;
+    }
+  }
+
+  public static ByteBudget.Builder builder() {
+    return new ByteBudget.Builder();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Return the number of bytes currently reserved by requests in flight.
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Return the number of requests waiting for the budget.
+   */
+  public int getQueued() {
+    return queue.size();
+  }
+
+  /**
+   * Return the number of requests that failed without being sent.
+   */
+  public long getRejected() {
+    return queue.getRejected();
+  }
+
+  /**
+   * Send a request once its bytes fit in the budget, releasing them when it
+   * completes.
+   */
+  <T> ListenableFuture<T> submit(final String method, final MessageLite request,
+                                 final Supplier<ListenableFuture<T>> call) {
+    final long bytes = Math.min(maxBytes, request.getSerializedSize() + expectedResponseBytes(method));
+    return queue.submit(bytes, () -> send(method, bytes, call));
+  }
+
+  private <T> ListenableFuture<T> send(final String method, final long bytes,
+                                       final Supplier<ListenableFuture<T>> call) {
+    ListenableFuture<T> sent;
+    try {
+      sent = call.get();
+    } catch (final RuntimeException e) {
+      sent = Futures.immediateFailedFuture(e);
+    }
+    final ListenableFuture<T> future = sent;
+    future.addListener(() -> {
+      received(method, future);
+      queue.release(bytes);
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
+
+  private long expectedResponseBytes(final String method) {
+    final AtomicLong expected = responseBytes.get(method);
+    return expected != null ? expected.get() : defaultResponseBytes;
+  }
+
+  private void received(final String method, final ListenableFuture<?> future) {
+    if (!future.isDone() || future.isCancelled()) {
+      return;
+    }
+    final Object response;
+    try {
+      response = Futures.getDone(future);
+    } catch (final Exception e) {
+      return;
+    }
+    if (response instanceof MessageLite) {
+      final long size = ((MessageLite) response).getSerializedSize();
+      responseBytes
+          .computeIfAbsent(method, m -> new AtomicLong(size))
+          .updateAndGet(average -> (long) (average + (size - average) * RESPONSE_SMOOTHING));
+    }
+  }
+
+  private boolean tryAcquire(final long bytes) {
+    // a request larger than the whole budget is sent once nothing else is in flight
+    if (usedBytes != 0 && usedBytes + bytes > maxBytes) {
+      return false;
+    }
+    usedBytes += bytes;
+    return true;
+  }
+}
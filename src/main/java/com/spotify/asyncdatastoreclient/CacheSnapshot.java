@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Reads and writes snapshots of cached entities in memory-mapped files.
+ * <p>
+ * A snapshot starts with a magic number, a version and the number of
+ * entries. Each entry is its key length, value length and expiry time in
+ * milliseconds since the epoch, followed by the serialized key and entity.
+ * Snapshots are written to a temporary file that then replaces the
+ * snapshot, so a snapshot is never read half written.
+ */
+final class CacheSnapshot {
+
+  private static final int MAGIC = 0x44534331;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 12;
+  private static final int ENTRY_HEADER_BYTES = 16;
+
+  private CacheSnapshot() {}
+
+  /**
+   * A serialized key and entity, and the time it expires.
+   */
+  static final class Entry {
+
+    private final byte[] key;
+    private final byte[] entity;
+    private final long expiresAt;
+
+    Entry(final byte[] key, final byte[] entity, final long expiresAt) {
+      this.key = key;
+      this.entity = entity;
+      this.expiresAt = expiresAt;
+    }
+
+    byte[] getKey() {
+      return key;
+    }
+
+    byte[] getEntity() {
+      return entity;
+    }
+
+    /**
+     * Return the time the entry expires, in milliseconds since the epoch.
+     */
+    long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+
+  static void write(final Path file, final List<Entry> entries) throws IOException {
+    long size = HEADER_BYTES;
+    for (final Entry entry : entries) {
+      size += ENTRY_HEADER_BYTES + entry.key.length + entry.entity.length;
+    }
+    final Path directory = file.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(entries.size());
+        for (final Entry entry : entries) {
+          buffer.putInt(entry.key.length).putInt(entry.entity.length).putLong(entry.expiresAt)
+              .put(entry.key).put(entry.entity);
+        }
+        buffer.force();
+      }
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Read the entries of a snapshot, or none if there is no snapshot.
+   *
+   * @throws IOException if the snapshot could not be read, or is corrupt.
+   */
+  static List<Entry> read(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Not a cache snapshot: " + file);
+      }
+      final int count = buffer.getInt();
+      final ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+      for (int i = 0; i < count; i++) {
+        final int keyLength = buffer.getInt();
+        final int entityLength = buffer.getInt();
+        final long expiresAt = buffer.getLong();
+        if (keyLength < 0 || entityLength < 0 || (long) keyLength + entityLength > buffer.remaining()) {
+          throw new IOException("Corrupt cache snapshot: " + file);
+        }
+        final byte[] key = new byte[keyLength];
+        final byte[] entity = new byte[entityLength];
+        buffer.get(key).get(entity);
+        entries.add(new Entry(key, entity, expiresAt));
+      }
+      return entries.build();
+    } catch (final NoSuchFileException e) {
+      return ImmutableList.of();
+    } catch (final BufferUnderflowException e) {
+      throw new IOException("Truncated cache snapshot: " + file, e);
+    }
+  }
+}
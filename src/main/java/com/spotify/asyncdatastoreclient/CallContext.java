@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The context of a single request passed to a {@link DatastoreTransport}.
+ */
+public final class CallContext {
+
+  private final String accessToken;
+  private final long deadline;
+  private final long startTime;
+  private final DatastoreListener listener;
+
+  CallContext(final String accessToken, final long deadline) {
+    this(accessToken, deadline, System.nanoTime(), null);
+  }
+
+  CallContext(final String accessToken, final long deadline, final long startTime,
+              final DatastoreListener listener) {
+    this.accessToken = accessToken;
+    this.deadline = deadline;
+    this.startTime = startTime;
+    this.listener = listener;
+  }
+
+  /**
+   * Return the access token to authorize the request with, or null if the
+   * request should not be authorized.
+   */
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  /**
+   * Return the {@code System.nanoTime()} by which the request must
+   * complete, or {@code Long.MAX_VALUE} if there is none.
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * Return the {@code System.nanoTime()} at which this attempt at the
+   * request was started, before waiting to be sent.
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Return the listener to report the phases of the request to, or null if
+   * there is none.
+   */
+  public DatastoreListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Return whether the deadline has passed.
+   */
+  public boolean isExpired() {
+    return deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+  }
+
+  /**
+   * Return the time in milliseconds the request may take: the default
+   * timeout, or the time remaining until the deadline if sooner. A default
+   * timeout of zero or less means there is none.
+   *
+   * @param timeout the default timeout in milliseconds.
+   */
+  public int timeout(final int timeout) {
+    if (deadline == Long.MAX_VALUE) {
+      return timeout;
+    }
+    final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    final long limit = timeout > 0 ? Math.min(timeout, remaining) : Math.min(Integer.MAX_VALUE, remaining);
+    return (int) Math.max(1, limit);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Options applied to each request made through a {@code Datastore}.
+ * <p>
+ * Use {@code CallOptions.builder()} to build options, and
+ * {@link Datastore#withCallOptions(CallOptions)} to apply them.
+ */
+public final class CallOptions {
+
+  private static final Long DEFAULT_TIMEOUT = -1L;
+
+  private static final CallOptions DEFAULT = builder().build();
+
+  private final long timeout;
+
+  private CallOptions(final Long timeout) {
+    this.timeout = firstNonNull(timeout, DEFAULT_TIMEOUT);
+  }
+
+  public static final class Builder {
+    private Long timeout;
+
+    private Builder() {}
+
+    /**
+     * Creates new {@code CallOptions}.
+     *
+     * @return immutable call options.
+     */
+    public CallOptions build() {
+      return new CallOptions(timeout);
+    }
+
+    /**
+     * Set the maximum time in milliseconds for each request, from when it
+     * is made until its result is available, including any time spent
+     * waiting to be sent and any retries. Once it has passed, the request
+     * is aborted and fails with status code 504. By default, only
+     * {@link DatastoreConfig#getRequestTimeout()} limits each attempt.
+     *
+     * @param timeout the time in milliseconds.
+     * @return this options builder.
+     */
+    public Builder timeout(final long timeout) {
+      checkArgument(timeout > 0, "timeout must be positive");
+      this.timeout = timeout;
+      return this;
+    }
+  }
+
+  public static CallOptions.Builder builder() {
+    return new CallOptions.Builder();
+  }
+
+  /**
+   * The default options.
+   *
+   * @return call options.
+   */
+  public static CallOptions defaults() {
+    return DEFAULT;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+}
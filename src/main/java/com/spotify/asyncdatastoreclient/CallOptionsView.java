@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A view of a {@code Datastore} that applies call options to each request,
+ * for implementations that don't apply them themselves.
+ * <p>
+ * Requests that take longer than the timeout fail with status code 504 once
+ * it has passed, and are cancelled.
+ */
+final class CallOptionsView implements Datastore {
+
+  private final Datastore datastore;
+  private final CallOptions options;
+
+  CallOptionsView(final Datastore datastore, final CallOptions options) {
+    this.datastore = datastore;
+    this.options = options;
+  }
+
+  @Override
+  public Datastore withCallOptions(final CallOptions options) {
+    return new CallOptionsView(datastore, options);
+  }
+
+  @Override
+  public void close() {
+    // only closing the client releases its resources
+  }
+
+  private <T> ListenableFuture<T> timed(final ListenableFuture<T> response) {
+    if (options.getTimeout() <= 0 || response.isDone()) {
+      return response;
+    }
+    final ListenableFuture<T> timed = Futures.withTimeout(
+        response, options.getTimeout(), TimeUnit.MILLISECONDS, SharedScheduler.INSTANCE);
+    return Futures.catchingAsync(
+        timed, TimeoutException.class,
+        e -> Futures.immediateFailedFuture(new DatastoreException(504, "Deadline exceeded")),
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public TransactionResult transaction() throws DatastoreException {
+    return Futures.getChecked(transactionAsync(), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<TransactionResult> transactionAsync() {
+    return timed(datastore.transactionAsync());
+  }
+
+  @Override
+  public RollbackResult rollback(final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(rollbackAsync(Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<RollbackResult> rollbackAsync(final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.rollbackAsync(txn));
+  }
+
+  @Override
+  public MutationResult commit(final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(commitAsync(Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<MutationResult> commitAsync(final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.commitAsync(txn));
+  }
+
+  @Override
+  public AllocateIdsResult execute(final AllocateIds statement) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<AllocateIdsResult> executeAsync(final AllocateIds statement) {
+    return timed(datastore.executeAsync(statement));
+  }
+
+  @Override
+  public QueryResult execute(final KeyQuery statement) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement), DatastoreException.class);
+  }
+
+  @Override
+  public QueryResult execute(final List<KeyQuery> statements) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statements), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<QueryResult> executeAsync(final KeyQuery statement) {
+    return timed(datastore.executeAsync(statement));
+  }
+
+  @Override
+  public ListenableFuture<QueryResult> executeAsync(final List<KeyQuery> statements) {
+    return timed(datastore.executeAsync(statements));
+  }
+
+  @Override
+  public QueryResult execute(final KeyQuery statement, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public QueryResult execute(final List<KeyQuery> statements, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statements, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<QueryResult> executeAsync(final KeyQuery statement, final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.executeAsync(statement, txn));
+  }
+
+  @Override
+  public ListenableFuture<QueryResult> executeAsync(final List<KeyQuery> statements, final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.executeAsync(statements, txn));
+  }
+
+  @Override
+  public MutationResult execute(final MutationStatement statement) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<MutationResult> executeAsync(final MutationStatement statement) {
+    return timed(datastore.executeAsync(statement));
+  }
+
+  @Override
+  public MutationResult execute(final MutationStatement statement, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<MutationResult> executeAsync(final MutationStatement statement, final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.executeAsync(statement, txn));
+  }
+
+  @Override
+  public MutationResult execute(final Batch batch) throws DatastoreException {
+    return Futures.getChecked(executeAsync(batch), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<MutationResult> executeAsync(final Batch batch) {
+    return timed(datastore.executeAsync(batch));
+  }
+
+  @Override
+  public MutationResult execute(final Batch batch, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(executeAsync(batch, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<MutationResult> executeAsync(final Batch batch, final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.executeAsync(batch, txn));
+  }
+
+  @Override
+  public QueryResult execute(final Query statement) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<QueryResult> executeAsync(final Query statement) {
+    return timed(datastore.executeAsync(statement));
+  }
+
+  @Override
+  public QueryResult execute(final Query statement, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(executeAsync(statement, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<QueryResult> executeAsync(final Query statement, final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.executeAsync(statement, txn));
+  }
+
+  @Override
+  public ListenableFuture<LookupResult> lookupAsync(final List<KeyQuery> statements) {
+    return timed(datastore.lookupAsync(statements));
+  }
+
+  @Override
+  public ListenableFuture<LookupResult> lookupAsync(final List<KeyQuery> statements,
+                                                    final ListenableFuture<TransactionResult> txn) {
+    return timed(datastore.lookupAsync(statements, txn));
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Adaptive limit on the number of requests in flight.
+ * <p>
+ * The limit is adjusted from observed latencies using a gradient: while
+ * latency stays close to its long term average the limit grows, and once
+ * requests start queuing in the backend, making latency rise, it shrinks.
+ * Requests that are throttled or time out reduce the limit multiplicatively.
+ * This keeps throughput close to the point where latency starts to climb,
+ * rather than letting a spike in traffic overload Datastore.
+ * <p>
+ * Requests beyond the limit wait in a bounded queue, for at most the
+ * maximum queue time, and otherwise fail immediately. The limiter may be
+ * shared between many clients talking to the same backend.
+ * <p>
+ * Use {@code ConcurrencyLimiter.builder()} to build a limiter. Defaults are
+ * assigned for any options not provided.
+ */
+public final class ConcurrencyLimiter {
+
+  private static final Integer DEFAULT_INITIAL_LIMIT = 20;
+  private static final Integer DEFAULT_MIN_LIMIT = 1;
+  private static final Integer DEFAULT_MAX_LIMIT = 1000;
+  private static final Integer DEFAULT_MAX_QUEUE_SIZE = 1000;
+  private static final Long DEFAULT_MAX_QUEUE_TIME = 1000L;
+  private static final Double DEFAULT_TOLERANCE = 2.0;
+  private static final Double DEFAULT_SMOOTHING = 0.2;
+  private static final Double DEFAULT_BACKOFF_RATIO = 0.9;
+
+  // number of samples averaged in the long term latency
+  private static final int LONG_WINDOW = 600;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final int maxQueueSize;
+  private final long maxQueueTime;
+  private final double tolerance;
+  private final double smoothing;
+  private final double backoffRatio;
+
+  private final WaitQueue queue;
+
+  private double limit;
+  private double longLatency;
+  private int inFlight;
+
+  private ConcurrencyLimiter(final Integer initialLimit,
+                             final Integer minLimit,
+                             final Integer maxLimit,
+                             final Integer maxQueueSize,
+                             final Long maxQueueTime,
+                             final Double tolerance,
+                             final Double smoothing,
+                             final Double backoffRatio) {
+    this.minLimit = firstNonNull(minLimit, DEFAULT_MIN_LIMIT);
+    this.maxLimit = Math.max(firstNonNull(maxLimit, DEFAULT_MAX_LIMIT), this.minLimit);
+    this.maxQueueSize = firstNonNull(maxQueueSize, DEFAULT_MAX_QUEUE_SIZE);
+    this.maxQueueTime = firstNonNull(maxQueueTime, DEFAULT_MAX_QUEUE_TIME);
+    this.tolerance = firstNonNull(tolerance, DEFAULT_TOLERANCE);
+    this.smoothing = firstNonNull(smoothing, DEFAULT_SMOOTHING);
+    this.backoffRatio = firstNonNull(backoffRatio, DEFAULT_BACKOFF_RATIO);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, firstNonNull(initialLimit, DEFAULT_INITIAL_LIMIT)));
+    this.queue = new WaitQueue(this, this::tryAcquire, permits -> inFlight -= permits,
+                               this.maxQueueSize, this.maxQueueTime, "concurrency limit");
+  }
+
+  public static final class Builder {
+    private Integer initialLimit;
+    private Integer minLimit;
+    private Integer maxLimit;
+    private Integer maxQueueSize;
+    private Long maxQueueTime;
+    private Double tolerance;
+    private Double smoothing;
+    private Double backoffRatio;
+
+    private Builder() {}
+
+    /**
+     * Creates a new {@code ConcurrencyLimiter}.
+     *
+     * @return a concurrency limiter.
+     */
+    public ConcurrencyLimiter build() {
+      return new ConcurrencyLimiter(initialLimit,
+                                    minLimit,
+                                    maxLimit,
+                                    maxQueueSize,
+                                    maxQueueTime,
+                                    tolerance,
+                                    smoothing,
+                                    backoffRatio);
+    }
+
+    /**
+     * Set the number of requests allowed in flight before any latencies
+     * have been observed.
+     *
+     * @param initialLimit the initial limit.
+     * @return this limiter builder.
+     */
+    public Builder initialLimit(final int initialLimit) {
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /**
+     * Set the minimum number of requests allowed in flight.
+     *
+     * @param minLimit the minimum limit.
+     * @return this limiter builder.
+     */
+    public Builder minLimit(final int minLimit) {
+      checkArgument(minLimit > 0, "minLimit must be positive");
+      this.minLimit = minLimit;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests allowed in flight.
+     *
+     * @param maxLimit the maximum limit.
+     * @return this limiter builder.
+     */
+    public Builder maxLimit(final int maxLimit) {
+      checkArgument(maxLimit > 0, "maxLimit must be positive");
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests waiting for the limit. Once the
+     * queue is full requests fail immediately; zero disables queuing.
+     *
+     * @param maxQueueSize the maximum number of requests.
+     * @return this limiter builder.
+     */
+    public Builder maxQueueSize(final int maxQueueSize) {
+      checkArgument(maxQueueSize >= 0, "maxQueueSize must not be negative");
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in milliseconds a request may wait for the
+     * limit before failing.
+     *
+     * @param maxQueueTime the time in milliseconds.
+     * @return this limiter builder.
+     */
+    public Builder maxQueueTime(final long maxQueueTime) {
+      checkArgument(maxQueueTime > 0, "maxQueueTime must be positive");
+      this.maxQueueTime = maxQueueTime;
+      return this;
+    }
+
+    /**
+     * Set how much latency may exceed its long term average before the
+     * limit shrinks, for example 2.0 to tolerate double the latency.
+     *
+     * @param tolerance the ratio of latencies.
+     * @return this limiter builder.
+     */
+    public Builder tolerance(final double tolerance) {
+      checkArgument(tolerance >= 1, "tolerance must be at least 1");
+      this.tolerance = tolerance;
+      return this;
+    }
+
+    /**
+     * Set how quickly the limit moves towards a new estimate, between 0
+     * and 1.
+     *
+     * @param smoothing the smoothing factor.
+     * @return this limiter builder.
+     */
+    public Builder smoothing(final double smoothing) {
+      checkArgument(smoothing > 0 && smoothing <= 1, "smoothing must be between 0 and 1");
+      this.smoothing = smoothing;
+      return this;
+    }
+
+    /**
+     * Set the factor the limit is multiplied by when a request is
+     * throttled or times out, between 0 and 1.
+     *
+     * @param backoffRatio the backoff factor.
+     * @return this limiter builder.
+     */
+    public Builder backoffRatio(final double backoffRatio) {
+      checkArgument(backoffRatio > 0 && backoffRatio < 1, "backoffRatio must be between 0 and 1");
+      this.backoffRatio = backoffRatio;
+      return this;
+    }
+  }
+
+  public static ConcurrencyLimiter.Builder builder() {
+    return new ConcurrencyLimiter.Builder();
+  }
+
+  /**
+   * Return the current number of requests allowed in flight.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Return the number of requests in flight.
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Return the number of requests waiting for the limit.
+   */
+  public int getQueued() {
+    return queue.size();
+  }
+
+  /**
+   * Return the number of requests that failed without being sent.
+   */
+  public long getRejected() {
+    return queue.getRejected();
+  }
+
+  /**
+   * Send a request once it is allowed by the limit, and adjust the limit
+   * from its outcome.
+   */
+  <T> ListenableFuture<T> submit(final Supplier<ListenableFuture<T>> call) {
+    return queue.submit(1, () -> send(call));
+  }
+
+  private <T> ListenableFuture<T> send(final Supplier<ListenableFuture<T>> call) {
+    final long start = System.nanoTime();
+    ListenableFuture<T> sent;
+    try {
+      sent = call.get();
+    } catch (final RuntimeException e) {
+      sent = Futures.immediateFailedFuture(e);
+    }
+    final ListenableFuture<T> future = sent;
+    future.addListener(() -> completed(future, System.nanoTime() - start), MoreExecutors.directExecutor());
+    return future;
+  }
+
+  private boolean tryAcquire(final long permits) {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight += permits;
+    return true;
+  }
+
+  private void completed(final ListenableFuture<?> future, final long latency) {
+    Throwable failure = null;
+    if (!future.isCancelled()) {
+      try {
+        Futures.getDone(future);
+      } catch (final Exception e) {
+        failure = e.getCause();
+      }
+    }
+    synchronized (this) {
+      if (future.isCancelled()) {
+        // tells us nothing about the backend
+      } else if (isDropped(failure)) {
+        limit = Math.max(minLimit, limit * backoffRatio);
+      } else if (failure == null) {
+        update(latency);
+      }
+    }
+    queue.release(1);
+  }
+
+  private void update(final long latency) {
+    longLatency = longLatency == 0 ? latency : longLatency + (latency - longLatency) / LONG_WINDOW;
+    // let the long term latency recover quickly once a backlog has cleared
+    if (longLatency > latency * 2) {
+      longLatency *= 0.95;
+    }
+    // don't grow the limit while it isn't being used, counting this request
+    if (inFlight < limit / 2) {
+      return;
+    }
+    final double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / Math.max(latency, 1)));
+    final double estimate = limit * gradient + Math.sqrt(limit);
+    limit = Math.min(maxLimit, Math.max(minLimit, limit * (1 - smoothing) + estimate * smoothing));
+  }
+
+  private static boolean isDropped(final Throwable failure) {
+    Throwable cause = failure;
+    while (cause instanceof DatastoreException) {
+      final Integer statusCode = ((DatastoreException) cause).getStatusCode();
+      if (statusCode != null) {
+        return statusCode == 429 || statusCode == 503 || statusCode == 504;
+      }
+      cause = cause.getCause();
+    }
+    return cause instanceof TimeoutException || cause instanceof IOException;
+  }
+}
@@ -16,7 +16,9 @@
 
 package com.spotify.asyncdatastoreclient;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.Closeable;
 import java.util.List;
@@ -27,16 +29,54 @@ import java.util.List;
  * <p>
  * To create a Datastore object, call the static method {@code Datastore.create()}
  * passing configuration. A scheduled task will begin that automatically refreshes
- * the API access token for you.
+ * the API access token for you, well before it expires. Clients created with the
+ * same credential share a single access token.
  * <p>
  * Call {@code close()} to perform all necessary clean up.
  */
 public interface Datastore extends Closeable {
 
+  /**
+   * Create a new Datastore client.
+   *
+   * The first access token is retrieved in the background; requests made
+   * before it is available wait for it.
+   *
+   * @param config the Datastore configuration.
+   * @return a new Datastore client.
+   */
   static Datastore create(final DatastoreConfig config) {
     return new DatastoreImpl(config);
   }
 
+  /**
+   * Create a new Datastore client once the first access token has been
+   * retrieved.
+   *
+   * The returned future fails if the first access token could not be
+   * retrieved.
+   *
+   * @param config the Datastore configuration.
+   * @return a new Datastore client.
+   */
+  static ListenableFuture<Datastore> createAsync(final DatastoreConfig config) {
+    return new DatastoreImpl(config).ready();
+  }
+
+  /**
+   * Return a view of this client that applies the given options to each
+   * request, such as a deadline.
+   *
+   * The view shares the connections and access token of this client; closing
+   * it has no effect, only closing this client releases them.
+   *
+   * @param options the options to apply.
+   * @return a Datastore client.
+   */
+  default Datastore withCallOptions(final CallOptions options) {
+    return new CallOptionsView(this, options);
+  }
+
   /**
    * Start a new transaction.
    *
@@ -183,6 +223,60 @@ public interface Datastore extends Closeable {
    */
   ListenableFuture<QueryResult> executeAsync(final List<KeyQuery> statements, final ListenableFuture<TransactionResult> txn);
 
+  /**
+   * Look up multiple keys, returning entities in the same order as the keys.
+   *
+   * @param statements the keys to look up.
+   * @return the result of the lookup request.
+   */
+  default LookupResult lookup(final List<KeyQuery> statements) throws DatastoreException {
+    return Futures.getChecked(lookupAsync(statements), DatastoreException.class);
+  }
+
+  /**
+   * Look up multiple keys, returning entities in the same order as the keys.
+   *
+   * The default implementation aligns the result of
+   * {@link #executeAsync(List)}, matching keys in their own namespace.
+   *
+   * @param statements the keys to look up.
+   * @return the result of the lookup request.
+   */
+  default ListenableFuture<LookupResult> lookupAsync(final List<KeyQuery> statements) {
+    return Futures.transform(executeAsync(statements), result -> LookupResult.build(statements, result, null),
+                             MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Look up multiple keys in a given transaction, returning entities in the
+   * same order as the keys.
+   *
+   * @param statements the keys to look up.
+   * @param txn the transaction to execute the lookup.
+   * @return the result of the lookup request.
+   */
+  default LookupResult lookup(final List<KeyQuery> statements, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(lookupAsync(statements, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  /**
+   * Look up multiple keys in a given transaction, returning entities in the
+   * same order as the keys.
+   *
+   * The default implementation aligns the result of
+   * {@link #executeAsync(List, ListenableFuture)}, matching keys in their own
+   * namespace.
+   *
+   * @param statements the keys to look up.
+   * @param txn the transaction to execute the lookup.
+   * @return the result of the lookup request.
+   */
+  default ListenableFuture<LookupResult> lookupAsync(final List<KeyQuery> statements,
+                                                     final ListenableFuture<TransactionResult> txn) {
+    return Futures.transform(executeAsync(statements, txn), result -> LookupResult.build(statements, result, null),
+                             MoreExecutors.directExecutor());
+  }
+
   /**
    * Execute a mutation query statement.
    *
@@ -18,10 +18,16 @@ package com.spotify.asyncdatastoreclient;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import org.asynchttpclient.AsyncHttpClient;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Datastore configuration class used to initialise {@code Datastore}.
@@ -40,6 +46,16 @@ public final class DatastoreConfig {
   private static final Integer DEFAULT_MAX_CONNECTIONS = -1;
   private static final Integer DEFAULT_REQUEST_TIMEOUTS = 5000;
   private static final Integer DEFAULT_REQUEST_RETRIES = 5;
+  private static final Integer DEFAULT_MAX_CONNECTIONS_PER_HOST = -1;
+  private static final Integer DEFAULT_POOLED_CONNECTION_IDLE_TIMEOUT = 60000;
+  private static final Integer DEFAULT_CONNECTION_TTL = -1;
+  private static final Boolean DEFAULT_KEEP_ALIVE = true;
+  private static final Boolean DEFAULT_USE_NATIVE_TRANSPORT = false;
+  private static final Integer DEFAULT_INLINE_DECODE_THRESHOLD = 16 * 1024;
+  private static final Integer DEFAULT_LOOKUP_CHUNK_SIZE = 1000;
+  private static final Integer DEFAULT_LOOKUP_PARALLELISM = 8;
+  private static final Integer DEFAULT_DEFERRED_LOOKUP_ROUNDS = 5;
+  private static final Boolean DEFAULT_DEDUPLICATE_READS = false;
   private static final String DEFAULT_HOST = "https://datastore.googleapis.com";
   private static final String DEFAULT_VERSION = "v1";
 
@@ -52,6 +68,31 @@ public final class DatastoreConfig {
   private final String namespace;
   private final String host;
   private final String version;
+  private final DatastoreTransport.Factory transport;
+  private final int maxConnectionsPerHost;
+  private final int pooledConnectionIdleTimeout;
+  private final int connectionTtl;
+  private final boolean keepAlive;
+  private final boolean useNativeTransport;
+  private final EventLoopGroup eventLoopGroup;
+  private final ByteBufAllocator allocator;
+  private final AsyncHttpClient httpClient;
+  private final RetryPolicy retryPolicy;
+  private final HedgingPolicy hedgingPolicy;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final ByteBudget byteBudget;
+  private final Executor decodeExecutor;
+  private final int inlineDecodeThreshold;
+  private final Executor callbackExecutor;
+  private final DatastoreMetrics metrics;
+  private final DatastoreListener.Factory listenerFactory;
+  private final int lookupChunkSize;
+  private final int lookupParallelism;
+  private final int deferredLookupRounds;
+  private final LookupBatching lookupBatching;
+  private final boolean deduplicateReads;
+  private final EntityCache entityCache;
+  private final NegativeCache negativeCache;
 
   private DatastoreConfig(final Integer connectTimeout,
                           final Integer maxConnections,
@@ -61,7 +102,32 @@ public final class DatastoreConfig {
                           final String project,
                           final String namespace,
                           final String host,
-                          final String version) {
+                          final String version,
+                          final DatastoreTransport.Factory transport,
+                          final Integer maxConnectionsPerHost,
+                          final Integer pooledConnectionIdleTimeout,
+                          final Integer connectionTtl,
+                          final Boolean keepAlive,
+                          final Boolean useNativeTransport,
+                          final EventLoopGroup eventLoopGroup,
+                          final ByteBufAllocator allocator,
+                          final AsyncHttpClient httpClient,
+                          final RetryPolicy retryPolicy,
+                          final HedgingPolicy hedgingPolicy,
+                          final ConcurrencyLimiter concurrencyLimiter,
+                          final ByteBudget byteBudget,
+                          final Executor decodeExecutor,
+                          final Integer inlineDecodeThreshold,
+                          final Executor callbackExecutor,
+                          final DatastoreMetrics metrics,
+                          final DatastoreListener.Factory listenerFactory,
+                          final Integer lookupChunkSize,
+                          final Integer lookupParallelism,
+                          final Integer deferredLookupRounds,
+                          final LookupBatching lookupBatching,
+                          final Boolean deduplicateReads,
+                          final EntityCache entityCache,
+                          final NegativeCache negativeCache) {
     this.connectTimeout = firstNonNull(connectTimeout, DEFAULT_CONNECT_TIMEOUT);
     this.maxConnections = firstNonNull(maxConnections, DEFAULT_MAX_CONNECTIONS);
     this.requestTimeout = firstNonNull(requestTimeout, DEFAULT_REQUEST_TIMEOUTS);
@@ -71,6 +137,31 @@ public final class DatastoreConfig {
     this.namespace = namespace;
     this.host = firstNonNull(host, DEFAULT_HOST);
     this.version = firstNonNull(version, DEFAULT_VERSION);
+    this.transport = firstNonNull(transport, DatastoreTransport.http());
+    this.maxConnectionsPerHost = firstNonNull(maxConnectionsPerHost, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    this.pooledConnectionIdleTimeout = firstNonNull(pooledConnectionIdleTimeout, DEFAULT_POOLED_CONNECTION_IDLE_TIMEOUT);
+    this.connectionTtl = firstNonNull(connectionTtl, DEFAULT_CONNECTION_TTL);
+    this.keepAlive = firstNonNull(keepAlive, DEFAULT_KEEP_ALIVE);
+    this.useNativeTransport = firstNonNull(useNativeTransport, DEFAULT_USE_NATIVE_TRANSPORT);
+    this.eventLoopGroup = eventLoopGroup;
+    this.allocator = firstNonNull(allocator, ByteBufAllocator.DEFAULT);
+    this.httpClient = httpClient;
+    this.retryPolicy = firstNonNull(retryPolicy, RetryPolicy.none());
+    this.hedgingPolicy = hedgingPolicy;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.byteBudget = byteBudget;
+    this.decodeExecutor = decodeExecutor;
+    this.inlineDecodeThreshold = firstNonNull(inlineDecodeThreshold, DEFAULT_INLINE_DECODE_THRESHOLD);
+    this.callbackExecutor = firstNonNull(callbackExecutor, MoreExecutors.directExecutor());
+    this.metrics = firstNonNull(metrics, DatastoreMetrics.noop());
+    this.listenerFactory = listenerFactory;
+    this.lookupChunkSize = firstNonNull(lookupChunkSize, DEFAULT_LOOKUP_CHUNK_SIZE);
+    this.lookupParallelism = firstNonNull(lookupParallelism, DEFAULT_LOOKUP_PARALLELISM);
+    this.deferredLookupRounds = firstNonNull(deferredLookupRounds, DEFAULT_DEFERRED_LOOKUP_ROUNDS);
+    this.lookupBatching = lookupBatching;
+    this.deduplicateReads = firstNonNull(deduplicateReads, DEFAULT_DEDUPLICATE_READS);
+    this.entityCache = entityCache;
+    this.negativeCache = negativeCache;
   }
 
   public static final class Builder {
@@ -83,6 +174,31 @@ public final class DatastoreConfig {
     private String namespace;
     private String host;
     private String version;
+    private DatastoreTransport.Factory transport;
+    private Integer maxConnectionsPerHost;
+    private Integer pooledConnectionIdleTimeout;
+    private Integer connectionTtl;
+    private Boolean keepAlive;
+    private Boolean useNativeTransport;
+    private EventLoopGroup eventLoopGroup;
+    private ByteBufAllocator allocator;
+    private AsyncHttpClient httpClient;
+    private RetryPolicy retryPolicy;
+    private HedgingPolicy hedgingPolicy;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private ByteBudget byteBudget;
+    private Executor decodeExecutor;
+    private Integer inlineDecodeThreshold;
+    private Executor callbackExecutor;
+    private DatastoreMetrics metrics;
+    private DatastoreListener.Factory listenerFactory;
+    private Integer lookupChunkSize;
+    private Integer lookupParallelism;
+    private Integer deferredLookupRounds;
+    private LookupBatching lookupBatching;
+    private Boolean deduplicateReads;
+    private EntityCache entityCache;
+    private NegativeCache negativeCache;
 
     private Builder() {}
 
@@ -100,7 +216,32 @@ public final class DatastoreConfig {
                                  project,
                                  namespace,
                                  host,
-                                 version);
+                                 version,
+                                 transport,
+                                 maxConnectionsPerHost,
+                                 pooledConnectionIdleTimeout,
+                                 connectionTtl,
+                                 keepAlive,
+                                 useNativeTransport,
+                                 eventLoopGroup,
+                                 allocator,
+                                 httpClient,
+                                 retryPolicy,
+                                 hedgingPolicy,
+                                 concurrencyLimiter,
+                                 byteBudget,
+                                 decodeExecutor,
+                                 inlineDecodeThreshold,
+                                 callbackExecutor,
+                                 metrics,
+                                 listenerFactory,
+                                 lookupChunkSize,
+                                 lookupParallelism,
+                                 deferredLookupRounds,
+                                 lookupBatching,
+                                 deduplicateReads,
+                                 entityCache,
+                                 negativeCache);
     }
 
     /**
@@ -210,6 +351,341 @@ public final class DatastoreConfig {
       this.version = version;
       return this;
     }
+
+    /**
+     * The transport used to send requests to Datastore. By default,
+     * requests are sent as protobuf over HTTP.
+     *
+     * @param transport a factory that creates the transport.
+     * @return this config builder.
+     */
+    public Builder transport(final DatastoreTransport.Factory transport) {
+      this.transport = transport;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of connections the client will open to a
+     * single host.
+     *
+     * @param maxConnectionsPerHost the maximum number of connections per host.
+     * @return this config builder.
+     */
+    public Builder maxConnectionsPerHost(final int maxConnectionsPerHost) {
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in milliseconds an idle connection may remain
+     * in the connection pool.
+     *
+     * @param pooledConnectionIdleTimeout the maximum idle time in milliseconds.
+     * @return this config builder.
+     */
+    public Builder pooledConnectionIdleTimeout(final int pooledConnectionIdleTimeout) {
+      this.pooledConnectionIdleTimeout = pooledConnectionIdleTimeout;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in milliseconds a connection may be used for
+     * before it is closed, or -1 for no limit.
+     *
+     * @param connectionTtl the connection time to live in milliseconds.
+     * @return this config builder.
+     */
+    public Builder connectionTtl(final int connectionTtl) {
+      this.connectionTtl = connectionTtl;
+      return this;
+    }
+
+    /**
+     * Set whether connections are kept alive and pooled between requests.
+     *
+     * @param keepAlive true to keep connections alive.
+     * @return this config builder.
+     */
+    public Builder keepAlive(final boolean keepAlive) {
+      this.keepAlive = keepAlive;
+      return this;
+    }
+
+    /**
+     * Set whether the native epoll (Linux) or kqueue (macOS) transport is
+     * used instead of Java NIO.
+     *
+     * @param useNativeTransport true to use the native transport.
+     * @return this config builder.
+     */
+    public Builder useNativeTransport(final boolean useNativeTransport) {
+      this.useNativeTransport = useNativeTransport;
+      return this;
+    }
+
+    /**
+     * Set the Netty event loop group used for network I/O.
+     * <p>
+     * By default each {@code Datastore} creates its own event loop threads;
+     * a group may instead be shared between many clients in the same JVM.
+     * The group is not shut down when {@code Datastore} is closed.
+     *
+     * @param eventLoopGroup the event loop group.
+     * @return this config builder.
+     */
+    public Builder eventLoopGroup(final EventLoopGroup eventLoopGroup) {
+      this.eventLoopGroup = eventLoopGroup;
+      return this;
+    }
+
+    /**
+     * Set the Netty buffer allocator used for request and response bodies.
+     * By default, the shared pooled allocator is used.
+     *
+     * @param allocator the buffer allocator.
+     * @return this config builder.
+     */
+    public Builder allocator(final ByteBufAllocator allocator) {
+      this.allocator = allocator;
+      return this;
+    }
+
+    /**
+     * Set an HTTP client to share between many clients in the same JVM,
+     * along with its threads and connection pool.
+     * <p>
+     * When set, the connection and connection pool options of this config
+     * are ignored and the HTTP client is not closed when {@code Datastore}
+     * is closed.
+     *
+     * @param httpClient the HTTP client.
+     * @return this config builder.
+     */
+    public Builder httpClient(final AsyncHttpClient httpClient) {
+      this.httpClient = httpClient;
+      return this;
+    }
+
+    /**
+     * Set the policy used to retry idempotent requests that fail with a
+     * retryable status code or I/O error. By default, requests are not retried,
+     * other than by the HTTP client on connection errors; see
+     * {@link #requestRetry(int)}.
+     * <p>
+     * A policy shared between clients also shares its retry budget.
+     *
+     * @param retryPolicy the retry policy.
+     * @return this config builder.
+     */
+    public Builder retryPolicy(final RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * Set the policy used to hedge slow lookups and queries made outside of
+     * a transaction. By default, requests are not hedged.
+     * <p>
+     * A policy shared between clients also shares its budget and counters.
+     *
+     * @param hedgingPolicy the hedging policy.
+     * @return this config builder.
+     */
+    public Builder hedgingPolicy(final HedgingPolicy hedgingPolicy) {
+      this.hedgingPolicy = hedgingPolicy;
+      return this;
+    }
+
+    /**
+     * Set a limiter that adapts the number of requests in flight to the
+     * latency and throttling observed from Datastore. By default, the number of
+     * requests in flight is only limited by {@link #maxConnections(int)}.
+     * <p>
+     * A limiter may be shared between clients talking to the same backend.
+     *
+     * @param concurrencyLimiter the concurrency limiter.
+     * @return this config builder.
+     */
+    public Builder concurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter = concurrencyLimiter;
+      return this;
+    }
+
+    /**
+     * Set a budget limiting the request and response bytes in flight, so
+     * that large commits and queries can't exhaust memory. By default, bytes
+     * in flight are not limited.
+     * <p>
+     * A budget may be shared between clients in the same JVM.
+     *
+     * @param byteBudget the byte budget.
+     * @return this config builder.
+     */
+    public Builder byteBudget(final ByteBudget byteBudget) {
+      this.byteBudget = byteBudget;
+      return this;
+    }
+
+    /**
+     * Set the executor used to parse responses larger than the inline decode
+     * threshold, and to convert them into results, rather than doing so on
+     * the I/O threads. By default, a fork join pool with a thread per processor
+     * is shared between all clients.
+     *
+     * @param decodeExecutor the decode executor.
+     * @return this config builder.
+     */
+    public Builder decodeExecutor(final Executor decodeExecutor) {
+      this.decodeExecutor = decodeExecutor;
+      return this;
+    }
+
+    /**
+     * Set the size in bytes up to which responses are parsed directly on the
+     * I/O thread, as handing them to the decode executor would cost more than
+     * parsing them. By default, responses up to 16KB are parsed inline.
+     *
+     * @param inlineDecodeThreshold the size in bytes.
+     * @return this config builder.
+     */
+    public Builder inlineDecodeThreshold(final int inlineDecodeThreshold) {
+      this.inlineDecodeThreshold = inlineDecodeThreshold;
+      return this;
+    }
+
+    /**
+     * Set the executor that completes the futures returned by {@code Datastore},
+     * and so runs callbacks added to them with a direct executor. By default,
+     * futures are completed on the thread that decoded the response.
+     *
+     * @param callbackExecutor the callback executor.
+     * @return this config builder.
+     */
+    public Builder callbackExecutor(final Executor callbackExecutor) {
+      this.callbackExecutor = callbackExecutor;
+      return this;
+    }
+
+    /**
+     * Report measurements of requests, such as latency, sizes and retries, to
+     * the given metrics. Use {@link DatastoreStats} to keep them in histograms,
+     * or implement {@link DatastoreMetrics} to export them elsewhere.
+     * <p>
+     * By default measurements are discarded.
+     *
+     * @param metrics the metrics to report measurements to.
+     * @return this config builder.
+     */
+    public Builder metrics(final DatastoreMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Report the phases of each request, such as waiting for a connection,
+     * receiving the response and decoding it, to a listener created by the
+     * given factory. By default no listener is created and phases are not timed.
+     *
+     * @param listenerFactory the factory creating a listener for each request.
+     * @return this config builder.
+     */
+    public Builder listenerFactory(final DatastoreListener.Factory listenerFactory) {
+      this.listenerFactory = listenerFactory;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of keys looked up in a single request. Lookups of
+     * more keys are split into chunks of this size, sent in parallel, and their
+     * results merged. Datastore rejects lookups of more than 1000 keys, which is
+     * the default.
+     *
+     * @param lookupChunkSize the lookup chunk size.
+     * @return this config builder.
+     */
+    public Builder lookupChunkSize(final int lookupChunkSize) {
+      checkArgument(lookupChunkSize > 0, "lookupChunkSize must be positive");
+      this.lookupChunkSize = lookupChunkSize;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of chunks of a single large lookup that are in
+     * flight at once. The default is 8.
+     *
+     * @param lookupParallelism the maximum number of chunks in flight.
+     * @return this config builder.
+     */
+    public Builder lookupParallelism(final int lookupParallelism) {
+      checkArgument(lookupParallelism > 0, "lookupParallelism must be positive");
+      this.lookupParallelism = lookupParallelism;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of times keys that Datastore defers, rather than
+     * serves, are looked up again before the lookup fails with status code 503.
+     * Datastore may defer keys under load. The default is 5.
+     *
+     * @param deferredLookupRounds the maximum number of times deferred keys are looked up again.
+     * @return this config builder.
+     */
+    public Builder deferredLookupRounds(final int deferredLookupRounds) {
+      checkArgument(deferredLookupRounds >= 0, "deferredLookupRounds must not be negative");
+      this.deferredLookupRounds = deferredLookupRounds;
+      return this;
+    }
+
+    /**
+     * Combine small lookups made by concurrent callers outside of a transaction
+     * into batches. By default each lookup is sent on its own.
+     *
+     * @param lookupBatching the lookup batching options.
+     * @return this config builder.
+     */
+    public Builder lookupBatching(final LookupBatching lookupBatching) {
+      this.lookupBatching = lookupBatching;
+      return this;
+    }
+
+    /**
+     * Share the response to a lookup or query made outside of a transaction
+     * with every identical lookup or query made while it is in flight, rather
+     * than sending each one. Disabled by default.
+     *
+     * @param deduplicateReads whether to share responses between identical reads.
+     * @return this config builder.
+     */
+    public Builder deduplicateReads(final boolean deduplicateReads) {
+      this.deduplicateReads = deduplicateReads;
+      return this;
+    }
+
+    /**
+     * Answer lookups made outside of a transaction from a cache of entities,
+     * looking up only keys that are not cached. Entities written through this
+     * client are removed from the cache. By default nothing is cached.
+     *
+     * @param entityCache the entity cache.
+     * @return this config builder.
+     */
+    public Builder entityCache(final EntityCache entityCache) {
+      this.entityCache = entityCache;
+      return this;
+    }
+
+    /**
+     * Answer lookups made outside of a transaction of keys known not to exist
+     * locally. Keys inserted or upserted through this client are no longer
+     * treated as missing. By default missing keys are always looked up.
+     *
+     * @param negativeCache the negative cache.
+     * @return this config builder.
+     */
+    public Builder negativeCache(final NegativeCache negativeCache) {
+      this.negativeCache = negativeCache;
+      return this;
+    }
   }
 
   public static DatastoreConfig.Builder builder() {
@@ -251,5 +727,105 @@ public final class DatastoreConfig {
   public String getVersion() {
     return version;
   }
+
+  public DatastoreTransport.Factory getTransport() {
+    return transport;
+  }
+
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  public int getPooledConnectionIdleTimeout() {
+    return pooledConnectionIdleTimeout;
+  }
+
+  public int getConnectionTtl() {
+    return connectionTtl;
+  }
+
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  public boolean isUseNativeTransport() {
+    return useNativeTransport;
+  }
+
+  public EventLoopGroup getEventLoopGroup() {
+    return eventLoopGroup;
+  }
+
+  public ByteBufAllocator getAllocator() {
+    return allocator;
+  }
+
+  public AsyncHttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  public HedgingPolicy getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  public ByteBudget getByteBudget() {
+    return byteBudget;
+  }
+
+  public Executor getDecodeExecutor() {
+    return decodeExecutor;
+  }
+
+  public int getInlineDecodeThreshold() {
+    return inlineDecodeThreshold;
+  }
+
+  public Executor getCallbackExecutor() {
+    return callbackExecutor;
+  }
+
+  public DatastoreMetrics getMetrics() {
+    return metrics;
+  }
+
+  public DatastoreListener.Factory getListenerFactory() {
+    return listenerFactory;
+  }
+
+  public int getLookupChunkSize() {
+    return lookupChunkSize;
+  }
+
+  public int getLookupParallelism() {
+    return lookupParallelism;
+  }
+
+  public int getDeferredLookupRounds() {
+    return deferredLookupRounds;
+  }
+
+  public LookupBatching getLookupBatching() {
+    return lookupBatching;
+  }
+
+  public boolean isDeduplicateReads() {
+    return deduplicateReads;
+  }
+
+  public EntityCache getEntityCache() {
+    return entityCache;
+  }
+
+  public NegativeCache getNegativeCache() {
+    return negativeCache;
+  }
 }
 
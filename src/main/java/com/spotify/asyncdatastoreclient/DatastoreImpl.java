@@ -16,10 +16,10 @@
 
 package com.spotify.asyncdatastoreclient;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.http.protobuf.ProtoHttpContent;
-import com.google.common.base.Throwables;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -29,6 +29,7 @@ import com.google.datastore.v1.BeginTransactionRequest;
 import com.google.datastore.v1.BeginTransactionResponse;
 import com.google.datastore.v1.CommitRequest;
 import com.google.datastore.v1.CommitResponse;
+import com.google.datastore.v1.KindExpression;
 import com.google.datastore.v1.LookupRequest;
 import com.google.datastore.v1.LookupResponse;
 import com.google.datastore.v1.Mutation;
@@ -39,115 +40,457 @@ import com.google.datastore.v1.RollbackResponse;
 import com.google.datastore.v1.RunQueryRequest;
 import com.google.datastore.v1.RunQueryResponse;
 import com.google.protobuf.ByteString;
-import org.asynchttpclient.AsyncHttpClient;
-import org.asynchttpclient.AsyncHttpClientConfig;
-import org.asynchttpclient.BoundRequestBuilder;
-import org.asynchttpclient.DefaultAsyncHttpClient;
-import org.asynchttpclient.DefaultAsyncHttpClientConfig;
-import org.asynchttpclient.Response;
-import org.asynchttpclient.extras.guava.ListenableFutureAdapter;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPInputStream;
+import java.util.stream.Stream;
 
 /**
  * The Datastore implementation.
+ * <p>
+ * All requests are delegated to a {@link DatastoreTransport}.
  */
 final class DatastoreImpl implements Datastore {
 
   private static final Logger log = LoggerFactory.getLogger(Datastore.class);
 
-  private static final String VERSION = "1.0.0";
-  private static final String USER_AGENT = "Datastore-Java-Client/" + VERSION + " (gzip)";
+  private static final Set<Mutation.OperationCase> WRITES = EnumSet.of(
+      Mutation.OperationCase.INSERT, Mutation.OperationCase.UPDATE,
+      Mutation.OperationCase.UPSERT, Mutation.OperationCase.DELETE);
+  private static final Set<Mutation.OperationCase> CREATES = EnumSet.of(
+      Mutation.OperationCase.INSERT, Mutation.OperationCase.UPSERT);
 
   private final DatastoreConfig config;
-  private final AsyncHttpClient client;
-  private final String prefixUri;
-
-  private final ScheduledExecutorService executor;
-  private volatile String accessToken;
+  private final DatastoreTransport transport;
+  private final AccessTokenProvider tokens;
+  private final CallOptions callOptions;
+  private final LookupBatcher batcher;
+  private final SingleFlight<MessageLite, QueryResult> reads;
+  private final boolean view;
+  private final AtomicBoolean closed = new AtomicBoolean();
 
   DatastoreImpl(final DatastoreConfig config) {
     this.config = config;
-    final AsyncHttpClientConfig httpConfig = new DefaultAsyncHttpClientConfig.Builder()
-        .setConnectTimeout(config.getConnectTimeout())
-        .setRequestTimeout(config.getRequestTimeout())
-        .setMaxConnections(config.getMaxConnections())
-        .setMaxRequestRetry(config.getRequestRetry())
-        .setCompressionEnforced(true)
-        .build();
+    this.transport = config.getTransport().create(config);
+
+    // the first access token is retrieved in the background
+    this.tokens = config.getCredential() != null ? AccessTokenProvider.acquire(config.getCredential()) : null;
+    this.callOptions = CallOptions.defaults();
+    this.batcher = config.getLookupBatching() != null
+                   ? new LookupBatcher(config.getLookupBatching(), config.getLookupChunkSize(),
+                                       keys -> lookupKeys(keys, null), SharedScheduler.INSTANCE)
+                   : null;
+    this.reads = config.isDeduplicateReads() ? new SingleFlight<>() : null;
+    this.view = false;
+
+    final EntityCache cache = config.getEntityCache();
+    if (cache != null) {
+      // the cache saves snapshots once for all clients using it
+      cache.attach();
+      final List<com.google.datastore.v1.Key> restored = cache.restore();
+      if (!restored.isEmpty()) {
+        revalidate(cache, restored);
+      }
+    }
+  }
 
-    client = new DefaultAsyncHttpClient(httpConfig);
-    prefixUri = String.format("%s/%s/projects/%s:", config.getHost(), config.getVersion(), config.getProject());
+  private DatastoreImpl(final DatastoreImpl client, final CallOptions callOptions) {
+    this.config = client.config;
+    this.transport = client.transport;
+    this.tokens = client.tokens;
+    this.callOptions = callOptions;
+    this.batcher = client.batcher;
+    this.reads = client.reads;
+    this.view = true;
+  }
 
-    executor = Executors.newSingleThreadScheduledExecutor();
+  @Override
+  public void close() throws IOException {
+    if (view || !closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (config.getEntityCache() != null) {
+      config.getEntityCache().detach();
+    }
+    if (tokens != null) {
+      tokens.release();
+    }
+    transport.close();
+  }
+
+  /**
+   * Look up cached entities again, in the background, replacing those that
+   * have changed and removing those that no longer exist.
+   */
+  private void revalidate(final EntityCache cache, final List<com.google.datastore.v1.Key> keys) {
+    final long generation = cache.generation();
+    Futures.addCallback(lookupAll(keys, null), new FutureCallback<QueryResult>() {
+      @Override
+      public void onSuccess(final QueryResult result) {
+        // entities written while being looked up are left out, others are replaced
+        cache.putAll(result.getAll(), generation);
+        cache.invalidate(result.getMissingKeys().stream().map(Key::getPb).collect(Collectors.toList()));
+        cache.refreshed(keys);
+      }
 
-    if (config.getCredential() != null) {
-      // block while retrieving an access token for the first time
-      refreshAccessToken();
+      @Override
+      public void onFailure(final Throwable t) {
+        // entities left stale are looked up again once they expire
+        cache.refreshed(keys);
+        log.warn("Failed to revalidate cached entities", t);
+      }
+    }, MoreExecutors.directExecutor());
+  }
 
-      // wake up every 10 seconds to check if access token has expired
-      executor.scheduleAtFixedRate(this::refreshAccessToken, 10, 10, TimeUnit.SECONDS);
-    }
+  String getNamespace() {
+    return config.getNamespace();
   }
 
   @Override
-  public void close() throws IOException {
-    executor.shutdown();
-    client.close();
+  public Datastore withCallOptions(final CallOptions options) {
+    return new DatastoreImpl(this, options);
+  }
+
+  /**
+   * Return a future that completes with this client once it has an access
+   * token, or fails if the first access token could not be retrieved.
+   */
+  ListenableFuture<Datastore> ready() {
+    if (tokens == null) {
+      return Futures.immediateFuture(this);
+    }
+    final ListenableFuture<Datastore> ready = Futures.transform(
+        tokens.accessToken(), token -> this, MoreExecutors.directExecutor());
+    Futures.addCallback(ready, new FutureCallback<Datastore>() {
+      @Override
+      public void onSuccess(final Datastore result) {
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        try {
+          close();
+        } catch (final IOException e) {
+          log.warn("Failed to close Datastore", e);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    return ready;
   }
 
   // package-private for testing
   void refreshAccessToken() {
-    final Credential credential = config.getCredential();
-    final Long expiresIn = credential.getExpiresInSeconds();
-
-    // trigger refresh if token is null or is about to expire
-    if (credential.getAccessToken() == null
-        || expiresIn != null && expiresIn <= 60) {
-      try {
-        credential.refreshToken();
-      } catch (final IOException e) {
-        log.error("Storage exception", Throwables.getRootCause(e));
+    tokens.refresh();
+  }
+
+  /**
+   * Call an API method, converting its response into a result on the
+   * callback executor.
+   */
+  private <T, R> ListenableFuture<R> call(final String method, final MessageLite request, final Parser<T> parser,
+                                          final Function<? super T, ? extends R> converter) {
+    final DatastoreListener.Factory listeners = config.getListenerFactory();
+    final DatastoreListener listener = listeners != null ? listeners.newListener(method) : null;
+    final DatastoreMetrics metrics = config.getMetrics();
+    final long start = System.nanoTime();
+    metrics.started(method);
+    final Object event = JfrEvents.callStarted();
+    final ListenableFuture<T> response = measured(method, start, metrics, timed(method, request, parser, listener));
+    if (event != null) {
+      recorded(event, method, request, response);
+    }
+    if (listener == null) {
+      return Futures.transform(response, converter, config.getCallbackExecutor());
+    }
+    final ListenableFuture<R> result = Futures.transform(response, value -> {
+      final R converted = converter.apply(value);
+      listener.converted(method, System.nanoTime());
+      return converted;
+    }, config.getCallbackExecutor());
+    Futures.addCallback(result, new FutureCallback<R>() {
+      @Override
+      public void onSuccess(final R value) {
+        listener.completed(method, System.nanoTime(), 200);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        listener.completed(method, System.nanoTime(), statusCode(t));
       }
+    }, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  /**
+   * Make a read outside of a transaction, sharing the response of an
+   * identical read in flight if reads are deduplicated.
+   */
+  private <T> ListenableFuture<QueryResult> read(final String method, final MessageLite request,
+                                                 final Parser<T> parser,
+                                                 final Function<? super T, QueryResult> converter) {
+    if (reads == null) {
+      return call(method, request, parser, converter);
+    }
+    // a shared read runs to the deadline of its first caller, so also apply this caller's own
+    final long deadline = deadline();
+    return withDeadline(reads.call(request, () -> call(method, request, parser, converter),
+                                   () -> config.getMetrics().deduplicated(method)), deadline);
+  }
+
+  private <T> ListenableFuture<T> timed(final String method, final MessageLite request, final Parser<T> parser,
+                                        final DatastoreListener listener) {
+    final long deadline = deadline();
+
+    final HedgingPolicy hedgingPolicy = config.getHedgingPolicy();
+    final Supplier<ListenableFuture<T>> attempt;
+    if (hedgingPolicy != null && hedgingPolicy.isHedgeable(request)) {
+      attempt = () -> HedgedCall.start(() -> send(method, request, parser, deadline, listener),
+                                       hedgingPolicy, SharedScheduler.INSTANCE);
+    } else {
+      attempt = () -> send(method, request, parser, deadline, listener);
+    }
+
+    final RetryPolicy retryPolicy = config.getRetryPolicy();
+    final ListenableFuture<T> response;
+    if (retryPolicy.getMaxAttempts() == 1 || !retryPolicy.isIdempotent(method, request)) {
+      response = attempt.get();
+    } else {
+      final long retryDeadline = retryPolicy.getTimeout() > 0
+                                 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryPolicy.getTimeout())
+                                 : Long.MAX_VALUE;
+      final DatastoreMetrics metrics = config.getMetrics();
+      response = RetryingCall.start(attempt, retryPolicy, SharedScheduler.INSTANCE,
+                                    Math.min(deadline, retryDeadline), (attempts, failure, backoff) -> {
+                                      metrics.retried(method);
+                                      JfrEvents.retried(method, attempts, statusCode(failure), backoff);
+                                    });
     }
+    return withDeadline(response, deadline);
+  }
 
-    // update local token if the credentials token has refreshed since last update
-    final String accessTokenLocal = credential.getAccessToken();
+  private long deadline() {
+    return callOptions.getTimeout() > 0
+           ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(callOptions.getTimeout())
+           : Long.MAX_VALUE;
+  }
 
-    if (this.accessToken == null || !accessToken.equals(accessTokenLocal)) {
-        this.accessToken = accessTokenLocal;
+  private static <T> ListenableFuture<T> withDeadline(final ListenableFuture<T> response, final long deadline) {
+    if (deadline == Long.MAX_VALUE || response.isDone()) {
+      return response;
     }
+    // abort the request, wherever it is, once the deadline has passed
+    final ListenableFuture<T> timed = Futures.withTimeout(
+        response, deadline - System.nanoTime(), TimeUnit.NANOSECONDS, SharedScheduler.INSTANCE);
+    return Futures.catchingAsync(timed, TimeoutException.class, e -> deadlineExceeded(),
+                                 MoreExecutors.directExecutor());
+  }
+
+  private <T> ListenableFuture<T> measured(final String method, final long start,
+                                           final DatastoreMetrics metrics, final ListenableFuture<T> response) {
+    Futures.addCallback(response, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T result) {
+        counted(method, result, metrics);
+        metrics.completed(method, 200, System.nanoTime() - start);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        metrics.completed(method, statusCode(t), System.nanoTime() - start);
+      }
+    }, MoreExecutors.directExecutor());
+    return response;
+  }
+
+  private static <T> void recorded(final Object event, final String method, final MessageLite request,
+                                   final ListenableFuture<T> response) {
+    Futures.addCallback(response, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T result) {
+        final long responseBytes = result instanceof MessageLite ? ((MessageLite) result).getSerializedSize() : 0;
+        JfrEvents.callCompleted(event, method, kinds(request), keys(request).size(),
+                                request.getSerializedSize(), responseBytes, 200);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        JfrEvents.callCompleted(event, method, kinds(request), keys(request).size(),
+                                request.getSerializedSize(), 0, statusCode(t));
+      }
+    }, MoreExecutors.directExecutor());
   }
 
-  private static boolean isSuccessful(final int statusCode) {
-    return statusCode >= 200 && statusCode < 300;
+  /**
+   * Return the keys a request reads, writes or allocates.
+   */
+  private static List<com.google.datastore.v1.Key> keys(final MessageLite request) {
+    if (request instanceof LookupRequest) {
+      return ((LookupRequest) request).getKeysList();
+    } else if (request instanceof AllocateIdsRequest) {
+      return ((AllocateIdsRequest) request).getKeysList();
+    } else if (request instanceof CommitRequest) {
+      return ((CommitRequest) request).getMutationsList().stream().map(mutation -> {
+        switch (mutation.getOperationCase()) {
+          case INSERT:
+            return mutation.getInsert().getKey();
+          case UPDATE:
+            return mutation.getUpdate().getKey();
+          case UPSERT:
+            return mutation.getUpsert().getKey();
+          default:
+            return mutation.getDelete();
+        }
+      }).collect(Collectors.toList());
+    }
+    return ImmutableList.of();
+  }
+
+  /**
+   * Return the distinct kinds a request reads or writes, separated by commas.
+   */
+  private static String kinds(final MessageLite request) {
+    final Stream<String> kinds;
+    if (request instanceof RunQueryRequest) {
+      kinds = ((RunQueryRequest) request).getQuery().getKindList().stream().map(KindExpression::getName);
+    } else {
+      kinds = keys(request).stream()
+          .filter(key -> key.getPathCount() > 0)
+          .map(key -> key.getPath(key.getPathCount() - 1).getKind());
+    }
+    return kinds.distinct().collect(Collectors.joining(","));
   }
 
+  private static void counted(final String method, final Object response, final DatastoreMetrics metrics) {
+    if (response instanceof LookupResponse) {
+      metrics.entities(method, ((LookupResponse) response).getFoundCount());
+    } else if (response instanceof RunQueryResponse) {
+      metrics.entities(method, ((RunQueryResponse) response).getBatch().getEntityResultsCount());
+    } else if (response instanceof CommitResponse) {
+      metrics.entities(method, ((CommitResponse) response).getMutationResultsCount());
+      metrics.indexUpdates(((CommitResponse) response).getIndexUpdates());
+    }
+  }
+
+  /**
+   * Return the status code a request failed with: that of the response, 499
+   * if cancelled, or 0 if there was no response.
+   */
   // package-private for testing
-  BoundRequestBuilder prepareRequest(final String method, final ProtoHttpContent payload) throws IOException {
-    final BoundRequestBuilder builder = client.preparePost(prefixUri + method);
-    builder.addHeader("Authorization", "Bearer " + accessToken);
-    builder.addHeader("Content-Type", "application/x-protobuf");
-    builder.addHeader("User-Agent", USER_AGENT);
-    builder.addHeader("Accept-Encoding", "gzip");
-    builder.setBody(payload.getMessage().toByteArray());
-    return builder;
+  static int statusCode(final Throwable t) {
+    if (t instanceof CancellationException) {
+      return 499;
+    }
+    Throwable cause = t;
+    while (cause != null) {
+      if (cause instanceof DatastoreException) {
+        final Integer statusCode = ((DatastoreException) cause).getStatusCode();
+        if (statusCode != null) {
+          return statusCode;
+        }
+      }
+      cause = cause.getCause();
+    }
+    return 0;
   }
 
-  private InputStream streamResponse(final Response response) throws IOException {
-    final InputStream input = response.getResponseBodyAsStream();
-    final boolean compressed = "gzip".equals(response.getHeader("Content-Encoding"));
-    return compressed ? new GZIPInputStream(input) : input;
+  private static <T> ListenableFuture<T> deadlineExceeded() {
+    return Futures.immediateFailedFuture(new DatastoreException(504, "Deadline exceeded"));
+  }
+
+  private <T> ListenableFuture<T> send(final String method, final MessageLite request,
+                                       final Parser<T> parser, final long deadline,
+                                       final DatastoreListener listener) {
+    final long start = System.nanoTime();
+    if (listener != null) {
+      listener.queued(method, start);
+    }
+    if (tokens == null) {
+      return dispatch(method, request, parser, new CallContext(null, deadline, start, listener));
+    }
+    final String accessToken = tokens.getAccessToken();
+    if (accessToken != null) {
+      return dispatch(method, request, parser, new CallContext(accessToken, deadline, start, listener));
+    }
+    // wait for the first access token rather than send an unauthenticated request
+    return Futures.transformAsync(firstAccessToken(deadline),
+                                  token -> dispatch(method, request, parser, new CallContext(token, deadline, start, listener)),
+                                  MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Return a future that completes with the first access token, failing if
+   * it isn't retrieved within the request timeout or before the deadline.
+   */
+  private ListenableFuture<String> firstAccessToken(final long deadline) {
+    long timeout = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    if (config.getRequestTimeout() > 0) {
+      timeout = Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeout()));
+    }
+    if (timeout == Long.MAX_VALUE) {
+      return tokens.accessToken();
+    }
+    final ListenableFuture<String> timed = Futures.withTimeout(
+        tokens.accessToken(), timeout, TimeUnit.NANOSECONDS, SharedScheduler.INSTANCE);
+    return Futures.catchingAsync(
+        timed, TimeoutException.class,
+        e -> Futures.immediateFailedFuture(new DatastoreException("Timed out waiting for access token")),
+        MoreExecutors.directExecutor());
+  }
+
+  private <T> ListenableFuture<T> dispatch(final String method, final MessageLite request,
+                                           final Parser<T> parser, final CallContext context) {
+    if (context.isExpired()) {
+      return deadlineExceeded();
+    }
+    final ConcurrencyLimiter limiter = config.getConcurrencyLimiter();
+    if (limiter == null) {
+      return budgeted(method, request, parser, context);
+    }
+    return limiter.submit(() -> budgeted(method, request, parser, context));
+  }
+
+  private <T> ListenableFuture<T> budgeted(final String method, final MessageLite request,
+                                           final Parser<T> parser, final CallContext context) {
+    final ByteBudget byteBudget = config.getByteBudget();
+    if (byteBudget == null) {
+      return transmit(method, request, parser, context);
+    }
+    return byteBudget.submit(method, request, () -> transmit(method, request, parser, context));
+  }
+
+  private <T> ListenableFuture<T> transmit(final String method, final MessageLite request,
+                                           final Parser<T> parser, final CallContext context) {
+    final DatastoreMetrics metrics = config.getMetrics();
+    final long start = System.nanoTime();
+    metrics.queued(method, start - context.getStartTime());
+    metrics.requestBytes(method, request.getSerializedSize());
+    final ListenableFuture<T> response = transport.send(method, request, parser, context);
+    Futures.addCallback(response, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T result) {
+        metrics.attempted(method, 200, System.nanoTime() - start);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        metrics.attempted(method, statusCode(t), System.nanoTime() - start);
+      }
+    }, MoreExecutors.directExecutor());
+    return response;
   }
 
   @Override
@@ -157,21 +500,8 @@ final class DatastoreImpl implements Datastore {
 
   @Override
   public ListenableFuture<TransactionResult> transactionAsync() {
-    final ListenableFuture<Response> httpResponse;
-    try {
-      final BeginTransactionRequest.Builder request = BeginTransactionRequest.newBuilder();
-      final ProtoHttpContent payload = new ProtoHttpContent(request.build());
-      httpResponse = ListenableFutureAdapter.asGuavaFuture(prepareRequest("beginTransaction", payload).execute());
-    } catch (final Exception e) {
-      return Futures.immediateFailedFuture(new DatastoreException(e));
-    }
-    return Futures.transformAsync(httpResponse, response -> {
-      if (!isSuccessful(response.getStatusCode())) {
-        throw new DatastoreException(response.getStatusCode(), response.getResponseBody());
-      }
-      final BeginTransactionResponse transaction = BeginTransactionResponse.parseFrom(streamResponse(response));
-      return Futures.immediateFuture(TransactionResult.build(transaction));
-    }, MoreExecutors.directExecutor());
+    final BeginTransactionRequest.Builder request = BeginTransactionRequest.newBuilder();
+    return call("beginTransaction", request.build(), BeginTransactionResponse.parser(), TransactionResult::build);
   }
 
   @Override
@@ -181,21 +511,13 @@ final class DatastoreImpl implements Datastore {
 
   @Override
   public ListenableFuture<RollbackResult> rollbackAsync(final ListenableFuture<TransactionResult> txn) {
-    final ListenableFuture<Response> httpResponse = Futures.transformAsync(txn, result -> {
+    return Futures.transformAsync(txn, result -> {
       final ByteString transaction = result.getTransaction();
       if (transaction == null) {
         throw new DatastoreException("Invalid transaction.");
       }
       final RollbackRequest.Builder request = RollbackRequest.newBuilder();
-      final ProtoHttpContent payload = new ProtoHttpContent(request.build());
-      return ListenableFutureAdapter.asGuavaFuture(prepareRequest("rollback", payload).execute());
-    }, MoreExecutors.directExecutor());
-    return Futures.transformAsync(httpResponse, response -> {
-      if (!isSuccessful(response.getStatusCode())) {
-        throw new DatastoreException(response.getStatusCode(), response.getResponseBody());
-      }
-      final RollbackResponse rollback = RollbackResponse.parseFrom(streamResponse(response));
-      return Futures.immediateFuture(RollbackResult.build(rollback));
+      return call("rollback", request.build(), RollbackResponse.parser(), RollbackResult::build);
     }, MoreExecutors.directExecutor());
   }
 
@@ -216,22 +538,14 @@ final class DatastoreImpl implements Datastore {
 
   @Override
   public ListenableFuture<AllocateIdsResult> executeAsync(final AllocateIds statement) {
-    final ListenableFuture<Response> httpResponse;
+    final AllocateIdsRequest.Builder request;
     try {
-      final AllocateIdsRequest.Builder request = AllocateIdsRequest.newBuilder()
+      request = AllocateIdsRequest.newBuilder()
           .addAllKeys(statement.getPb(config.getNamespace()));
-      final ProtoHttpContent payload = new ProtoHttpContent(request.build());
-      httpResponse = ListenableFutureAdapter.asGuavaFuture(prepareRequest("allocateIds", payload).execute());
     } catch (final Exception e) {
       return Futures.immediateFailedFuture(new DatastoreException(e));
     }
-    return Futures.transformAsync(httpResponse, response -> {
-      if (!isSuccessful(response.getStatusCode())) {
-        throw new DatastoreException(response.getStatusCode(), response.getResponseBody());
-      }
-      final AllocateIdsResponse allocate = AllocateIdsResponse.parseFrom(streamResponse(response));
-      return Futures.immediateFuture(AllocateIdsResult.build(allocate));
-    }, MoreExecutors.directExecutor());
+    return call("allocateIds", request.build(), AllocateIdsResponse.parser(), AllocateIdsResult::build);
   }
 
   @Override
@@ -271,23 +585,140 @@ final class DatastoreImpl implements Datastore {
 
   @Override
   public ListenableFuture<QueryResult> executeAsync(final List<KeyQuery> statements, final ListenableFuture<TransactionResult> txn) {
-    final ListenableFuture<Response> httpResponse = Futures.transformAsync(txn, result -> {
+    return Futures.transformAsync(txn, result -> {
       final List<com.google.datastore.v1.Key> keys = statements
         .stream().map(s -> s.getKey().getPb(config.getNamespace())).collect(Collectors.toList());
-      final LookupRequest.Builder request = LookupRequest.newBuilder().addAllKeys(keys);
       final ByteString transaction = result.getTransaction();
-      if (transaction != null) {
-        request.setReadOptions(ReadOptions.newBuilder().setTransaction(transaction));
+      if (transaction == null && (config.getEntityCache() != null || config.getNegativeCache() != null)) {
+        return cached(keys);
       }
-      final ProtoHttpContent payload = new ProtoHttpContent(request.build());
-      return ListenableFutureAdapter.asGuavaFuture(prepareRequest("lookup", payload).execute());
+      return lookupAll(keys, transaction);
     }, MoreExecutors.directExecutor());
-    return Futures.transformAsync(httpResponse, response -> {
-      if (!isSuccessful(response.getStatusCode())) {
-        throw new DatastoreException(response.getStatusCode(), response.getResponseBody());
+  }
+
+  /**
+   * Look up the keys that are neither cached nor known to be missing, and
+   * cache the entities found and keys missing. Cached entities due to be
+   * refreshed are looked up again in the background, and stale entities are
+   * served in place of lookups that fail for want of a response.
+   */
+  private ListenableFuture<QueryResult> cached(final List<com.google.datastore.v1.Key> keys) {
+    final EntityCache cache = config.getEntityCache();
+    final NegativeCache negativeCache = config.getNegativeCache();
+    final EntityCache.Read read = cache != null ? cache.read(keys) : null;
+    final List<Entity> hits = read != null ? read.getHits() : ImmutableList.of();
+    final List<Key> missing = new ArrayList<>();
+    final List<com.google.datastore.v1.Key> misses = new ArrayList<>();
+    for (final com.google.datastore.v1.Key key : read != null ? read.getMisses() : keys) {
+      if (negativeCache != null && negativeCache.isMissing(key)) {
+        missing.add(Key.builder(key).build());
+      } else {
+        misses.add(key);
+      }
+    }
+    if (read != null && !read.getRefresh().isEmpty()) {
+      revalidate(cache, read.getRefresh());
+    }
+    final QueryResult cached = QueryResult.build(hits, missing);
+    if (misses.isEmpty()) {
+      return Futures.immediateFuture(cached);
+    }
+    final long generation = cache != null ? cache.generation() : 0;
+    final long negativeGeneration = negativeCache != null ? negativeCache.generation() : 0;
+    final ListenableFuture<QueryResult> lookup = Futures.transform(lookupAll(misses, null), result -> {
+      if (cache != null) {
+        cache.putAll(result.getAll(), generation);
+      }
+      if (negativeCache != null) {
+        negativeCache.putAll(result.getMissingKeys(), negativeGeneration);
       }
-      final LookupResponse query = LookupResponse.parseFrom(streamResponse(response));
-      return Futures.immediateFuture(QueryResult.build(query));
+      return hits.isEmpty() && missing.isEmpty() ? result : QueryResult.merge(ImmutableList.of(cached, result));
+    }, MoreExecutors.directExecutor());
+    if (read == null || !read.getFallbacks().keySet().containsAll(misses)) {
+      return lookup;
+    }
+    return Futures.catchingAsync(lookup, Exception.class, e -> {
+      final int statusCode = statusCode(e);
+      if (statusCode < 500 && statusCode != 0) {
+        throw e;
+      }
+      log.debug("Serving stale cached entities as lookup failed", e);
+      return Futures.immediateFuture(
+          QueryResult.merge(ImmutableList.of(cached, QueryResult.build(
+              misses.stream().map(read.getFallbacks()::get).collect(Collectors.toList()), ImmutableList.of()))));
+    }, MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<QueryResult> lookupAll(final List<com.google.datastore.v1.Key> keys,
+                                                  final ByteString transaction) {
+    if (transaction == null && batcher != null && batcher.accepts(keys.size())) {
+      // the batch is shared, so neither cancel it nor let it outlive this caller's deadline
+      return withDeadline(Futures.nonCancellationPropagating(batcher.lookup(keys)), deadline());
+    }
+    if (keys.size() <= config.getLookupChunkSize()) {
+      return lookupKeys(keys, transaction);
+    }
+    // Datastore limits the number of keys in a lookup, so split large ones
+    final List<Supplier<ListenableFuture<QueryResult>>> chunks = Lists.partition(keys, config.getLookupChunkSize())
+        .stream()
+        .<Supplier<ListenableFuture<QueryResult>>>map(chunk -> () -> lookupKeys(chunk, transaction))
+        .collect(Collectors.toList());
+    return Futures.transform(FanOut.start(chunks, config.getLookupParallelism()),
+                             QueryResult::merge, MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public LookupResult lookup(final List<KeyQuery> statements) throws DatastoreException {
+    return Futures.getChecked(lookupAsync(statements), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<LookupResult> lookupAsync(final List<KeyQuery> statements) {
+    return lookupAsync(statements, Futures.immediateFuture(TransactionResult.build()));
+  }
+
+  @Override
+  public LookupResult lookup(final List<KeyQuery> statements, final TransactionResult txn) throws DatastoreException {
+    return Futures.getChecked(lookupAsync(statements, Futures.immediateFuture(txn)), DatastoreException.class);
+  }
+
+  @Override
+  public ListenableFuture<LookupResult> lookupAsync(final List<KeyQuery> statements,
+                                                    final ListenableFuture<TransactionResult> txn) {
+    // aligned on the thread that completed the lookup, the callback executor
+    return Futures.transform(executeAsync(statements, txn), result -> LookupResult.build(statements, result, config.getNamespace()),
+                             MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<QueryResult> lookupKeys(final List<com.google.datastore.v1.Key> keys,
+                                                   final ByteString transaction) {
+    return lookupKeys(keys, transaction, 0);
+  }
+
+  /**
+   * Look up keys, then look up again any keys Datastore deferred, rather
+   * than served, for up to a configured number of rounds.
+   */
+  private ListenableFuture<QueryResult> lookupKeys(final List<com.google.datastore.v1.Key> keys,
+                                                   final ByteString transaction, final int round) {
+    final LookupRequest.Builder request = LookupRequest.newBuilder().addAllKeys(keys);
+    if (transaction != null) {
+      request.setReadOptions(ReadOptions.newBuilder().setTransaction(transaction));
+    }
+    final ListenableFuture<QueryResult> response = transaction == null
+        ? read("lookup", request.build(), LookupResponse.parser(), QueryResult::build)
+        : call("lookup", request.build(), LookupResponse.parser(), QueryResult::build);
+    return Futures.transformAsync(response, result -> {
+      final List<com.google.datastore.v1.Key> deferred = result.getDeferred();
+      if (deferred.isEmpty()) {
+        return Futures.immediateFuture(result);
+      }
+      if (round >= config.getDeferredLookupRounds()) {
+        throw new DatastoreException(503, deferred.size() + " keys still deferred after "
+                                          + (round + 1) + " lookups");
+      }
+      return Futures.transform(lookupKeys(deferred, transaction, round + 1), result::withDeferred,
+                               MoreExecutors.directExecutor());
     }, MoreExecutors.directExecutor());
   }
 
@@ -337,7 +768,7 @@ final class DatastoreImpl implements Datastore {
   }
 
   private ListenableFuture<MutationResult> executeAsyncMutations(final List<Mutation> mutations, final ListenableFuture<TransactionResult> txn) {
-    final ListenableFuture<Response> httpResponse = Futures.transformAsync(txn, result -> {
+    return Futures.transformAsync(txn, result -> {
       final CommitRequest.Builder request = CommitRequest.newBuilder();
       if (mutations != null) {
         request.addAllMutations(mutations);
@@ -349,18 +780,73 @@ final class DatastoreImpl implements Datastore {
       } else {
         request.setMode(CommitRequest.Mode.NON_TRANSACTIONAL);
       }
-      final ProtoHttpContent payload = new ProtoHttpContent(request.build());
-      return ListenableFutureAdapter.asGuavaFuture(prepareRequest("commit", payload).execute());
-    }, MoreExecutors.directExecutor());
-    return Futures.transformAsync(httpResponse, response -> {
-      if (!isSuccessful(response.getStatusCode())) {
-        throw new DatastoreException(response.getStatusCode(), response.getResponseBody());
+      if (config.getEntityCache() == null && config.getNegativeCache() == null) {
+        return call("commit", request.build(), CommitResponse.parser(), MutationResult::build);
       }
-      final CommitResponse commit = CommitResponse.parseFrom(streamResponse(response));
-      return Futures.immediateFuture(MutationResult.build(commit));
+      // update the caches both before the commit, and once it has been applied, or may have been
+      final List<com.google.datastore.v1.Key> written = mutatedKeys(request.getMutationsList(), WRITES);
+      final List<com.google.datastore.v1.Key> created = mutatedKeys(request.getMutationsList(), CREATES);
+      written(written, created);
+      final ListenableFuture<MutationResult> response =
+          call("commit", request.build(), CommitResponse.parser(), MutationResult::build);
+      Futures.addCallback(response, new FutureCallback<MutationResult>() {
+        @Override
+        public void onSuccess(final MutationResult result) {
+          // keys allocated to inserted entities are only known now
+          final List<com.google.datastore.v1.Key> allocated = result.getInsertKeys().stream()
+              .map(Key::getPb).collect(Collectors.toList());
+          written(written, ImmutableList.<com.google.datastore.v1.Key>builder()
+              .addAll(created).addAll(allocated).build());
+        }
+
+        @Override
+        public void onFailure(final Throwable t) {
+          written(written, created);
+        }
+      }, MoreExecutors.directExecutor());
+      return response;
     }, MoreExecutors.directExecutor());
   }
 
+  private void written(final List<com.google.datastore.v1.Key> written,
+                       final List<com.google.datastore.v1.Key> created) {
+    final EntityCache cache = config.getEntityCache();
+    if (cache != null) {
+      cache.invalidate(written);
+    }
+    final NegativeCache negativeCache = config.getNegativeCache();
+    if (negativeCache != null) {
+      negativeCache.created(created);
+    }
+  }
+
+  private static List<com.google.datastore.v1.Key> mutatedKeys(final List<Mutation> mutations,
+                                                               final Set<Mutation.OperationCase> operations) {
+    final List<com.google.datastore.v1.Key> keys = new ArrayList<>(mutations.size());
+    for (final Mutation mutation : mutations) {
+      if (!operations.contains(mutation.getOperationCase())) {
+        continue;
+      }
+      switch (mutation.getOperationCase()) {
+        case INSERT:
+          keys.add(mutation.getInsert().getKey());
+          break;
+        case UPDATE:
+          keys.add(mutation.getUpdate().getKey());
+          break;
+        case UPSERT:
+          keys.add(mutation.getUpsert().getKey());
+          break;
+        case DELETE:
+          keys.add(mutation.getDelete());
+          break;
+        default:
+          break;
+      }
+    }
+    return keys;
+  }
+
   @Override
   public QueryResult execute(final Query statement) throws DatastoreException {
     return Futures.getChecked(executeAsync(statement), DatastoreException.class);
@@ -378,7 +864,7 @@ final class DatastoreImpl implements Datastore {
 
   @Override
   public ListenableFuture<QueryResult> executeAsync(final Query statement, final ListenableFuture<TransactionResult> txn) {
-    final ListenableFuture<Response> httpResponse = Futures.transformAsync(txn, result -> {
+    return Futures.transformAsync(txn, result -> {
       final String namespace = config.getNamespace();
       final RunQueryRequest.Builder request = RunQueryRequest.newBuilder()
         .setQuery(statement.getPb(namespace != null ? namespace : ""));
@@ -386,18 +872,11 @@ final class DatastoreImpl implements Datastore {
         request.setPartitionId(PartitionId.newBuilder().setNamespaceId(namespace));
       }
       final ByteString transaction = result.getTransaction();
-      if (transaction != null) {
-        request.setReadOptions(ReadOptions.newBuilder().setTransaction(transaction));
-      }
-      final ProtoHttpContent payload = new ProtoHttpContent(request.build());
-      return ListenableFutureAdapter.asGuavaFuture(prepareRequest("runQuery", payload).execute());
-    }, MoreExecutors.directExecutor());
-    return Futures.transformAsync(httpResponse, response -> {
-      if (!isSuccessful(response.getStatusCode())) {
-        throw new DatastoreException(response.getStatusCode(), response.getResponseBody());
+      if (transaction == null) {
+        return read("runQuery", request.build(), RunQueryResponse.parser(), QueryResult::build);
       }
-      final RunQueryResponse query = RunQueryResponse.parseFrom(streamResponse(response));
-      return Futures.immediateFuture(QueryResult.build(query));
+      request.setReadOptions(ReadOptions.newBuilder().setTransaction(transaction));
+      return call("runQuery", request.build(), RunQueryResponse.parser(), QueryResult::build);
     }, MoreExecutors.directExecutor());
   }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+/**
+ * Listens to the phases of a single request made by a {@code Datastore},
+ * for example to record them as spans of a distributed trace.
+ * <p>
+ * A listener is created for each request by the {@link Factory} set with
+ * {@code DatastoreConfig.builder().listenerFactory()}. Each phase carries the
+ * {@code System.nanoTime()} at which it happened. Requests that are retried
+ * or hedged go through the phases from {@code queued} to {@code decoded}
+ * once for each attempt, possibly concurrently. Phases are reported on the
+ * threads sending and receiving requests, so must not block. All methods do
+ * nothing by default.
+ * <p>
+ * When no factory is set nothing is reported, and no timestamps are taken.
+ */
+public interface DatastoreListener {
+
+  /**
+   * Creates a listener for each request.
+   */
+  @FunctionalInterface
+  interface Factory {
+
+    /**
+     * Create a listener for a request that is about to be made.
+     *
+     * @param method the API method, such as {@code lookup}.
+     * @return a new listener.
+     */
+    DatastoreListener newListener(String method);
+  }
+
+  /**
+   * An attempt is waiting to be sent, for an access token, the concurrency
+   * limiter or the byte budget.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void queued(final String method, final long nanos) {
+  }
+
+  /**
+   * A connection to send the attempt on has been acquired, either from the
+   * pool or by connecting and completing a TLS handshake.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void connectionAcquired(final String method, final long nanos) {
+  }
+
+  /**
+   * The request has been written to the connection.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void requestWritten(final String method, final long nanos) {
+  }
+
+  /**
+   * The first byte of the response has been received.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void firstByte(final String method, final long nanos) {
+  }
+
+  /**
+   * The response body has been received and inflated.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void bodyComplete(final String method, final long nanos) {
+  }
+
+  /**
+   * The response has been parsed into a protobuf message.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void decoded(final String method, final long nanos) {
+  }
+
+  /**
+   * The response has been converted into a result, such as a
+   * {@link QueryResult} of entities.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   */
+  default void converted(final String method, final long nanos) {
+  }
+
+  /**
+   * The request has completed, successfully or not.
+   *
+   * @param method the API method.
+   * @param nanos the time of this phase.
+   * @param statusCode the status code, as reported to {@link DatastoreMetrics}.
+   */
+  default void completed(final String method, final long nanos, final int statusCode) {
+  }
+}
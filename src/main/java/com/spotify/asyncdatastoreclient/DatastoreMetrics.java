@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+/**
+ * Receives measurements of the requests made by a {@code Datastore}.
+ * <p>
+ * Implement this interface to export measurements to a metrics library, or
+ * use {@link DatastoreStats} to keep them in histograms. Methods are called
+ * on the threads making and completing requests, so must be thread-safe and
+ * must not block. All methods do nothing by default.
+ * <p>
+ * Methods are named as in the Datastore API, such as {@code lookup},
+ * {@code runQuery} or {@code commit}. Status codes are HTTP status codes,
+ * with the gRPC transport's codes mapped to their HTTP equivalent, or zero
+ * if a request failed without a response, such as on a connection error.
+ */
+public interface DatastoreMetrics {
+
+  /**
+   * A request has been made, and is now in flight until it completes.
+   *
+   * @param method the API method.
+   */
+  default void started(final String method) {
+  }
+
+  /**
+   * An attempt at a request waited before being sent, for an access token,
+   * the concurrency limiter or the byte budget.
+   *
+   * @param method the API method.
+   * @param nanos the time waited in nanoseconds.
+   */
+  default void queued(final String method, final long nanos) {
+  }
+
+  /**
+   * An attempt at a request, sent to Datastore, has completed.
+   *
+   * @param method the API method.
+   * @param statusCode the status code.
+   * @param nanos the time from sending the request to its response in nanoseconds.
+   */
+  default void attempted(final String method, final int statusCode, final long nanos) {
+  }
+
+  /**
+   * A request is being retried.
+   *
+   * @param method the API method.
+   */
+  default void retried(final String method) {
+  }
+
+  /**
+   * A request was not made, as an identical request already in flight will
+   * answer it.
+   *
+   * @param method the API method.
+   */
+  default void deduplicated(final String method) {
+  }
+
+  /**
+   * A request has completed, including any time spent waiting and retrying.
+   *
+   * @param method the API method.
+   * @param statusCode the status code.
+   * @param nanos the time from the request being made to its result in nanoseconds.
+   */
+  default void completed(final String method, final int statusCode, final long nanos) {
+  }
+
+  /**
+   * A request body has been sent.
+   *
+   * @param method the API method.
+   * @param bytes the size of the request message in bytes.
+   */
+  default void requestBytes(final String method, final long bytes) {
+  }
+
+  /**
+   * A response body has been received.
+   *
+   * @param method the API method.
+   * @param wireBytes the size of the response as received, possibly compressed,
+   *                  or -1 if not known.
+   * @param bytes the size of the response message in bytes.
+   */
+  default void responseBytes(final String method, final long wireBytes, final long bytes) {
+  }
+
+  /**
+   * Entities have been read or written.
+   *
+   * @param method the API method.
+   * @param count the number of entities found, returned or mutated.
+   */
+  default void entities(final String method, final int count) {
+  }
+
+  /**
+   * Index entries have been updated by a commit.
+   *
+   * @param count the number of index updates.
+   */
+  default void indexUpdates(final int count) {
+  }
+
+  /**
+   * Metrics that are discarded.
+   *
+   * @return metrics that do nothing.
+   */
+  static DatastoreMetrics noop() {
+    return NoopMetrics.INSTANCE;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics kept in memory, for reporting to any metrics library.
+ * <p>
+ * Measurements are kept per API method in lock-free {@link Histogram}s and
+ * counters, so may be read at any time while requests are being made.
+ * Latencies are recorded in microseconds and sizes in bytes.
+ * <p>
+ * For example:
+ * <pre>
+ * final DatastoreStats stats = new DatastoreStats();
+ * final DatastoreConfig config = DatastoreConfig.builder()
+ *     .metrics(stats)
+ *     ...
+ *     .build();
+ *
+ * final DatastoreStats.MethodStats lookups = stats.getMethod("lookup");
+ * System.out.println("p99: " + lookups.getLatency(200).getQuantile(0.99) + "us");
+ * </pre>
+ */
+public final class DatastoreStats implements DatastoreMetrics {
+
+  private final ConcurrentMap<String, MethodStats> methods = new ConcurrentHashMap<>();
+  private final AtomicLong indexUpdates = new AtomicLong();
+
+  /**
+   * The measurements of a single API method.
+   */
+  public static final class MethodStats {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong entities = new AtomicLong();
+    private final ConcurrentMap<Integer, Histogram> latency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Histogram> attemptLatency = new ConcurrentHashMap<>();
+    private final Histogram queueTime = new Histogram();
+    private final Histogram requestBytes = new Histogram();
+    private final Histogram responseWireBytes = new Histogram();
+    private final Histogram responseBytes = new Histogram();
+
+    private MethodStats() {}
+
+    /**
+     * Return the number of requests currently in flight.
+     */
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    /**
+     * Return the number of times requests have been retried.
+     */
+    public long getRetries() {
+      return retries.get();
+    }
+
+    /**
+     * Return the number of requests saved by sharing the response of an
+     * identical request in flight.
+     */
+    public long getDeduplicated() {
+      return deduplicated.get();
+    }
+
+    /**
+     * Return the number of entities found, returned or mutated.
+     */
+    public long getEntities() {
+      return entities.get();
+    }
+
+    /**
+     * Return the latency in microseconds of requests, including waiting and
+     * retries, keyed by status code.
+     */
+    public Map<Integer, Histogram> getLatency() {
+      return ImmutableMap.copyOf(latency);
+    }
+
+    /**
+     * Return the latency in microseconds of requests completing with a
+     * status code, or an empty histogram if there are none.
+     *
+     * @param statusCode the status code.
+     */
+    public Histogram getLatency(final int statusCode) {
+      return latency.getOrDefault(statusCode, new Histogram());
+    }
+
+    /**
+     * Return the latency in microseconds of individual attempts sent to
+     * Datastore, keyed by status code.
+     */
+    public Map<Integer, Histogram> getAttemptLatency() {
+      return ImmutableMap.copyOf(attemptLatency);
+    }
+
+    /**
+     * Return the time in microseconds attempts waited before being sent.
+     */
+    public Histogram getQueueTime() {
+      return queueTime;
+    }
+
+    /**
+     * Return the size in bytes of request messages.
+     */
+    public Histogram getRequestBytes() {
+      return requestBytes;
+    }
+
+    /**
+     * Return the size in bytes of responses as received, before being
+     * decompressed, where known.
+     */
+    public Histogram getResponseWireBytes() {
+      return responseWireBytes;
+    }
+
+    /**
+     * Return the size in bytes of response messages.
+     */
+    public Histogram getResponseBytes() {
+      return responseBytes;
+    }
+  }
+
+  /**
+   * Return the measurements of every API method called so far, keyed by
+   * method name.
+   */
+  public Map<String, MethodStats> getMethods() {
+    return ImmutableMap.copyOf(methods);
+  }
+
+  /**
+   * Return the measurements of an API method, such as {@code lookup}.
+   *
+   * @param method the API method.
+   */
+  public MethodStats getMethod(final String method) {
+    return methods.computeIfAbsent(method, m -> new MethodStats());
+  }
+
+  /**
+   * Return the number of index entries updated by commits.
+   */
+  public long getIndexUpdates() {
+    return indexUpdates.get();
+  }
+
+  @Override
+  public void started(final String method) {
+    getMethod(method).inFlight.incrementAndGet();
+  }
+
+  @Override
+  public void queued(final String method, final long nanos) {
+    getMethod(method).queueTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  @Override
+  public void attempted(final String method, final int statusCode, final long nanos) {
+    record(getMethod(method).attemptLatency, statusCode, nanos);
+  }
+
+  @Override
+  public void retried(final String method) {
+    getMethod(method).retries.incrementAndGet();
+  }
+
+  @Override
+  public void deduplicated(final String method) {
+    getMethod(method).deduplicated.incrementAndGet();
+  }
+
+  @Override
+  public void completed(final String method, final int statusCode, final long nanos) {
+    final MethodStats stats = getMethod(method);
+    stats.inFlight.decrementAndGet();
+    record(stats.latency, statusCode, nanos);
+  }
+
+  @Override
+  public void requestBytes(final String method, final long bytes) {
+    getMethod(method).requestBytes.record(bytes);
+  }
+
+  @Override
+  public void responseBytes(final String method, final long wireBytes, final long bytes) {
+    final MethodStats stats = getMethod(method);
+    if (wireBytes >= 0) {
+      stats.responseWireBytes.record(wireBytes);
+    }
+    stats.responseBytes.record(bytes);
+  }
+
+  @Override
+  public void entities(final String method, final int count) {
+    getMethod(method).entities.addAndGet(count);
+  }
+
+  @Override
+  public void indexUpdates(final int count) {
+    indexUpdates.addAndGet(count);
+  }
+
+  private static void record(final ConcurrentMap<Integer, Histogram> histograms,
+                             final int statusCode, final long nanos) {
+    histograms.computeIfAbsent(statusCode, s -> new Histogram()).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+}
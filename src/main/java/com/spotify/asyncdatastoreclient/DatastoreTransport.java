@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.io.Closeable;
+
+/**
+ * The transport used by {@code Datastore} to call the Datastore API.
+ * <p>
+ * A transport sends a single request message to a named API method, such as
+ * {@code lookup} or {@code commit}, and asynchronously returns the parsed
+ * response. By default requests are sent as protobuf over HTTP using
+ * async-http-client, however a different transport, such as {@code grpc()},
+ * may be supplied by calling {@code DatastoreConfig.builder().transport()}.
+ * <p>
+ * Implementations must fail the returned future with a
+ * {@link DatastoreException} carrying the status code of the response when
+ * the request is not successful.
+ */
+public interface DatastoreTransport extends Closeable {
+
+  /**
+   * Creates a transport for a given configuration.
+   */
+  @FunctionalInterface
+  interface Factory {
+
+    /**
+     * Create a new transport.
+     *
+     * @param config the Datastore configuration.
+     * @return a new transport.
+     */
+    DatastoreTransport create(DatastoreConfig config);
+  }
+
+  /**
+   * The default transport; protobuf over HTTP using async-http-client.
+   *
+   * @return a factory for the default transport.
+   */
+  static Factory http() {
+    return HttpTransport::new;
+  }
+
+  /**
+   * A gRPC transport that multiplexes concurrent requests over a single
+   * HTTP/2 connection.
+   * <p>
+   * Requires {@code io.grpc:grpc-netty-shaded} on the classpath.
+   *
+   * @return a factory for the gRPC transport.
+   */
+  static Factory grpc() {
+    return grpc(1);
+  }
+
+  /**
+   * A gRPC transport that multiplexes concurrent requests over a fixed
+   * number of HTTP/2 connections.
+   * <p>
+   * Requires {@code io.grpc:grpc-netty-shaded} on the classpath.
+   *
+   * @param connections the number of connections to open.
+   * @return a factory for the gRPC transport.
+   */
+  static Factory grpc(final int connections) {
+    if (connections < 1) {
+      throw new IllegalArgumentException("At least one connection is required");
+    }
+    return config -> new GrpcTransport(config, connections);
+  }
+
+  /**
+   * Send a request to a Datastore API method.
+   *
+   * @param method the API method name, such as {@code lookup}.
+   * @param request the request message.
+   * @param parser the parser for the response message.
+   * @param context the access token and deadline of the request. The request
+   *                should be aborted once the deadline has passed, and when the
+   *                returned future is cancelled.
+   * @param <T> the response message type.
+   * @return the response message.
+   */
+  <T> ListenableFuture<T> send(final String method,
+                               final MessageLite request,
+                               final Parser<T> parser,
+                               final CallContext context);
+}
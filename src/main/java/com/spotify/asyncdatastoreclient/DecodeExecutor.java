@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The default executor for decoding responses, shared by all clients.
+ * <p>
+ * A fork join pool in async mode with a thread per processor, created the
+ * first time it is used.
+ */
+final class DecodeExecutor {
+
+  private DecodeExecutor() {}
+
+  static Executor shared() {
+    return Holder.INSTANCE;
+  }
+
+  private static final class Holder {
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    private static final Executor INSTANCE = new ForkJoinPool(
+        Runtime.getRuntime().availableProcessors(),
+        pool -> {
+          final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+          thread.setName("datastore-decode-" + threads.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        },
+        null,
+        true);
+  }
+}
@@ -0,0 +1,746 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.datastore.v1.PartitionId;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A size-bounded cache of entities read by key.
+ * <p>
+ * Lookups made outside of a transaction are answered from the cache where
+ * possible, and only keys that are not cached are looked up. Entities expire
+ * a time after they were read, which may be set per kind. Entities written or
+ * deleted through a client using the cache are removed from it, so the cache
+ * is only consistent with writes made through such clients.
+ * <p>
+ * Once the cache is full, entities are evicted in approximately least
+ * recently used order: the cache is split into segments for concurrency,
+ * and each evicts its own least recently used entities. A cache may be
+ * shared between clients of the same project.
+ * <p>
+ * To cache more entities than fit on the heap, give the cache off-heap
+ * memory. Every entity is then also stored serialized in direct memory,
+ * which the garbage collector doesn't scan, and decoded when read. The
+ * entities on the heap become a small tier of the most recently used in
+ * front of it. The JVM must allow enough direct memory, with
+ * {@code -XX:MaxDirectMemorySize}.
+ * <p>
+ * Rather than every caller waiting for a lookup once a hot entity expires,
+ * entities read shortly before they expire can be refreshed ahead in the
+ * background, and entities read shortly after they expire can be served
+ * stale while they are refreshed. Entities can also be served stale for a
+ * longer time when looking them up fails as Datastore is unavailable, or
+ * doesn't respond in time.
+ * <p>
+ * So that a restarted service starts with a warm cache, the entities on the
+ * heap can be saved to a snapshot file at an interval, and when the client
+ * is closed. A client created with the cache loads the snapshot, then looks
+ * up its entities again in the background to refresh them.
+ * <p>
+ * Use {@code EntityCache.builder()} to build a cache. Defaults are assigned
+ * for any options not provided.
+ */
+public final class EntityCache {
+
+  private static final Long DEFAULT_MAX_ENTRIES = 10000L;
+  private static final Long DEFAULT_TTL = 60000L;
+  private static final Long DEFAULT_OFF_HEAP_BYTES = 0L;
+  private static final Long DEFAULT_SNAPSHOT_INTERVAL = 60000L;
+  private static final Long DEFAULT_REFRESH_AHEAD = 0L;
+  private static final Long DEFAULT_STALE_WHILE_REVALIDATE = 0L;
+  private static final Long DEFAULT_STALE_IF_ERROR = 0L;
+
+  // the number of recently invalidated keys remembered
+  private static final int MAX_TOMBSTONES = 10000;
+
+  private static final Logger log = LoggerFactory.getLogger(Datastore.class);
+
+  private final long maxEntries;
+  private final long ttl;
+  private final Map<String, Long> kindTtls;
+  private final long offHeapBytes;
+  private final Path snapshotFile;
+  private final long snapshotInterval;
+  private final long refreshAhead;
+  private final long staleWhileRevalidate;
+  private final long staleIfError;
+  // how long, in nanoseconds, entities are kept after they expire
+  private final long retention;
+
+  private final Cache<com.google.datastore.v1.Key, Cached> entities;
+  private final OffHeapStore offHeap;
+  private final AtomicLong generation = new AtomicLong();
+  // the generation at which recently written keys were invalidated
+  private final ConcurrentMap<com.google.datastore.v1.Key, Long> tombstones = new ConcurrentHashMap<>();
+  // the latest generation of any invalidation that is no longer remembered
+  private final AtomicLong forgotten = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong offHeapHits = new AtomicLong();
+  private final AtomicBoolean restored = new AtomicBoolean();
+  private final Set<com.google.datastore.v1.Key> refreshing = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean snapshotting = new AtomicBoolean();
+  private final Object snapshotLock = new Object();
+  // the number of open clients using the cache, and the snapshot task they share
+  private int clients;
+  private ScheduledFuture<?> snapshots;
+
+  /**
+   * An entity and the time it expires.
+   */
+  private static final class Cached {
+
+    private final Entity entity;
+    private final long expiresAt;
+
+    private Cached(final Entity entity, final long expiresAt) {
+      this.entity = entity;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private EntityCache(final Long maxEntries, final Long ttl, final Map<String, Long> kindTtls,
+                      final Long offHeapBytes, final Path snapshotFile, final Long snapshotInterval,
+                      final Long refreshAhead, final Long staleWhileRevalidate, final Long staleIfError) {
+    this.maxEntries = firstNonNull(maxEntries, DEFAULT_MAX_ENTRIES);
+    this.ttl = firstNonNull(ttl, DEFAULT_TTL);
+    this.kindTtls = kindTtls;
+    this.offHeapBytes = firstNonNull(offHeapBytes, DEFAULT_OFF_HEAP_BYTES);
+    this.offHeap = this.offHeapBytes > 0 ? new OffHeapStore(this.offHeapBytes) : null;
+    this.snapshotFile = snapshotFile;
+    this.snapshotInterval = firstNonNull(snapshotInterval, DEFAULT_SNAPSHOT_INTERVAL);
+    this.refreshAhead = firstNonNull(refreshAhead, DEFAULT_REFRESH_AHEAD);
+    this.staleWhileRevalidate = firstNonNull(staleWhileRevalidate, DEFAULT_STALE_WHILE_REVALIDATE);
+    this.staleIfError = firstNonNull(staleIfError, DEFAULT_STALE_IF_ERROR);
+    this.retention = TimeUnit.MILLISECONDS.toNanos(Math.max(this.staleWhileRevalidate, this.staleIfError));
+    final long maxTtl = kindTtls.values().stream().reduce(this.ttl, Math::max);
+    this.entities = CacheBuilder.newBuilder()
+        .maximumSize(this.maxEntries)
+        .expireAfterWrite(Math.max(1, TimeUnit.MILLISECONDS.toNanos(maxTtl) + retention), TimeUnit.NANOSECONDS)
+        .<com.google.datastore.v1.Key, Cached>removalListener(removal -> {
+          // entities evicted from the heap are still off-heap
+          if (removal.wasEvicted() && offHeap == null) {
+            evictions.incrementAndGet();
+          }
+        })
+        .build();
+  }
+
+  public static final class Builder {
+    private Long maxEntries;
+    private Long ttl;
+    private Long offHeapBytes;
+    private Path snapshotFile;
+    private Long snapshotInterval;
+    private Long refreshAhead;
+    private Long staleWhileRevalidate;
+    private Long staleIfError;
+    private final ImmutableMap.Builder<String, Long> kindTtls = ImmutableMap.builder();
+
+    private Builder() {}
+
+    /**
+     * Creates a new {@code EntityCache}.
+     *
+     * @return an entity cache.
+     */
+    public EntityCache build() {
+      return new EntityCache(maxEntries, ttl, kindTtls.build(), offHeapBytes, snapshotFile, snapshotInterval,
+                             refreshAhead, staleWhileRevalidate, staleIfError);
+    }
+
+    /**
+     * Set the maximum number of entities cached.
+     *
+     * @param maxEntries the number of entities.
+     * @return this cache builder.
+     */
+    public Builder maxEntries(final long maxEntries) {
+      checkArgument(maxEntries > 0, "maxEntries must be positive");
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * Set the number of bytes of direct memory to cache serialized entities
+     * in, behind the entities cached on the heap. Zero, the default, caches
+     * entities on the heap only.
+     *
+     * @param offHeapBytes the number of bytes.
+     * @return this cache builder.
+     */
+    public Builder offHeapBytes(final long offHeapBytes) {
+      checkArgument(offHeapBytes >= 0, "offHeapBytes must not be negative");
+      this.offHeapBytes = offHeapBytes;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds before entities expire from which reading
+     * them also refreshes them in the background, so that entities in use
+     * don't expire. Zero, the default, disables refreshing ahead.
+     *
+     * @param refreshAhead the time in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder refreshAhead(final long refreshAhead) {
+      checkArgument(refreshAhead >= 0, "refreshAhead must not be negative");
+      this.refreshAhead = refreshAhead;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds after entities expire for which they are
+     * still served, while being refreshed in the background. Zero, the
+     * default, looks up expired entities before serving them.
+     *
+     * @param staleWhileRevalidate the time in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder staleWhileRevalidate(final long staleWhileRevalidate) {
+      checkArgument(staleWhileRevalidate >= 0, "staleWhileRevalidate must not be negative");
+      this.staleWhileRevalidate = staleWhileRevalidate;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds after entities expire for which they are
+     * served if looking them up fails with a server error, a timeout or no
+     * response. Zero, the default, fails such lookups.
+     *
+     * @param staleIfError the time in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder staleIfError(final long staleIfError) {
+      checkArgument(staleIfError >= 0, "staleIfError must not be negative");
+      this.staleIfError = staleIfError;
+      return this;
+    }
+
+    /**
+     * Set a file to save the entities cached on the heap to, and to load
+     * them from when a client is created. By default nothing is saved.
+     *
+     * @param snapshotFile the path of the file.
+     * @return this cache builder.
+     */
+    public Builder snapshotFile(final Path snapshotFile) {
+      this.snapshotFile = snapshotFile;
+      return this;
+    }
+
+    /**
+     * Set the interval in milliseconds at which cached entities are saved
+     * to the snapshot file. The default is one minute.
+     *
+     * @param snapshotInterval the interval in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder snapshotInterval(final long snapshotInterval) {
+      checkArgument(snapshotInterval > 0, "snapshotInterval must be positive");
+      this.snapshotInterval = snapshotInterval;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds after which cached entities expire.
+     *
+     * @param ttl the time in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder ttl(final long ttl) {
+      checkArgument(ttl >= 0, "ttl must not be negative");
+      this.ttl = ttl;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds after which cached entities of a kind
+     * expire, instead of the default. Zero means entities of the kind are
+     * not cached.
+     *
+     * @param kind the kind of entities.
+     * @param ttl the time in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder ttl(final String kind, final long ttl) {
+      checkArgument(ttl >= 0, "ttl must not be negative");
+      this.kindTtls.put(kind, ttl);
+      return this;
+    }
+  }
+
+  public static EntityCache.Builder builder() {
+    return new EntityCache.Builder();
+  }
+
+  public long getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getOffHeapBytes() {
+    return offHeapBytes;
+  }
+
+  public long getRefreshAhead() {
+    return refreshAhead;
+  }
+
+  public long getStaleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+
+  public long getStaleIfError() {
+    return staleIfError;
+  }
+
+  public Path getSnapshotFile() {
+    return snapshotFile;
+  }
+
+  public long getSnapshotInterval() {
+    return snapshotInterval;
+  }
+
+  /**
+   * Return the number of keys found in the cache.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Return the number of keys not found in the cache, that were looked up.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Return the number of entities evicted from the cache as it was full or
+   * they expired.
+   */
+  public long getEvictions() {
+    // expired entities are counted as they are found to be
+    entities.cleanUp();
+    return evictions.get() + (offHeap != null ? offHeap.evictions() : 0);
+  }
+
+  /**
+   * Return the number of entities read from off-heap, rather than from the
+   * heap.
+   */
+  public long getOffHeapHits() {
+    return offHeapHits.get();
+  }
+
+  /**
+   * Return the number of bytes of off-heap memory holding entities.
+   */
+  public long getOffHeapUsedBytes() {
+    return offHeap != null ? offHeap.usedBytes() : 0;
+  }
+
+  /**
+   * Return the approximate number of entities cached on the heap.
+   */
+  public long size() {
+    return entities.size();
+  }
+
+  /**
+   * Remove every entity from the cache.
+   */
+  public void invalidateAll() {
+    forget(generation.incrementAndGet());
+    entities.invalidateAll();
+    if (offHeap != null) {
+      offHeap.clear();
+    }
+  }
+
+  /**
+   * The entities read from the cache for a lookup.
+   */
+  static final class Read {
+
+    private final List<Entity> hits = new ArrayList<>();
+    private final List<com.google.datastore.v1.Key> misses = new ArrayList<>();
+    private final Map<com.google.datastore.v1.Key, Entity> fallbacks = new HashMap<>();
+    private final List<com.google.datastore.v1.Key> refresh = new ArrayList<>();
+
+    private Read() {}
+
+    /**
+     * Return the entities that may be served.
+     */
+    List<Entity> getHits() {
+      return hits;
+    }
+
+    /**
+     * Return the keys that must be looked up.
+     */
+    List<com.google.datastore.v1.Key> getMisses() {
+      return misses;
+    }
+
+    /**
+     * Return the stale entities, by key, that may be served if looking them
+     * up fails.
+     */
+    Map<com.google.datastore.v1.Key, Entity> getFallbacks() {
+      return fallbacks;
+    }
+
+    /**
+     * Return the keys of entities served that should be refreshed, and that
+     * are not already being refreshed.
+     */
+    List<com.google.datastore.v1.Key> getRefresh() {
+      return refresh;
+    }
+  }
+
+  /**
+   * Return the cached entity for a key, or null if it is not cached.
+   */
+  Entity get(final com.google.datastore.v1.Key key) {
+    final Read read = read(ImmutableList.of(key));
+    return read.hits.isEmpty() ? null : read.hits.get(0);
+  }
+
+  /**
+   * Read the entities for keys, sorting them into those that may be served,
+   * those that must be looked up, and those that should be refreshed.
+   */
+  Read read(final List<com.google.datastore.v1.Key> keys) {
+    final long now = System.nanoTime();
+    final long refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAhead);
+    final long staleWhileRevalidateNanos = TimeUnit.MILLISECONDS.toNanos(staleWhileRevalidate);
+    final long staleIfErrorNanos = TimeUnit.MILLISECONDS.toNanos(staleIfError);
+    final Read read = new Read();
+    for (final com.google.datastore.v1.Key key : keys) {
+      final com.google.datastore.v1.Key cacheKey = cacheKey(key);
+      final Cached cached = find(cacheKey, now);
+      if (cached != null && cached.expiresAt + staleWhileRevalidateNanos - now > 0) {
+        hits.incrementAndGet();
+        read.hits.add(cached.entity);
+        if (cached.expiresAt - refreshAheadNanos - now <= 0 && refreshing.add(cacheKey)) {
+          read.refresh.add(key);
+        }
+      } else {
+        misses.incrementAndGet();
+        read.misses.add(key);
+        if (cached != null && cached.expiresAt + staleIfErrorNanos - now > 0) {
+          read.fallbacks.put(key, cached.entity);
+        }
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Return the entity cached for a key, whether or not it has expired, as
+   * long as it is kept.
+   */
+  private Cached find(final com.google.datastore.v1.Key cacheKey, final long now) {
+    final Cached cached = entities.getIfPresent(cacheKey);
+    if (cached != null) {
+      if (cached.expiresAt + retention - now > 0) {
+        return cached;
+      }
+      entities.asMap().remove(cacheKey, cached);
+      if (offHeap == null) {
+        evictions.incrementAndGet();
+      }
+    }
+    return offHeap != null ? findOffHeap(cacheKey) : null;
+  }
+
+  private Cached findOffHeap(final com.google.datastore.v1.Key cacheKey) {
+    final long readGeneration = generation.get();
+    final OffHeapStore.Value value = offHeap.get(cacheKey.toByteArray());
+    if (value == null) {
+      return null;
+    }
+    final Entity entity;
+    try {
+      entity = Entity.builder(com.google.datastore.v1.Entity.parseFrom(value.getBytes())).build();
+    } catch (final InvalidProtocolBufferException e) {
+      return null;
+    }
+    offHeapHits.incrementAndGet();
+    // off-heap entries are kept until the end of their retention
+    final Cached cached = new Cached(entity, value.getExpiresAt() - retention);
+    // keep it on the heap while it is in use, unless it was invalidated while being read
+    entities.put(cacheKey, cached);
+    if (isInvalidatedSince(cacheKey, readGeneration)) {
+      entities.invalidate(cacheKey);
+    }
+    return cached;
+  }
+
+  /**
+   * Allow keys to be refreshed again, once they have been.
+   */
+  void refreshed(final Collection<com.google.datastore.v1.Key> keys) {
+    for (final com.google.datastore.v1.Key key : keys) {
+      refreshing.remove(cacheKey(key));
+    }
+  }
+
+  /**
+   * Register a client using the cache, saving it to the snapshot file at an
+   * interval while any client is open.
+   */
+  synchronized void attach() {
+    if (snapshotFile != null && clients++ == 0) {
+      // the timer only hands the snapshot over, as writing it blocks
+      snapshots = SharedScheduler.INSTANCE.scheduleWithFixedDelay(
+          () -> {
+            if (snapshotting.compareAndSet(false, true)) {
+              SnapshotExecutor.INSTANCE.execute(() -> {
+                try {
+                  snapshot();
+                } finally {
+                  snapshotting.set(false);
+                }
+              });
+            }
+          }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Unregister a client using the cache, saving it to the snapshot file once
+   * the last client is closed.
+   */
+  void detach() {
+    synchronized (this) {
+      if (snapshotFile == null || clients == 0 || --clients > 0) {
+        return;
+      }
+      snapshots.cancel(false);
+      snapshots = null;
+    }
+    snapshot();
+  }
+
+  private void snapshot() {
+    try {
+      writeSnapshot();
+    } catch (final IOException | RuntimeException e) {
+      log.warn("Failed to save entity cache snapshot", e);
+    }
+  }
+
+  /**
+   * Save the entities cached on the heap, that have not expired, to the
+   * snapshot file.
+   */
+  void writeSnapshot() throws IOException {
+    final long now = System.nanoTime();
+    final long nowMillis = System.currentTimeMillis();
+    final List<CacheSnapshot.Entry> entries = new ArrayList<>();
+    for (final Map.Entry<com.google.datastore.v1.Key, Cached> entry : entities.asMap().entrySet()) {
+      final long remaining = entry.getValue().expiresAt - now;
+      if (remaining > 0) {
+        entries.add(new CacheSnapshot.Entry(entry.getKey().toByteArray(),
+                                            entry.getValue().entity.getPb().toByteArray(),
+                                            nowMillis + TimeUnit.NANOSECONDS.toMillis(remaining)));
+      }
+    }
+    // the last client may be closed while a snapshot is saved in the background
+    synchronized (snapshotLock) {
+      CacheSnapshot.write(snapshotFile, entries);
+    }
+  }
+
+  /**
+   * Load the entities in the snapshot file that have not expired, the first
+   * time this is called, returning their keys.
+   */
+  List<com.google.datastore.v1.Key> restore() {
+    if (snapshotFile == null || !restored.compareAndSet(false, true)) {
+      return ImmutableList.of();
+    }
+    final List<CacheSnapshot.Entry> entries;
+    try {
+      entries = CacheSnapshot.read(snapshotFile);
+    } catch (final IOException e) {
+      log.warn("Failed to load entity cache snapshot", e);
+      return ImmutableList.of();
+    }
+    final long now = System.nanoTime();
+    final long nowMillis = System.currentTimeMillis();
+    final List<com.google.datastore.v1.Key> keys = new ArrayList<>(entries.size());
+    for (final CacheSnapshot.Entry entry : entries) {
+      final long remaining = entry.getExpiresAt() - nowMillis;
+      if (remaining <= 0) {
+        continue;
+      }
+      try {
+        final com.google.datastore.v1.Key key = com.google.datastore.v1.Key.parseFrom(entry.getKey());
+        final long expiresAt = now + TimeUnit.MILLISECONDS.toNanos(remaining);
+        entities.put(key, new Cached(Entity.builder(com.google.datastore.v1.Entity.parseFrom(entry.getEntity()))
+                                         .build(), expiresAt));
+        if (offHeap != null) {
+          offHeap.put(entry.getKey(), entry.getEntity(), expiresAt + retention);
+        }
+        keys.add(key);
+      } catch (final InvalidProtocolBufferException e) {
+        log.warn("Skipping corrupt entity in cache snapshot", e);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Return the generation of the cache, which changes whenever entities are
+   * invalidated.
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Cache entities read when the cache was at a generation, unless they
+   * have been invalidated since, as they may have been read before a write.
+   */
+  void putAll(final Collection<Entity> read, final long readGeneration) {
+    final long now = System.nanoTime();
+    for (final Entity entity : read) {
+      final com.google.datastore.v1.Key key = cacheKey(entity.getPb().getKey());
+      final long kindTtl = kindTtl(key);
+      if (kindTtl == 0 || isInvalidatedSince(key, readGeneration)) {
+        continue;
+      }
+      final long expiresAt = now + TimeUnit.MILLISECONDS.toNanos(kindTtl);
+      entities.put(key, new Cached(entity, expiresAt));
+      if (offHeap != null) {
+        offHeap.put(key.toByteArray(), entity.getPb().toByteArray(), expiresAt + retention);
+      }
+      // a write to the key raced with the read, so forget what it read
+      if (isInvalidatedSince(key, readGeneration)) {
+        invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Remove entities that are being, or have been, written.
+   */
+  void invalidate(final Collection<com.google.datastore.v1.Key> keys) {
+    final long invalidated = generation.incrementAndGet();
+    for (final com.google.datastore.v1.Key key : keys) {
+      final com.google.datastore.v1.Key cacheKey = cacheKey(key);
+      tombstones.put(cacheKey, invalidated);
+      invalidate(cacheKey);
+    }
+    if (tombstones.size() > MAX_TOMBSTONES) {
+      forget(invalidated);
+    }
+  }
+
+  /**
+   * Return whether an entity may have been written since a generation.
+   */
+  private boolean isInvalidatedSince(final com.google.datastore.v1.Key cacheKey, final long readGeneration) {
+    final Long invalidated = tombstones.get(cacheKey);
+    return invalidated != null && invalidated > readGeneration || forgotten.get() > readGeneration;
+  }
+
+  /**
+   * Forget the keys invalidated up to a generation, treating every entity
+   * read before it as possibly written.
+   */
+  private void forget(final long invalidated) {
+    // raised before the tombstones are removed, so that a read never misses both
+    forgotten.accumulateAndGet(invalidated, Math::max);
+    tombstones.values().removeIf(stamp -> stamp <= invalidated);
+  }
+
+  private void invalidate(final com.google.datastore.v1.Key cacheKey) {
+    entities.invalidate(cacheKey);
+    if (offHeap != null) {
+      offHeap.remove(cacheKey.toByteArray());
+    }
+  }
+
+  private long kindTtl(final com.google.datastore.v1.Key key) {
+    if (key.getPathCount() == 0) {
+      return 0;
+    }
+    return kindTtls.getOrDefault(key.getPath(key.getPathCount() - 1).getKind(), ttl);
+  }
+
+  /**
+   * Return a key that identifies an entity in the cache: its path and
+   * namespace, without the project the server fills in.
+   */
+  // package-private for testing
+  static com.google.datastore.v1.Key cacheKey(final com.google.datastore.v1.Key key) {
+    final String namespace = key.getPartitionId().getNamespaceId();
+    if (namespace.isEmpty()) {
+      return key.hasPartitionId() ? key.toBuilder().clearPartitionId().build() : key;
+    }
+    if (key.getPartitionId().getProjectId().isEmpty()) {
+      return key;
+    }
+    return key.toBuilder().setPartitionId(PartitionId.newBuilder().setNamespaceId(namespace)).build();
+  }
+
+  /**
+   * The thread saving snapshots of all caches, created the first time it is
+   * used.
+   */
+  private static final class SnapshotExecutor {
+
+    private static final Executor INSTANCE = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-snapshot-%d").build());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Runs a list of requests with at most a given number in flight at once,
+ * collecting their results in order.
+ * <p>
+ * The first request to fail fails the whole, and cancels the requests still
+ * in flight; cancelling the returned future also cancels them.
+ */
+final class FanOut<T> {
+
+  private final List<Supplier<ListenableFuture<T>>> requests;
+  private final AtomicReferenceArray<T> results;
+  private final AtomicInteger remaining;
+  private final AtomicInteger drains = new AtomicInteger();
+  private final Set<ListenableFuture<T>> running = ConcurrentHashMap.newKeySet();
+  private final SettableFuture<List<T>> result = SettableFuture.create();
+
+  private int available;
+  private int next;
+
+  private FanOut(final List<Supplier<ListenableFuture<T>>> requests, final int parallelism) {
+    this.requests = requests;
+    this.results = new AtomicReferenceArray<>(requests.size());
+    this.remaining = new AtomicInteger(requests.size());
+    this.available = Math.max(1, parallelism);
+  }
+
+  /**
+   * Start the requests.
+   *
+   * @param requests the requests to make.
+   * @param parallelism the maximum number of requests in flight at once.
+   */
+  static <T> ListenableFuture<List<T>> start(final List<Supplier<ListenableFuture<T>>> requests,
+                                             final int parallelism) {
+    if (requests.isEmpty()) {
+      return Futures.immediateFuture(ImmutableList.of());
+    }
+    final FanOut<T> fanOut = new FanOut<>(requests, parallelism);
+    fanOut.result.addListener(fanOut::cancelRunning, MoreExecutors.directExecutor());
+    fanOut.drain();
+    return fanOut.result;
+  }
+
+  /**
+   * Start as many requests as there is room for. Requests that complete
+   * immediately call back into this, so only the outermost call loops,
+   * rather than recursing once per request.
+   */
+  private void drain() {
+    if (drains.getAndIncrement() != 0) {
+      return;
+    }
+    do {
+      while (true) {
+        final int index;
+        synchronized (this) {
+          if (available == 0 || next == requests.size() || result.isDone()) {
+            break;
+          }
+          available--;
+          index = next++;
+        }
+        send(index);
+      }
+    } while (drains.decrementAndGet() != 0);
+  }
+
+  private void send(final int index) {
+    ListenableFuture<T> future;
+    try {
+      future = requests.get(index).get();
+    } catch (final RuntimeException e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    final ListenableFuture<T> sent = future;
+    running.add(sent);
+    Futures.addCallback(sent, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T value) {
+        running.remove(sent);
+        results.set(index, value);
+        if (remaining.decrementAndGet() == 0) {
+          final List<T> values = new ArrayList<>(results.length());
+          for (int i = 0; i < results.length(); i++) {
+            values.add(results.get(i));
+          }
+          result.set(values);
+          return;
+        }
+        synchronized (FanOut.this) {
+          available++;
+        }
+        drain();
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        running.remove(sent);
+        result.setException(t);
+      }
+    }, MoreExecutors.directExecutor());
+    if (result.isDone()) {
+      cancelRunning();
+    }
+  }
+
+  private void cancelRunning() {
+    for (final ListenableFuture<T> future : running) {
+      future.cancel(true);
+    }
+  }
+}
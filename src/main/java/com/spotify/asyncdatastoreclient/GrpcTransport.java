@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ClientStreamTracer;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+
+/**
+ * A transport that calls the Datastore v1 gRPC service.
+ * <p>
+ * Requests are multiplexed as concurrent HTTP/2 streams over a small,
+ * fixed number of connections, rather than holding a pooled HTTP/1.1
+ * connection for each request.
+ */
+final class GrpcTransport implements DatastoreTransport {
+
+  private static final String SERVICE_NAME = "google.datastore.v1.Datastore";
+  private static final String USER_AGENT = "Datastore-Java-Client/1.0.0 (grpc)";
+
+  private static final Metadata.Key<String> AUTHORIZATION =
+      Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+  private static final Metadata.Key<String> REQUEST_PARAMS =
+      Metadata.Key.of("x-goog-request-params", Metadata.ASCII_STRING_MARSHALLER);
+
+  private final List<ManagedChannel> channels;
+  private final AtomicInteger next = new AtomicInteger();
+  private final ConcurrentMap<String, MethodDescriptor<MessageLite, ?>> methods = new ConcurrentHashMap<>();
+  private final String project;
+  private final int requestTimeout;
+  private final DatastoreMetrics metrics;
+
+  GrpcTransport(final DatastoreConfig config, final int connections) {
+    this(newChannels(config, connections), config);
+  }
+
+  // package-private for testing
+  GrpcTransport(final List<ManagedChannel> channels, final DatastoreConfig config) {
+    this.channels = ImmutableList.copyOf(channels);
+    this.project = config.getProject();
+    this.requestTimeout = config.getRequestTimeout();
+    this.metrics = config.getMetrics();
+  }
+
+  private static List<ManagedChannel> newChannels(final DatastoreConfig config, final int connections) {
+    final URI uri = URI.create(config.getHost());
+    final boolean secure = !"http".equals(uri.getScheme());
+    final int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+
+    final ImmutableList.Builder<ManagedChannel> channels = ImmutableList.builder();
+    for (int i = 0; i < connections; i++) {
+      final NettyChannelBuilder builder = NettyChannelBuilder.forAddress(uri.getHost(), port)
+          .userAgent(USER_AGENT)
+          .maxInboundMessageSize(Integer.MAX_VALUE)
+          // responses are parsed, and calls completed, on this executor
+          .executor(firstNonNull(config.getDecodeExecutor(), DecodeExecutor.shared()))
+          .withOption(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getConnectTimeout());
+      if (secure) {
+        builder.useTransportSecurity();
+      } else {
+        builder.usePlaintext();
+      }
+      channels.add(builder.build());
+    }
+    return channels.build();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channels.forEach(ManagedChannel::shutdown);
+    try {
+      for (final ManagedChannel channel : channels) {
+        channel.awaitTermination(5, TimeUnit.SECONDS);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public <T> ListenableFuture<T> send(final String method,
+                                      final MessageLite request,
+                                      final Parser<T> parser,
+                                      final CallContext context) {
+    if (context.isExpired()) {
+      return Futures.immediateFailedFuture(new DatastoreException(504, "Deadline exceeded"));
+    }
+    final SettableFuture<T> future = SettableFuture.create();
+    try {
+      final ManagedChannel channel = channels.get(Math.floorMod(next.getAndIncrement(), channels.size()));
+      final CallTracer tracer = new CallTracer(method, context.getListener());
+      final int timeout = context.timeout(requestTimeout);
+      CallOptions options = CallOptions.DEFAULT.withStreamTracerFactory(tracer.factory());
+      // a timeout of zero or less, without a deadline, means there is none
+      if (timeout > 0) {
+        options = options.withDeadlineAfter(timeout, TimeUnit.MILLISECONDS);
+      }
+      final ClientCall<MessageLite, T> call = channel.newCall(methodDescriptor(method, parser), options);
+
+      final Metadata headers = new Metadata();
+      if (context.getAccessToken() != null) {
+        headers.put(AUTHORIZATION, "Bearer " + context.getAccessToken());
+      }
+      if (project != null) {
+        headers.put(REQUEST_PARAMS, "project_id=" + project);
+      }
+
+      call.start(new ClientCall.Listener<T>() {
+        private T response;
+
+        @Override
+        public void onMessage(final T message) {
+          tracer.decoded();
+          response = message;
+        }
+
+        @Override
+        public void onClose(final Status status, final Metadata trailers) {
+          if (!status.isOk()) {
+            future.setException(new DatastoreException(statusCode(status.getCode()), status.toString()));
+          } else if (response == null) {
+            future.setException(new DatastoreException("No response received for " + method));
+          } else {
+            metrics.responseBytes(method, tracer.wireBytes.get(), tracer.uncompressedBytes.get());
+            future.set(response);
+          }
+        }
+      }, headers);
+      call.request(1);
+      call.sendMessage(withProjectId(request));
+      call.halfClose();
+
+      future.addListener(() -> {
+        if (future.isCancelled()) {
+          call.cancel("Cancelled by caller", null);
+        }
+      }, MoreExecutors.directExecutor());
+    } catch (final Exception e) {
+      return Futures.immediateFailedFuture(new DatastoreException(e));
+    }
+    return future;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> MethodDescriptor<MessageLite, T> methodDescriptor(final String method, final Parser<T> parser) {
+    return (MethodDescriptor<MessageLite, T>) methods.computeIfAbsent(method, m -> methodDescriptor(
+        MethodDescriptor.generateFullMethodName(SERVICE_NAME, Character.toUpperCase(m.charAt(0)) + m.substring(1)),
+        new ProtoMarshaller<>(parser)));
+  }
+
+  private static <T> MethodDescriptor<MessageLite, T> methodDescriptor(final String fullMethodName,
+                                                               final MethodDescriptor.Marshaller<T> responseMarshaller) {
+    return MethodDescriptor.<MessageLite, T>newBuilder()
+        .setType(MethodDescriptor.MethodType.UNARY)
+        .setFullMethodName(fullMethodName)
+        .setRequestMarshaller(new ProtoMarshaller<>(null))
+        .setResponseMarshaller(responseMarshaller)
+        .build();
+  }
+
+  /**
+   * The project is part of the URL when calling the HTTP API, however the
+   * gRPC service expects it in the request message itself.
+   */
+  private MessageLite withProjectId(final MessageLite request) {
+    if (project == null || !(request instanceof Message)) {
+      return request;
+    }
+    final Message message = (Message) request;
+    final Descriptors.FieldDescriptor field = message.getDescriptorForType().findFieldByName("project_id");
+    if (field == null || message.hasField(field)) {
+      return request;
+    }
+    return message.toBuilder().setField(field, project).build();
+  }
+
+  /**
+   * Map a gRPC status code to its equivalent HTTP status code, so that
+   * failures look the same regardless of transport.
+   */
+  static int statusCode(final Status.Code code) {
+    switch (code) {
+      case OK:
+        return 200;
+      case CANCELLED:
+        return 499;
+      case INVALID_ARGUMENT:
+      case FAILED_PRECONDITION:
+      case OUT_OF_RANGE:
+        return 400;
+      case UNAUTHENTICATED:
+        return 401;
+      case PERMISSION_DENIED:
+        return 403;
+      case NOT_FOUND:
+        return 404;
+      case ALREADY_EXISTS:
+      case ABORTED:
+        return 409;
+      case RESOURCE_EXHAUSTED:
+        return 429;
+      case UNIMPLEMENTED:
+        return 501;
+      case UNAVAILABLE:
+        return 503;
+      case DEADLINE_EXCEEDED:
+        return 504;
+      default:
+        return 500;
+    }
+  }
+
+  /**
+   * Measures the size of a response as received, and once decompressed, and
+   * reports the phases of the call to its listener, if any.
+   */
+  private static final class CallTracer extends ClientStreamTracer {
+
+    private final String method;
+    private final DatastoreListener listener;
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+
+    private CallTracer(final String method, final DatastoreListener listener) {
+      this.method = method;
+      this.listener = listener;
+    }
+
+    private ClientStreamTracer.Factory factory() {
+      return new ClientStreamTracer.Factory() {
+        @Override
+        public ClientStreamTracer newClientStreamTracer(final StreamInfo info, final Metadata headers) {
+          // a stream is only created once a connection is ready
+          if (listener != null) {
+            listener.connectionAcquired(method, System.nanoTime());
+          }
+          return CallTracer.this;
+        }
+      };
+    }
+
+    private void decoded() {
+      if (listener != null) {
+        listener.decoded(method, System.nanoTime());
+      }
+    }
+
+    @Override
+    public void outboundMessageSent(final int seqNo, final long wireSize, final long uncompressedSize) {
+      if (listener != null) {
+        listener.requestWritten(method, System.nanoTime());
+      }
+    }
+
+    @Override
+    public void inboundHeaders() {
+      if (listener != null) {
+        listener.firstByte(method, System.nanoTime());
+      }
+    }
+
+    @Override
+    public void inboundMessageRead(final int seqNo, final long wireSize, final long uncompressedSize) {
+      if (listener != null) {
+        listener.bodyComplete(method, System.nanoTime());
+      }
+    }
+
+    @Override
+    public void inboundWireSize(final long bytes) {
+      wireBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void inboundUncompressedSize(final long bytes) {
+      uncompressedBytes.addAndGet(bytes);
+    }
+  }
+
+  /**
+   * Marshals protobuf messages; the parser is only required for responses.
+   */
+  static final class ProtoMarshaller<T> implements MethodDescriptor.Marshaller<T> {
+
+    private final Parser<T> parser;
+
+    ProtoMarshaller(final Parser<T> parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    public InputStream stream(final T value) {
+      return new MessageStream((MessageLite) value);
+    }
+
+    @Override
+    public T parse(final InputStream stream) {
+      try {
+        return parser.parseFrom(stream);
+      } catch (final InvalidProtocolBufferException e) {
+        throw Status.INTERNAL.withDescription("Invalid response").withCause(e).asRuntimeException();
+      }
+    }
+  }
+
+  /**
+   * Lets gRPC serialize a message straight into its outbound buffer rather
+   * than first copying it into a byte array.
+   */
+  private static final class MessageStream extends InputStream implements Drainable, KnownLength {
+
+    private MessageLite message;
+    private ByteArrayInputStream partial;
+
+    private MessageStream(final MessageLite message) {
+      this.message = message;
+    }
+
+    @Override
+    public int drainTo(final OutputStream target) throws IOException {
+      final int written;
+      if (message != null) {
+        written = message.getSerializedSize();
+        message.writeTo(target);
+        message = null;
+      } else if (partial != null) {
+        written = (int) ByteStreams.copy(partial, target);
+        partial = null;
+      } else {
+        written = 0;
+      }
+      return written;
+    }
+
+    @Override
+    public int read() {
+      return partial().read();
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      return partial().read(b, off, len);
+    }
+
+    @Override
+    public int available() {
+      if (message != null) {
+        return message.getSerializedSize();
+      }
+      return partial != null ? partial.available() : 0;
+    }
+
+    private ByteArrayInputStream partial() {
+      if (message != null) {
+        partial = new ByteArrayInputStream(message.toByteArray());
+        message = null;
+      } else if (partial == null) {
+        partial = new ByteArrayInputStream(new byte[0]);
+      }
+      return partial;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Sends a request, and a hedge if it hasn't completed within the delay of
+ * a {@link HedgingPolicy}. The first successful response is used and the
+ * other request is cancelled; the call only fails once every request sent
+ * has failed.
+ */
+final class HedgedCall<T> {
+
+  private final Supplier<ListenableFuture<T>> attempt;
+  private final HedgingPolicy policy;
+  private final SettableFuture<T> result = SettableFuture.create();
+
+  private ListenableFuture<T> primary;
+  private ListenableFuture<T> hedge;
+  private Future<?> timer;
+  private int outstanding;
+
+  private HedgedCall(final Supplier<ListenableFuture<T>> attempt, final HedgingPolicy policy) {
+    this.attempt = attempt;
+    this.policy = policy;
+  }
+
+  static <T> ListenableFuture<T> start(final Supplier<ListenableFuture<T>> attempt,
+                                       final HedgingPolicy policy,
+                                       final ScheduledExecutorService scheduler) {
+    final HedgedCall<T> call = new HedgedCall<>(attempt, policy);
+    policy.request();
+    final ListenableFuture<T> primary = call.send(false);
+    synchronized (call) {
+      call.primary = primary;
+      if (!call.result.isDone()) {
+        call.timer = scheduler.schedule(call::hedge, policy.getDelay(), TimeUnit.MILLISECONDS);
+      }
+    }
+    call.result.addListener(call::completed, MoreExecutors.directExecutor());
+    return call.result;
+  }
+
+  private void hedge() {
+    synchronized (this) {
+      if (result.isDone() || !policy.tryHedge()) {
+        return;
+      }
+    }
+    final ListenableFuture<T> hedge = send(true);
+    synchronized (this) {
+      this.hedge = hedge;
+    }
+    if (result.isDone()) {
+      completed();
+    }
+  }
+
+  private ListenableFuture<T> send(final boolean isHedge) {
+    final long start = System.nanoTime();
+    ListenableFuture<T> future;
+    try {
+      future = attempt.get();
+    } catch (final RuntimeException e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    synchronized (this) {
+      outstanding++;
+    }
+    Futures.addCallback(future, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T value) {
+        policy.recordLatency(System.nanoTime() - start);
+        if (result.set(value) && isHedge) {
+          policy.hedgeWon();
+        }
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        // failures are left to the retry policy, so only wait for a request
+        // already sent rather than sending a hedge
+        final boolean last;
+        synchronized (HedgedCall.this) {
+          last = --outstanding == 0;
+        }
+        if (last) {
+          result.setException(t);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
+
+  /**
+   * Cancel whatever is still outstanding once the call has completed.
+   */
+  private synchronized void completed() {
+    if (timer != null) {
+      timer.cancel(false);
+    }
+    if (primary != null) {
+      primary.cancel(true);
+    }
+    if (hedge != null) {
+      hedge.cancel(true);
+    }
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.datastore.v1.LookupRequest;
+import com.google.datastore.v1.ReadOptions;
+import com.google.datastore.v1.RunQueryRequest;
+import com.google.protobuf.MessageLite;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hedging policy used to cut the tail latency of reads.
+ * <p>
+ * When a lookup or query outside of a transaction hasn't completed within
+ * the hedging delay, a second identical request is sent. Whichever response
+ * arrives first is used and the other request is cancelled.
+ * <p>
+ * The delay is the configured percentile of recently observed latencies,
+ * so only the slowest requests are hedged. Until enough latencies have been
+ * observed the initial delay is used.
+ * <p>
+ * The extra load hedging may add is capped: every request earns a fraction
+ * of a hedge, given by the budget ratio, and a hedge is only sent when one
+ * has been earned. The budget and counters are kept by the policy, so a
+ * policy shared between many clients also shares its budget.
+ * <p>
+ * Use {@code HedgingPolicy.builder()} to build a policy. Defaults are assigned
+ * for any options not provided.
+ */
+public final class HedgingPolicy {
+
+  private static final Double DEFAULT_PERCENTILE = 95.0;
+  private static final Long DEFAULT_INITIAL_DELAY = 50L;
+  private static final Long DEFAULT_MIN_DELAY = 5L;
+  private static final Long DEFAULT_MAX_DELAY = 1000L;
+  private static final Integer DEFAULT_MIN_SAMPLES = 100;
+  private static final Long DEFAULT_WINDOW = 30000L;
+  private static final Double DEFAULT_BUDGET_RATIO = 0.05;
+
+  // the budget is kept in thousandths of a hedge, allowing bursts of up to ten
+  private static final long TOKEN = 1000;
+  private static final long MAX_TOKENS = 10 * TOKEN;
+
+  private final double percentile;
+  private final long initialDelay;
+  private final long minDelay;
+  private final long maxDelay;
+  private final int minSamples;
+  private final long window;
+  private final long tokenRatio;
+
+  private final AtomicLong tokens = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  private volatile Histogram current = new Histogram();
+  private volatile Histogram previous = new Histogram();
+  private volatile long windowEnd;
+
+  private HedgingPolicy(final Double percentile,
+                        final Long initialDelay,
+                        final Long minDelay,
+                        final Long maxDelay,
+                        final Integer minSamples,
+                        final Long window,
+                        final Double budgetRatio) {
+    this.percentile = firstNonNull(percentile, DEFAULT_PERCENTILE);
+    this.initialDelay = firstNonNull(initialDelay, DEFAULT_INITIAL_DELAY);
+    this.minDelay = firstNonNull(minDelay, DEFAULT_MIN_DELAY);
+    this.maxDelay = Math.max(firstNonNull(maxDelay, DEFAULT_MAX_DELAY), this.minDelay);
+    this.minSamples = firstNonNull(minSamples, DEFAULT_MIN_SAMPLES);
+    this.window = firstNonNull(window, DEFAULT_WINDOW);
+    this.tokenRatio = (long) (firstNonNull(budgetRatio, DEFAULT_BUDGET_RATIO) * TOKEN);
+    this.windowEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.window);
+  }
+
+  public static final class Builder {
+    private Double percentile;
+    private Long initialDelay;
+    private Long minDelay;
+    private Long maxDelay;
+    private Integer minSamples;
+    private Long window;
+    private Double budgetRatio;
+
+    private Builder() {}
+
+    /**
+     * Creates a new {@code HedgingPolicy}.
+     *
+     * @return a hedging policy.
+     */
+    public HedgingPolicy build() {
+      return new HedgingPolicy(percentile,
+                               initialDelay,
+                               minDelay,
+                               maxDelay,
+                               minSamples,
+                               window,
+                               budgetRatio);
+    }
+
+    /**
+     * Set the percentile of observed latencies after which a request is
+     * hedged.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return this policy builder.
+     */
+    public Builder percentile(final double percentile) {
+      checkArgument(percentile > 0 && percentile <= 100, "percentile must be between 0 and 100");
+      this.percentile = percentile;
+      return this;
+    }
+
+    /**
+     * Set the delay in milliseconds used until enough latencies have been
+     * observed.
+     *
+     * @param initialDelay the delay in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder initialDelay(final long initialDelay) {
+      this.initialDelay = initialDelay;
+      return this;
+    }
+
+    /**
+     * Set the minimum delay in milliseconds before a request is hedged.
+     *
+     * @param minDelay the delay in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder minDelay(final long minDelay) {
+      this.minDelay = minDelay;
+      return this;
+    }
+
+    /**
+     * Set the maximum delay in milliseconds before a request is hedged.
+     *
+     * @param maxDelay the delay in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder maxDelay(final long maxDelay) {
+      this.maxDelay = maxDelay;
+      return this;
+    }
+
+    /**
+     * Set the number of latencies that must be observed before the delay
+     * is derived from them.
+     *
+     * @param minSamples the number of latencies.
+     * @return this policy builder.
+     */
+    public Builder minSamples(final int minSamples) {
+      this.minSamples = minSamples;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds over which latencies are observed.
+     *
+     * @param window the time in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder window(final long window) {
+      checkArgument(window > 0, "window must be positive");
+      this.window = window;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of hedges sent per request, for example 0.05
+     * to add at most 5% more requests.
+     *
+     * @param budgetRatio the ratio of hedges to requests.
+     * @return this policy builder.
+     */
+    public Builder budgetRatio(final double budgetRatio) {
+      checkArgument(budgetRatio >= 0, "budgetRatio must not be negative");
+      this.budgetRatio = budgetRatio;
+      return this;
+    }
+  }
+
+  public static HedgingPolicy.Builder builder() {
+    return new HedgingPolicy.Builder();
+  }
+
+  /**
+   * Return the number of requests that could have been hedged.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Return the number of hedges sent.
+   */
+  public long getHedges() {
+    return hedges.get();
+  }
+
+  /**
+   * Return the number of hedges that completed before the request they
+   * hedged.
+   */
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  /**
+   * Return the current hedging delay in milliseconds.
+   */
+  public long getDelay() {
+    Histogram latencies = previous;
+    if (latencies.getCount() < minSamples) {
+      latencies = current;
+    }
+    if (latencies.getCount() < minSamples) {
+      return initialDelay;
+    }
+    final long delay = TimeUnit.MICROSECONDS.toMillis(latencies.getQuantile(percentile / 100));
+    return Math.min(maxDelay, Math.max(minDelay, delay));
+  }
+
+  /**
+   * Return whether a request is a read that may be hedged.
+   */
+  boolean isHedgeable(final MessageLite request) {
+    if (request instanceof LookupRequest) {
+      return ((LookupRequest) request).getReadOptions().getConsistencyTypeCase() != ReadOptions.ConsistencyTypeCase.TRANSACTION;
+    }
+    if (request instanceof RunQueryRequest) {
+      return ((RunQueryRequest) request).getReadOptions().getConsistencyTypeCase() != ReadOptions.ConsistencyTypeCase.TRANSACTION;
+    }
+    return false;
+  }
+
+  /**
+   * Count a request, earning a fraction of a hedge.
+   */
+  void request() {
+    requests.incrementAndGet();
+    if (tokens.get() < MAX_TOKENS) {
+      tokens.updateAndGet(t -> Math.min(MAX_TOKENS, t + tokenRatio));
+    }
+  }
+
+  /**
+   * Spend a hedge, returning whether one had been earned.
+   */
+  boolean tryHedge() {
+    final long remaining = tokens.getAndUpdate(t -> t >= TOKEN ? t - TOKEN : t);
+    if (remaining < TOKEN) {
+      return false;
+    }
+    hedges.incrementAndGet();
+    return true;
+  }
+
+  void hedgeWon() {
+    hedgeWins.incrementAndGet();
+  }
+
+  void recordLatency(final long nanos) {
+    final long now = System.nanoTime();
+    if (now - windowEnd >= 0) {
+      rotate(now);
+    }
+    current.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  private synchronized void rotate(final long now) {
+    if (now - windowEnd >= 0) {
+      previous = current;
+      current = new Histogram();
+      windowEnd = now + TimeUnit.MILLISECONDS.toNanos(window);
+    }
+  }
+}
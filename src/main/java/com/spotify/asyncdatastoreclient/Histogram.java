@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in
+ * microseconds or sizes in bytes.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split into
+ * eight buckets, so quantiles are accurate to within 12.5%. Recording a value
+ * is a few atomic updates and never allocates, so histograms may be updated
+ * from any number of threads while being read.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+  private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  // package-private for testing
+  static int bucket(final long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // package-private for testing
+  static long upperBound(final int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    final long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    final long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  /**
+   * Record a value; negative values are recorded as zero.
+   */
+  public void record(final long value) {
+    final long v = Math.max(0, value);
+    counts.incrementAndGet(bucket(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  /**
+   * Return the number of values recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Return the sum of the values recorded.
+   */
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * Return the largest value recorded.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Return a value that at least the given fraction of recorded values are
+   * less than or equal to, or zero if nothing has been recorded.
+   *
+   * @param quantile the fraction, between 0 and 1.
+   */
+  public long getQuantile(final double quantile) {
+    final long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.handler.ProgressAsyncHandler;
+import org.asynchttpclient.netty.request.NettyRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Handles a protobuf response without building a {@code Response} for it.
+ * <p>
+ * The whole body is still buffered before it is parsed, as protobuf can't
+ * parse a partial message without blocking on the rest of it. Body parts
+ * are copied straight from the Netty buffers into a single pooled direct
+ * buffer as they arrive, presized from {@code Content-Length} when known,
+ * which avoids copying the body to the heap, and parsed from that buffer
+ * once the body is complete. Compressed responses are inflated chunk by
+ * chunk by the Netty pipeline before they reach this handler.
+ * <p>
+ * Small responses are parsed on the I/O thread. Larger ones are handed to
+ * the decode executor, so that parsing them doesn't hold up other
+ * connections served by the same thread.
+ * <p>
+ * The size of the response as received is taken from the connection's
+ * {@link HttpTransport.WireByteCounter}, when it has one.
+ * <p>
+ * When the request has a {@link DatastoreListener}, the phases of the
+ * exchange are reported to it as they happen.
+ * <p>
+ * The handler owns the buffer the request body is written from, and
+ * releases it once the exchange is over. As the request may still be
+ * queued to be written when it is cancelled, the buffer is released from
+ * the connection's event loop, after any close of the connection.
+ */
+final class HttpResponseHandler<T> implements ProgressAsyncHandler<ListenableFuture<T>> {
+
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final String method;
+  private final Parser<T> parser;
+  private final ByteBufAllocator allocator;
+  private final DatastoreMetrics metrics;
+  private final DatastoreListener listener;
+  private final Executor decodeExecutor;
+  private final int inlineDecodeThreshold;
+  private final ByteBuf request;
+
+  private int statusCode;
+  private boolean compressed;
+  private ByteBuf body;
+  private HttpTransport.WireByteCounter wireBytes;
+  private long wireBytesBefore;
+  private Channel connection;
+  private boolean requestReleased;
+
+  HttpResponseHandler(final String method, final Parser<T> parser, final ByteBufAllocator allocator,
+                      final DatastoreMetrics metrics, final DatastoreListener listener,
+                      final Executor decodeExecutor, final int inlineDecodeThreshold, final ByteBuf request) {
+    this.method = method;
+    this.parser = parser;
+    this.allocator = allocator;
+    this.metrics = metrics;
+    this.listener = listener;
+    this.decodeExecutor = decodeExecutor;
+    this.inlineDecodeThreshold = inlineDecodeThreshold;
+    this.request = request;
+  }
+
+  private static boolean isSuccessful(final int statusCode) {
+    return statusCode >= 200 && statusCode < 300;
+  }
+
+  @Override
+  public void onTcpConnectSuccess(final InetSocketAddress remoteAddress, final Channel connection) {
+    connected(connection);
+  }
+
+  @Override
+  public void onConnectionPooled(final Channel connection) {
+    connected(connection);
+  }
+
+  private synchronized void connected(final Channel connection) {
+    this.connection = connection;
+    wireBytes = connection.pipeline().get(HttpTransport.WireByteCounter.class);
+    wireBytesBefore = wireBytes != null ? wireBytes.getBytes() : 0;
+  }
+
+  @Override
+  public void onRequestSend(final NettyRequest request) {
+    if (listener != null) {
+      listener.connectionAcquired(method, System.nanoTime());
+    }
+  }
+
+  @Override
+  public State onHeadersWritten() {
+    // the body is a single buffer, written and flushed along with the headers
+    if (listener != null) {
+      listener.requestWritten(method, System.nanoTime());
+    }
+    return State.CONTINUE;
+  }
+
+  @Override
+  public State onContentWritten() {
+    return State.CONTINUE;
+  }
+
+  @Override
+  public State onContentWriteProgress(final long amount, final long current, final long total) {
+    return State.CONTINUE;
+  }
+
+  @Override
+  public State onStatusReceived(final HttpResponseStatus status) {
+    if (listener != null) {
+      listener.firstByte(method, System.nanoTime());
+    }
+    statusCode = status.getStatusCode();
+    return State.CONTINUE;
+  }
+
+  @Override
+  public synchronized State onHeadersReceived(final HttpHeaders headers) {
+    // only visible when the pipeline has been configured to keep encoded bodies
+    compressed = "gzip".equalsIgnoreCase(headers.get(HttpHeaderNames.CONTENT_ENCODING));
+    final int length = headers.getInt(HttpHeaderNames.CONTENT_LENGTH, DEFAULT_BUFFER_SIZE);
+    release();
+    body = allocator.directBuffer(Math.max(length, 0));
+    return State.CONTINUE;
+  }
+
+  @Override
+  public synchronized State onBodyPartReceived(final HttpResponseBodyPart part) {
+    if (body == null) {
+      body = allocator.directBuffer(DEFAULT_BUFFER_SIZE);
+    }
+    body.writeBytes(part.getBodyByteBuffer());
+    return State.CONTINUE;
+  }
+
+  @Override
+  public synchronized void onThrowable(final Throwable t) {
+    release();
+    releaseRequest();
+  }
+
+  @Override
+  public synchronized void onRetry() {
+    release();
+    statusCode = 0;
+    wireBytes = null;
+  }
+
+  @Override
+  public synchronized ListenableFuture<T> onCompleted() throws Exception {
+    releaseRequest();
+    if (listener != null) {
+      listener.bodyComplete(method, System.nanoTime());
+    }
+    if (!isSuccessful(statusCode)) {
+      try {
+        throw new DatastoreException(statusCode, body != null ? body.toString(StandardCharsets.UTF_8) : "");
+      } finally {
+        release();
+      }
+    }
+    final long received = wireBytes != null ? wireBytes.getBytes() - wireBytesBefore : -1;
+    metrics.responseBytes(method, received, body != null ? body.readableBytes() : 0);
+    if (body == null) {
+      return Futures.immediateFuture(decoded(parser.parseFrom(new byte[0])));
+    }
+    final ByteBuf complete = body;
+    body = null;
+    if (complete.readableBytes() <= inlineDecodeThreshold) {
+      try {
+        return Futures.immediateFuture(parse(complete));
+      } finally {
+        complete.release();
+      }
+    }
+    final SettableFuture<T> decoded = SettableFuture.create();
+    final boolean gzip = compressed;
+    try {
+      decodeExecutor.execute(() -> {
+        try {
+          if (!decoded.isCancelled()) {
+            decoded.set(decoded(gzip ? parseCompressed(complete) : parser.parseFrom(complete.nioBuffer())));
+          }
+        } catch (final Throwable t) {
+          decoded.setException(t);
+        } finally {
+          complete.release();
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      try {
+        return Futures.immediateFuture(parse(complete));
+      } finally {
+        complete.release();
+      }
+    }
+    return decoded;
+  }
+
+  private T parse(final ByteBuf buffer) throws IOException {
+    return decoded(compressed ? parseCompressed(buffer) : parser.parseFrom(buffer.nioBuffer()));
+  }
+
+  private T decoded(final T response) {
+    if (listener != null) {
+      listener.decoded(method, System.nanoTime());
+    }
+    return response;
+  }
+
+  private T parseCompressed(final ByteBuf buffer) throws IOException {
+    return parser.parseFrom(new GZIPInputStream(new ByteBufInputStream(buffer)));
+  }
+
+  private void release() {
+    if (body != null) {
+      body.release();
+      body = null;
+    }
+  }
+
+  /**
+   * Release the request body, once any write of it is over.
+   */
+  synchronized void releaseRequest() {
+    if (requestReleased) {
+      return;
+    }
+    requestReleased = true;
+    if (connection == null) {
+      request.release();
+      return;
+    }
+    try {
+      // runs after any close of the connection, which fails writes still queued
+      connection.eventLoop().execute(request::release);
+    } catch (final RejectedExecutionException e) {
+      request.release();
+    }
+  }
+}
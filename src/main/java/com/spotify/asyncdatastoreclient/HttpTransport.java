@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.AsyncHttpClientConfig;
+import org.asynchttpclient.BoundRequestBuilder;
+import org.asynchttpclient.DefaultAsyncHttpClient;
+import org.asynchttpclient.DefaultAsyncHttpClientConfig;
+import org.asynchttpclient.extras.guava.ListenableFutureAdapter;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+
+/**
+ * The default transport; sends protobuf requests over HTTP using
+ * async-http-client.
+ */
+final class HttpTransport implements DatastoreTransport {
+
+  private static final String VERSION = "1.0.0";
+  private static final String USER_AGENT = "Datastore-Java-Client/" + VERSION + " (gzip)";
+
+  private final AsyncHttpClient client;
+  private final boolean sharedClient;
+  private final ByteBufAllocator allocator;
+  private final DatastoreMetrics metrics;
+  private final Executor decodeExecutor;
+  private final int inlineDecodeThreshold;
+  private final int requestTimeout;
+  private final String prefixUri;
+
+  HttpTransport(final DatastoreConfig config) {
+    if (config.getHttpClient() != null) {
+      client = config.getHttpClient();
+      sharedClient = true;
+    } else {
+      final DefaultAsyncHttpClientConfig.Builder httpConfig = new DefaultAsyncHttpClientConfig.Builder()
+          .setConnectTimeout(config.getConnectTimeout())
+          .setRequestTimeout(config.getRequestTimeout())
+          .setMaxConnections(config.getMaxConnections())
+          .setMaxConnectionsPerHost(config.getMaxConnectionsPerHost())
+          .setMaxRequestRetry(config.getRequestRetry())
+          .setPooledConnectionIdleTimeout(config.getPooledConnectionIdleTimeout())
+          .setConnectionTtl(config.getConnectionTtl())
+          .setKeepAlive(config.isKeepAlive())
+          .setUseNativeTransport(config.isUseNativeTransport())
+          .setAllocator(config.getAllocator())
+          .setCompressionEnforced(true)
+          .setResponseBodyPartFactory(AsyncHttpClientConfig.ResponseBodyPartFactory.LAZY)
+          // count response bytes before the pipeline decompresses them
+          .setHttpAdditionalChannelInitializer(
+              channel -> channel.pipeline().addFirst(WireByteCounter.NAME, new WireByteCounter()));
+      if (config.getEventLoopGroup() != null) {
+        httpConfig.setEventLoopGroup(config.getEventLoopGroup());
+      }
+      client = new DefaultAsyncHttpClient(httpConfig.build());
+      sharedClient = false;
+    }
+    allocator = config.getAllocator();
+    metrics = config.getMetrics();
+    decodeExecutor = firstNonNull(config.getDecodeExecutor(), DecodeExecutor.shared());
+    inlineDecodeThreshold = config.getInlineDecodeThreshold();
+    requestTimeout = config.getRequestTimeout();
+    prefixUri = String.format("%s/%s/projects/%s:", config.getHost(), config.getVersion(), config.getProject());
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!sharedClient) {
+      client.close();
+    }
+  }
+
+  /**
+   * Serialize a request directly into a pooled direct buffer, avoiding an
+   * intermediate heap copy. The caller must release the returned buffer.
+   */
+  // package-private for testing
+  static ByteBuf serialize(final MessageLite request, final ByteBufAllocator allocator) throws IOException {
+    final int size = request.getSerializedSize();
+    final ByteBuf buffer = allocator.directBuffer(size, size);
+    try {
+      final CodedOutputStream output = CodedOutputStream.newInstance(buffer.nioBuffer(0, size));
+      request.writeTo(output);
+      output.flush();
+      output.checkNoSpaceLeft();
+      buffer.writerIndex(size);
+      return buffer;
+    } catch (final IOException | RuntimeException e) {
+      buffer.release();
+      throw e;
+    }
+  }
+
+  // package-private for testing
+  BoundRequestBuilder prepareRequest(final String method, final ByteBuf body,
+                                     final CallContext context) {
+    final BoundRequestBuilder builder = client.preparePost(prefixUri + method);
+    if (context.getAccessToken() != null) {
+      builder.addHeader("Authorization", "Bearer " + context.getAccessToken());
+    }
+    builder.addHeader("Content-Type", "application/x-protobuf");
+    builder.addHeader("User-Agent", USER_AGENT);
+    builder.addHeader("Accept-Encoding", "gzip");
+    builder.setRequestTimeout(context.timeout(requestTimeout));
+    // the buffer is wrapped rather than copied, so must outlive the request
+    builder.setBody(body.nioBuffer());
+    return builder;
+  }
+
+  @Override
+  public <T> ListenableFuture<T> send(final String method,
+                                      final MessageLite request,
+                                      final Parser<T> parser,
+                                      final CallContext context) {
+    if (context.isExpired()) {
+      return Futures.immediateFailedFuture(new DatastoreException(504, "Deadline exceeded"));
+    }
+    final ListenableFuture<T> response;
+    final ByteBuf body;
+    try {
+      body = serialize(request, allocator);
+    } catch (final Exception e) {
+      return Futures.immediateFailedFuture(new DatastoreException(e));
+    }
+    // the handler releases the body once the request is over, not when the response is cancelled
+    final HttpResponseHandler<T> handler =
+        new HttpResponseHandler<>(method, parser, allocator, metrics, context.getListener(),
+                                  decodeExecutor, inlineDecodeThreshold, body);
+    try {
+      response = Futures.transformAsync(
+          ListenableFutureAdapter.asGuavaFuture(prepareRequest(method, body, context).execute(handler)),
+          decoded -> decoded, MoreExecutors.directExecutor());
+    } catch (final Exception e) {
+      handler.releaseRequest();
+      return Futures.immediateFailedFuture(new DatastoreException(e));
+    }
+    return response;
+  }
+
+  /**
+   * Counts the bytes received by a connection, as they arrive from the
+   * network and before any decompression.
+   */
+  static final class WireByteCounter extends ChannelInboundHandlerAdapter {
+
+    static final String NAME = "datastore-wire-bytes";
+
+    // only updated by the channel's event loop
+    private volatile long bytes;
+
+    long getBytes() {
+      return bytes;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+      if (msg instanceof ByteBuf) {
+        bytes += ((ByteBuf) msg).readableBytes();
+      } else if (msg instanceof ByteBufHolder) {
+        bytes += ((ByteBufHolder) msg).content().readableBytes();
+      }
+      super.channelRead(ctx, msg);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+/**
+ * Emits JDK Flight Recorder events.
+ * <p>
+ * Flight Recorder events require Java 11, so this version does nothing.
+ * On Java 11 and later it is replaced by the version in
+ * {@code META-INF/versions/11} of the multi-release jar, which emits events
+ * only while a recording has them enabled.
+ */
+final class JfrEvents {
+
+  private JfrEvents() {}
+
+  /**
+   * Begin timing a request, returning an event to complete or null if the
+   * event is not enabled.
+   */
+  static Object callStarted() {
+    return null;
+  }
+
+  static void callCompleted(final Object call, final String method, final String kinds, final int keys,
+                            final long requestBytes, final long responseBytes, final int statusCode) {
+  }
+
+  static void retried(final String method, final int attempt, final int statusCode, final long backoff) {
+  }
+
+  /**
+   * Begin timing an access token refresh, returning an event to complete or
+   * null if the event is not enabled.
+   */
+  static Object tokenRefreshStarted() {
+    return null;
+  }
+
+  static void tokenRefreshCompleted(final Object refresh, final boolean success) {
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Combines lookups made by concurrent callers into batches, according to
+ * {@link LookupBatching} options.
+ * <p>
+ * Each batch is sent as a single lookup of the distinct keys of its
+ * callers. Entities are handed back to each caller by key namespace and
+ * path, as keys returned by the server have their project filled in.
+ */
+final class LookupBatcher {
+
+  private final Function<List<com.google.datastore.v1.Key>, ListenableFuture<QueryResult>> lookup;
+  private final ScheduledExecutorService scheduler;
+  private final long maxDelay;
+  private final int maxKeys;
+
+  private List<Pending> pending = new ArrayList<>();
+  private int pendingKeys;
+  private ScheduledFuture<?> flush;
+
+  /**
+   * A caller waiting for its keys.
+   */
+  private static final class Pending {
+
+    private final List<com.google.datastore.v1.Key> keys;
+    private final SettableFuture<QueryResult> result = SettableFuture.create();
+
+    private Pending(final List<com.google.datastore.v1.Key> keys) {
+      this.keys = keys;
+    }
+  }
+
+  LookupBatcher(final LookupBatching batching, final int maxKeys,
+                final Function<List<com.google.datastore.v1.Key>, ListenableFuture<QueryResult>> lookup,
+                final ScheduledExecutorService scheduler) {
+    this.lookup = lookup;
+    this.scheduler = scheduler;
+    this.maxDelay = batching.getMaxDelay();
+    this.maxKeys = Math.min(batching.getMaxKeys(), maxKeys);
+  }
+
+  /**
+   * Return whether a lookup of a number of keys should be batched, rather
+   * than sent on its own.
+   */
+  boolean accepts(final int keys) {
+    return keys > 0 && keys < maxKeys;
+  }
+
+  /**
+   * Add keys to the current batch, returning a future for their entities.
+   */
+  ListenableFuture<QueryResult> lookup(final List<com.google.datastore.v1.Key> keys) {
+    final Pending caller = new Pending(keys);
+    List<Pending> full = null;
+    List<Pending> ready = null;
+    synchronized (this) {
+      if (pendingKeys + keys.size() > maxKeys) {
+        full = take();
+      }
+      pending.add(caller);
+      pendingKeys += keys.size();
+      if (pendingKeys >= maxKeys) {
+        ready = take();
+      } else if (flush == null) {
+        flush = scheduler.schedule(this::flush, maxDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    if (ready != null) {
+      send(ready);
+    }
+    return caller.result;
+  }
+
+  private void flush() {
+    final List<Pending> batch;
+    synchronized (this) {
+      batch = take();
+    }
+    send(batch);
+  }
+
+  // must be called while synchronized
+  private List<Pending> take() {
+    final List<Pending> batch = pending;
+    pending = new ArrayList<>();
+    pendingKeys = 0;
+    if (flush != null) {
+      flush.cancel(false);
+      flush = null;
+    }
+    return batch;
+  }
+
+  private void send(final List<Pending> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    final Map<com.google.datastore.v1.Key, com.google.datastore.v1.Key> keys = Maps.newLinkedHashMap();
+    for (final Pending caller : batch) {
+      for (final com.google.datastore.v1.Key key : caller.keys) {
+        keys.putIfAbsent(EntityCache.cacheKey(key), key);
+      }
+    }
+    ListenableFuture<QueryResult> response;
+    try {
+      response = lookup.apply(ImmutableList.copyOf(keys.values()));
+    } catch (final RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(response, new FutureCallback<QueryResult>() {
+      @Override
+      public void onSuccess(final QueryResult result) {
+        final Map<com.google.datastore.v1.Key, Entity> found = Maps.newHashMapWithExpectedSize(result.getAll().size());
+        for (final Entity entity : result.getAll()) {
+          found.put(EntityCache.cacheKey(entity.getPb().getKey()), entity);
+        }
+        for (final Pending caller : batch) {
+          final ImmutableList.Builder<Entity> entities = ImmutableList.builder();
+          final ImmutableList.Builder<Key> missing = ImmutableList.builder();
+          for (final com.google.datastore.v1.Key key : caller.keys) {
+            final Entity entity = found.get(EntityCache.cacheKey(key));
+            if (entity != null) {
+              entities.add(entity);
+            } else {
+              missing.add(Key.builder(key).build());
+            }
+          }
+          caller.result.set(QueryResult.build(entities.build(), missing.build()));
+        }
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        for (final Pending caller : batch) {
+          caller.result.setException(t);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+}
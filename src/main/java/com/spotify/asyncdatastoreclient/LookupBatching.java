@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Options for combining small lookups made by concurrent callers into a
+ * single request.
+ * <p>
+ * A lookup of fewer keys than the maximum batch size, made outside of a
+ * transaction, waits up to the maximum delay for other lookups to join it.
+ * The batch is sent once the delay has passed or it has the maximum number
+ * of keys, and each caller's future completes with the entities for its own
+ * keys. This trades a short delay for far fewer requests.
+ * <p>
+ * Use {@code LookupBatching.builder()} to build options. Defaults are
+ * assigned for any options not provided.
+ */
+public final class LookupBatching {
+
+  private static final Long DEFAULT_MAX_DELAY = 2L;
+  private static final Integer DEFAULT_MAX_KEYS = 1000;
+
+  private final long maxDelay;
+  private final int maxKeys;
+
+  private LookupBatching(final Long maxDelay, final Integer maxKeys) {
+    this.maxDelay = firstNonNull(maxDelay, DEFAULT_MAX_DELAY);
+    this.maxKeys = firstNonNull(maxKeys, DEFAULT_MAX_KEYS);
+  }
+
+  public static final class Builder {
+    private Long maxDelay;
+    private Integer maxKeys;
+
+    private Builder() {}
+
+    /**
+     * Creates new {@code LookupBatching} options.
+     *
+     * @return lookup batching options.
+     */
+    public LookupBatching build() {
+      return new LookupBatching(maxDelay, maxKeys);
+    }
+
+    /**
+     * Set the maximum time in milliseconds a lookup waits for others to join
+     * its batch. The default is 2 milliseconds.
+     *
+     * @param maxDelay the time in milliseconds.
+     * @return this options builder.
+     */
+    public Builder maxDelay(final long maxDelay) {
+      checkArgument(maxDelay >= 0, "maxDelay must not be negative");
+      this.maxDelay = maxDelay;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of keys in a batch; a batch is sent as soon as
+     * it is full. It is also limited by
+     * {@link DatastoreConfig#getLookupChunkSize()}. The default is 1000.
+     *
+     * @param maxKeys the number of keys.
+     * @return this options builder.
+     */
+    public Builder maxKeys(final int maxKeys) {
+      checkArgument(maxKeys > 0, "maxKeys must be positive");
+      this.maxKeys = maxKeys;
+      return this;
+    }
+  }
+
+  public static LookupBatching.Builder builder() {
+    return new LookupBatching.Builder();
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  public int getMaxKeys() {
+    return maxKeys;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.datastore.v1.Key.PathElement;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lookup result.
+ *
+ * Returned from lookup operations; entities are in the same order as the
+ * keys that were looked up, with null in place of keys that do not exist.
+ */
+public final class LookupResult implements Result {
+
+  private final List<Key> keys;
+  private final Entity[] entities;
+  private volatile Map<Key, Entity> map;
+
+  private LookupResult(final List<Key> keys, final Entity[] entities) {
+    this.keys = keys;
+    this.entities = entities;
+  }
+
+  /**
+   * Align the entities found by a lookup with the keys looked up, in the
+   * namespace they were looked up in, or their own if it is null.
+   * <p>
+   * Keys in a response have their project filled in, so they are matched
+   * on their namespace and path elements, which memoize their hash codes.
+   */
+  static LookupResult build(final List<KeyQuery> statements, final QueryResult result, final String namespace) {
+    final List<Entity> found = result.getAll();
+    // almost always a single namespace
+    final Map<String, Map<List<PathElement>, Entity>> byNamespace = new HashMap<>(2);
+    for (final Entity entity : found) {
+      final com.google.datastore.v1.Key key = entity.getPb().getKey();
+      final String entityNamespace = key.getPartitionId().getNamespaceId();
+      Map<List<PathElement>, Entity> byPath = byNamespace.get(entityNamespace);
+      if (byPath == null) {
+        byPath = Maps.newHashMapWithExpectedSize(found.size());
+        byNamespace.put(entityNamespace, byPath);
+      }
+      byPath.put(key.getPathList(), entity);
+    }
+    final ImmutableList.Builder<Key> keys = ImmutableList.builder();
+    final Entity[] entities = new Entity[statements.size()];
+    for (int i = 0; i < entities.length; i++) {
+      final Key key = statements.get(i).getKey();
+      keys.add(key);
+      final Map<List<PathElement>, Entity> byPath = byNamespace.get(namespace != null ? namespace : key.getNamespace());
+      entities[i] = byPath != null ? byPath.get(key.getPb().getPathList()) : null;
+    }
+    return new LookupResult(keys.build(), entities);
+  }
+
+  /**
+   * Return the number of keys looked up.
+   *
+   * @return the number of keys.
+   */
+  public int size() {
+    return entities.length;
+  }
+
+  /**
+   * Return the keys looked up, in order.
+   *
+   * @return a list of keys.
+   */
+  public List<Key> getKeys() {
+    return keys;
+  }
+
+  /**
+   * Return the entity for the key at a given position in the lookup.
+   *
+   * @param index the position of the key.
+   * @return the entity, or null if it does not exist.
+   */
+  public Entity getEntity(final int index) {
+    return entities[index];
+  }
+
+  /**
+   * Return the entity for a key.
+   *
+   * @param key the key looked up.
+   * @return the entity, or null if it does not exist or was not looked up.
+   */
+  public Entity getEntity(final Key key) {
+    return asMap().get(key);
+  }
+
+  /**
+   * Return the entities in the same order as the keys looked up, with null
+   * in place of keys that do not exist.
+   *
+   * @return a list of entities.
+   */
+  public List<Entity> getAll() {
+    return Collections.unmodifiableList(Arrays.asList(entities));
+  }
+
+  /**
+   * Return the entities that exist keyed by the keys looked up. The map is
+   * built the first time it is needed.
+   *
+   * @return a map of keys to entities.
+   */
+  public Map<Key, Entity> asMap() {
+    Map<Key, Entity> result = map;
+    if (result == null) {
+      final Map<Key, Entity> found = Maps.newHashMapWithExpectedSize(entities.length);
+      for (int i = 0; i < entities.length; i++) {
+        if (entities[i] != null) {
+          found.put(keys.get(i), entities[i]);
+        }
+      }
+      result = Collections.unmodifiableMap(found);
+      map = result;
+    }
+    return result;
+  }
+
+  /**
+   * Return the keys looked up that do not exist, in order.
+   *
+   * @return a list of keys not found.
+   */
+  public List<Key> getMissingKeys() {
+    final ImmutableList.Builder<Key> missing = ImmutableList.builder();
+    for (int i = 0; i < entities.length; i++) {
+      if (entities[i] == null) {
+        missing.add(keys.get(i));
+      }
+    }
+    return missing.build();
+  }
+}
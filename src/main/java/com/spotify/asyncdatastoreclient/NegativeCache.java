@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A cache of keys known not to exist.
+ * <p>
+ * Lookups made outside of a transaction are answered locally for keys that
+ * were reported missing by a recent lookup, or that are absent from a Bloom
+ * filter of the keys of their kind. Missing keys are remembered for a time,
+ * while a Bloom filter is built by scanning the keys of a kind with
+ * {@link #populate(Datastore, String, long)} and lasts until it is built
+ * again. Keys inserted or upserted through a client using the cache are no
+ * longer treated as missing, so the cache is only consistent with writes
+ * made through such clients.
+ * <p>
+ * Use {@code NegativeCache.builder()} to build a cache. Defaults are assigned
+ * for any options not provided.
+ */
+public final class NegativeCache {
+
+  private static final Long DEFAULT_MAX_ENTRIES = 100000L;
+  private static final Long DEFAULT_TTL = 10000L;
+  private static final Double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+  // the number of keys read by each query of a scan
+  private static final int SCAN_BATCH_SIZE = 1000;
+
+  private final long maxEntries;
+  private final long ttl;
+  private final double falsePositiveRate;
+
+  private final Cache<com.google.datastore.v1.Key, Boolean> missing;
+  private final ConcurrentMap<List<String>, BloomFilter<byte[]>> filters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<List<String>, BloomFilter<byte[]>> loading = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+
+  private NegativeCache(final Long maxEntries, final Long ttl, final Double falsePositiveRate) {
+    this.maxEntries = firstNonNull(maxEntries, DEFAULT_MAX_ENTRIES);
+    this.ttl = firstNonNull(ttl, DEFAULT_TTL);
+    this.falsePositiveRate = firstNonNull(falsePositiveRate, DEFAULT_FALSE_POSITIVE_RATE);
+    this.missing = CacheBuilder.newBuilder()
+        .maximumSize(this.maxEntries)
+        .expireAfterWrite(this.ttl, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  public static final class Builder {
+    private Long maxEntries;
+    private Long ttl;
+    private Double falsePositiveRate;
+
+    private Builder() {}
+
+    /**
+     * Creates a new {@code NegativeCache}.
+     *
+     * @return a negative cache.
+     */
+    public NegativeCache build() {
+      return new NegativeCache(maxEntries, ttl, falsePositiveRate);
+    }
+
+    /**
+     * Set the maximum number of missing keys remembered.
+     *
+     * @param maxEntries the number of keys.
+     * @return this cache builder.
+     */
+    public Builder maxEntries(final long maxEntries) {
+      checkArgument(maxEntries >= 0, "maxEntries must not be negative");
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds for which missing keys are remembered.
+     *
+     * @param ttl the time in milliseconds.
+     * @return this cache builder.
+     */
+    public Builder ttl(final long ttl) {
+      checkArgument(ttl >= 0, "ttl must not be negative");
+      this.ttl = ttl;
+      return this;
+    }
+
+    /**
+     * Set the rate at which Bloom filters report keys that don't exist as
+     * possibly existing, which are then looked up.
+     *
+     * @param falsePositiveRate the rate, between 0 and 1.
+     * @return this cache builder.
+     */
+    public Builder falsePositiveRate(final double falsePositiveRate) {
+      checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be between 0 and 1");
+      this.falsePositiveRate = falsePositiveRate;
+      return this;
+    }
+  }
+
+  public static NegativeCache.Builder builder() {
+    return new NegativeCache.Builder();
+  }
+
+  public long getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * Return the number of keys answered as missing without a lookup.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Return the approximate number of missing keys remembered.
+   */
+  public long size() {
+    return missing.size();
+  }
+
+  /**
+   * Forget every missing key and Bloom filter.
+   */
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    missing.invalidateAll();
+    filters.clear();
+  }
+
+  /**
+   * Build a Bloom filter of the keys of a kind, in the namespace of a
+   * client, by scanning them with keys-only queries. Once the scan has
+   * completed, lookups of keys of the kind that are not in the filter are
+   * answered as missing. Keys inserted through clients using this cache
+   * while, or after, the scan runs are added to the filter.
+   *
+   * @param datastore the client to scan keys with.
+   * @param kind the kind of entities.
+   * @param expectedKeys the number of keys the filter is sized for.
+   * @return a future for the number of keys scanned.
+   */
+  public ListenableFuture<Long> populate(final Datastore datastore, final String kind, final long expectedKeys) {
+    checkArgument(datastore instanceof DatastoreImpl, "datastore must be created by Datastore.create()");
+    checkArgument(expectedKeys > 0, "expectedKeys must be positive");
+    final DatastoreImpl client = (DatastoreImpl) datastore;
+    final List<String> filterKey = filterKey(client.getNamespace(), kind);
+    final BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(), expectedKeys, falsePositiveRate);
+    loading.put(filterKey, filter);
+    final ListenableFuture<Long> scanned = scan(client, kind, filter, null, 0);
+    Futures.addCallback(scanned, new FutureCallback<Long>() {
+      @Override
+      public void onSuccess(final Long result) {
+        // unless a newer scan has started
+        if (loading.get(filterKey) == filter) {
+          filters.put(filterKey, filter);
+          loading.remove(filterKey, filter);
+        }
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        loading.remove(filterKey, filter);
+      }
+    }, MoreExecutors.directExecutor());
+    return scanned;
+  }
+
+  private ListenableFuture<Long> scan(final Datastore datastore, final String kind, final BloomFilter<byte[]> filter,
+                                      final com.google.protobuf.ByteString cursor, final long scanned) {
+    final Query query = QueryBuilder.query().kindOf(kind).keysOnly().limit(SCAN_BATCH_SIZE);
+    if (cursor != null) {
+      query.fromCursor(cursor);
+    }
+    return Futures.transformAsync(datastore.executeAsync(query), result -> {
+      final List<Entity> entities = result.getAll();
+      if (entities.isEmpty()) {
+        return Futures.immediateFuture(scanned);
+      }
+      for (final Entity entity : entities) {
+        filter.put(bytes(entity.getPb().getKey()));
+      }
+      return scan(datastore, kind, filter, result.getCursor(), scanned + entities.size());
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Return whether a key is known not to exist.
+   */
+  boolean isMissing(final com.google.datastore.v1.Key key) {
+    if (key.getPathCount() == 0) {
+      return false;
+    }
+    final com.google.datastore.v1.Key cacheKey = EntityCache.cacheKey(key);
+    if (missing.getIfPresent(cacheKey) != null) {
+      hits.incrementAndGet();
+      return true;
+    }
+    final BloomFilter<byte[]> filter = filters.get(filterKey(cacheKey));
+    if (filter != null && !filter.mightContain(cacheKey.toByteArray())) {
+      hits.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Return the generation of the cache, which changes whenever keys are
+   * written.
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Remember keys reported missing when the cache was at a generation,
+   * unless keys have been written since, as they may have been created.
+   */
+  void putAll(final Collection<Key> read, final long readGeneration) {
+    if (maxEntries == 0 || ttl == 0) {
+      return;
+    }
+    for (final Key key : read) {
+      missing.put(EntityCache.cacheKey(key.getPb()), Boolean.TRUE);
+    }
+    if (generation.get() != readGeneration) {
+      for (final Key key : read) {
+        missing.invalidate(EntityCache.cacheKey(key.getPb()));
+      }
+    }
+  }
+
+  /**
+   * Stop treating keys that are being, or have been, created as missing.
+   */
+  void created(final Collection<com.google.datastore.v1.Key> keys) {
+    generation.incrementAndGet();
+    for (final com.google.datastore.v1.Key key : keys) {
+      if (key.getPathCount() == 0) {
+        continue;
+      }
+      final com.google.datastore.v1.Key cacheKey = EntityCache.cacheKey(key);
+      missing.invalidate(cacheKey);
+      // the filter being built is checked first, as it becomes the filter once built
+      final List<String> filterKey = filterKey(cacheKey);
+      final BloomFilter<byte[]> building = loading.get(filterKey);
+      if (building != null) {
+        building.put(cacheKey.toByteArray());
+      }
+      final BloomFilter<byte[]> filter = filters.get(filterKey);
+      if (filter != null) {
+        filter.put(cacheKey.toByteArray());
+      }
+    }
+  }
+
+  private static byte[] bytes(final com.google.datastore.v1.Key key) {
+    return EntityCache.cacheKey(key).toByteArray();
+  }
+
+  private static List<String> filterKey(final com.google.datastore.v1.Key key) {
+    return filterKey(key.getPartitionId().getNamespaceId(), key.getPath(key.getPathCount() - 1).getKind());
+  }
+
+  private static List<String> filterKey(final String namespace, final String kind) {
+    return ImmutableList.of(Strings.nullToEmpty(namespace), kind);
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A store of byte arrays by key, held outside of the Java heap.
+ * <p>
+ * The store is split into segments, each with its own lock. A segment
+ * appends entries to a ring of direct buffer slabs, and indexes them in an
+ * open-addressing hash table of primitive arrays, so the garbage collector
+ * sees a few large objects however many entries are stored. Once every slab
+ * of a segment is full, the oldest slab is emptied and reused, dropping its
+ * entries.
+ * <p>
+ * Each entry is written as its key length, value length and expiry time,
+ * followed by the key and value. Keys are compared in full, so hash
+ * collisions never return the wrong value.
+ */
+final class OffHeapStore {
+
+  private static final int SEGMENTS = 16;
+  private static final int MIN_SLABS = 8;
+  private static final int MAX_SLAB_BYTES = 1 << 30;
+  private static final int HEADER_BYTES = 16;
+  private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+  private static final long EMPTY = 0;
+  private static final long REMOVED = 1;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  /**
+   * A value read from the store, and the time it expires.
+   */
+  static final class Value {
+
+    private final byte[] bytes;
+    private final long expiresAt;
+
+    private Value(final byte[] bytes, final long expiresAt) {
+      this.bytes = bytes;
+      this.expiresAt = expiresAt;
+    }
+
+    byte[] getBytes() {
+      return bytes;
+    }
+
+    long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+
+  OffHeapStore(final long capacityBytes) {
+    final long segmentBytes = capacityBytes / SEGMENTS;
+    final int slabBytes = (int) Math.min(MAX_SLAB_BYTES, Math.max(HEADER_BYTES, segmentBytes / MIN_SLABS));
+    final int slabs = (int) Math.max(1, segmentBytes / slabBytes);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(slabs, slabBytes);
+    }
+  }
+
+  /**
+   * Store a value, replacing any value stored for its key. Values too large
+   * for a slab are not stored.
+   */
+  void put(final byte[] key, final byte[] value, final long expiresAt) {
+    final long hash = hash(key);
+    segment(hash).put(hash, key, value, expiresAt);
+  }
+
+  /**
+   * Return the value stored for a key, or null if there is none or it has
+   * expired.
+   */
+  Value get(final byte[] key) {
+    final long hash = hash(key);
+    return segment(hash).get(hash, key, System.nanoTime());
+  }
+
+  void remove(final byte[] key) {
+    final long hash = hash(key);
+    segment(hash).remove(hash, key);
+  }
+
+  void clear() {
+    for (final Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * Return the number of bytes written to slabs that are in use.
+   */
+  long usedBytes() {
+    long used = 0;
+    for (final Segment segment : segments) {
+      used += segment.usedBytes();
+    }
+    return used;
+  }
+
+  /**
+   * Return the number of entries dropped as their slab was reused, or they
+   * expired.
+   */
+  long evictions() {
+    long evictions = 0;
+    for (final Segment segment : segments) {
+      evictions += segment.evictions();
+    }
+    return evictions;
+  }
+
+  private Segment segment(final long hash) {
+    return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+  }
+
+  private static long hash(final byte[] key) {
+    final long hash = HASH.hashBytes(key).asLong();
+    // reserve the markers of empty and removed index slots
+    return hash == EMPTY || hash == REMOVED ? hash + 2 : hash;
+  }
+
+  private static final class Segment {
+
+    private final int slabBytes;
+    private final ByteBuffer[] slabs;
+    private final int[] slabFill;
+    private final int[] slabEntries;
+
+    private int slab;
+    private long evictions;
+
+    // entry locations by hash: the slab in the high bits, the offset in the low bits
+    private long[] hashes = new long[INITIAL_INDEX_CAPACITY];
+    private long[] locations = new long[INITIAL_INDEX_CAPACITY];
+    private int used;
+    private int live;
+
+    private Segment(final int slabs, final int slabBytes) {
+      this.slabBytes = slabBytes;
+      this.slabs = new ByteBuffer[slabs];
+      this.slabFill = new int[slabs];
+      this.slabEntries = new int[slabs];
+    }
+
+    private synchronized void put(final long hash, final byte[] key, final byte[] value, final long expiresAt) {
+      final long size = (long) HEADER_BYTES + key.length + value.length;
+      // drop the previous value even if this one doesn't fit, so that it isn't served after an update
+      final int existing = find(hash, key);
+      if (existing >= 0) {
+        drop(existing);
+      }
+      if (size > slabBytes) {
+        return;
+      }
+      if (slabFill[slab] + size > slabBytes) {
+        advance();
+      }
+      if (slabs[slab] == null) {
+        slabs[slab] = ByteBuffer.allocateDirect(slabBytes);
+      }
+      final ByteBuffer buffer = slabs[slab];
+      final int offset = slabFill[slab];
+      ((Buffer) buffer).position(offset);
+      buffer.putInt(key.length).putInt(value.length).putLong(expiresAt).put(key).put(value);
+      slabFill[slab] += (int) size;
+      slabEntries[slab]++;
+      insert(hash, ((long) slab << 32) | offset);
+    }
+
+    private synchronized Value get(final long hash, final byte[] key, final long now) {
+      final int index = find(hash, key);
+      if (index < 0) {
+        return null;
+      }
+      final ByteBuffer buffer = slabs[(int) (locations[index] >>> 32)];
+      final int offset = (int) locations[index];
+      final long expiresAt = buffer.getLong(offset + 8);
+      if (expiresAt - now <= 0) {
+        drop(index);
+        evictions++;
+        return null;
+      }
+      final byte[] value = new byte[buffer.getInt(offset + 4)];
+      ((Buffer) buffer).position(offset + HEADER_BYTES + key.length);
+      buffer.get(value);
+      return new Value(value, expiresAt);
+    }
+
+    private synchronized void remove(final long hash, final byte[] key) {
+      final int index = find(hash, key);
+      if (index >= 0) {
+        drop(index);
+      }
+    }
+
+    private synchronized void clear() {
+      Arrays.fill(slabFill, 0);
+      Arrays.fill(slabEntries, 0);
+      slab = 0;
+      hashes = new long[INITIAL_INDEX_CAPACITY];
+      locations = new long[INITIAL_INDEX_CAPACITY];
+      used = 0;
+      live = 0;
+    }
+
+    private synchronized long usedBytes() {
+      long bytes = 0;
+      for (final int fill : slabFill) {
+        bytes += fill;
+      }
+      return bytes;
+    }
+
+    private synchronized long evictions() {
+      return evictions;
+    }
+
+    /**
+     * Move on to the next slab, dropping the entries it holds.
+     */
+    private void advance() {
+      slab = (slab + 1) % slabs.length;
+      if (slabEntries[slab] > 0) {
+        for (int i = 0; i < hashes.length; i++) {
+          if (hashes[i] != EMPTY && hashes[i] != REMOVED && (int) (locations[i] >>> 32) == slab) {
+            hashes[i] = REMOVED;
+            live--;
+          }
+        }
+        evictions += slabEntries[slab];
+      }
+      slabFill[slab] = 0;
+      slabEntries[slab] = 0;
+    }
+
+    private int find(final long hash, final byte[] key) {
+      final int mask = hashes.length - 1;
+      for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+        if (hashes[i] == EMPTY) {
+          return -1;
+        }
+        if (hashes[i] == hash && matches(locations[i], key)) {
+          return i;
+        }
+      }
+    }
+
+    private boolean matches(final long location, final byte[] key) {
+      final ByteBuffer buffer = slabs[(int) (location >>> 32)];
+      final int offset = (int) location;
+      if (buffer.getInt(offset) != key.length) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (buffer.get(offset + HEADER_BYTES + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void drop(final int index) {
+      slabEntries[(int) (locations[index] >>> 32)]--;
+      hashes[index] = REMOVED;
+      live--;
+    }
+
+    private void insert(final long hash, final long location) {
+      if (used + 1 > hashes.length * 3 / 4) {
+        // grow if mostly live, otherwise only clear out removed slots
+        rehash(live + 1 > hashes.length / 2 ? hashes.length * 2 : hashes.length);
+      }
+      final int mask = hashes.length - 1;
+      int i = (int) hash & mask;
+      while (hashes[i] != EMPTY && hashes[i] != REMOVED) {
+        i = (i + 1) & mask;
+      }
+      if (hashes[i] == EMPTY) {
+        used++;
+      }
+      hashes[i] = hash;
+      locations[i] = location;
+      live++;
+    }
+
+    private void rehash(final int capacity) {
+      final long[] oldHashes = hashes;
+      final long[] oldLocations = locations;
+      hashes = new long[capacity];
+      locations = new long[capacity];
+      used = 0;
+      final int mask = capacity - 1;
+      for (int j = 0; j < oldHashes.length; j++) {
+        if (oldHashes[j] == EMPTY || oldHashes[j] == REMOVED) {
+          continue;
+        }
+        int i = (int) oldHashes[j] & mask;
+        while (hashes[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        hashes[i] = oldHashes[j];
+        locations[i] = oldLocations[j];
+        used++;
+      }
+    }
+  }
+}
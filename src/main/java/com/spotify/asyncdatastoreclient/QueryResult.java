@@ -33,22 +33,37 @@ public final class QueryResult implements Result, Iterable<Entity> {
 
   private final List<Entity> entities;
   private final ByteString cursor;
+  private final List<Key> missing;
+  private final List<com.google.datastore.v1.Key> deferred;
 
   private QueryResult(final List<Entity> entities) {
-    this.entities = entities;
-    this.cursor = null;
+    this(entities, null);
   }
 
   private QueryResult(final List<Entity> entities, final ByteString cursor) {
+    this(entities, cursor, ImmutableList.of(), ImmutableList.of());
+  }
+
+  private QueryResult(final List<Entity> entities, final ByteString cursor,
+                      final List<Key> missing, final List<com.google.datastore.v1.Key> deferred) {
     this.entities = entities;
     this.cursor = cursor;
+    this.missing = missing;
+    this.deferred = deferred;
   }
 
   static QueryResult build(final com.google.datastore.v1.LookupResponse response) {
-    return new QueryResult(ImmutableList.copyOf(
-        response.getFoundList().stream()
-            .map(entity -> Entity.builder(entity.getEntity()).build())
-            .collect(Collectors.toList())));
+    return new QueryResult(
+        ImmutableList.copyOf(
+            response.getFoundList().stream()
+                .map(entity -> Entity.builder(entity.getEntity()).build())
+                .collect(Collectors.toList())),
+        null,
+        ImmutableList.copyOf(
+            response.getMissingList().stream()
+                .map(entity -> Key.builder(entity.getEntity().getKey()).build())
+                .collect(Collectors.toList())),
+        ImmutableList.copyOf(response.getDeferredList()));
   }
 
   static QueryResult build(final com.google.datastore.v1.RunQueryResponse response) {
@@ -60,6 +75,43 @@ public final class QueryResult implements Result, Iterable<Entity> {
         batch.getEndCursor());
   }
 
+  /**
+   * Build the result of a lookup from the entities found and keys missing.
+   */
+  static QueryResult build(final List<Entity> entities, final List<Key> missing) {
+    return new QueryResult(entities, null, missing, ImmutableList.of());
+  }
+
+  /**
+   * Merge the results of lookups made in chunks, in order.
+   */
+  static QueryResult merge(final List<QueryResult> results) {
+    final ImmutableList.Builder<Entity> entities = ImmutableList.builder();
+    final ImmutableList.Builder<Key> missing = ImmutableList.builder();
+    final ImmutableList.Builder<com.google.datastore.v1.Key> deferred = ImmutableList.builder();
+    for (final QueryResult result : results) {
+      entities.addAll(result.entities);
+      missing.addAll(result.missing);
+      deferred.addAll(result.deferred);
+    }
+    return new QueryResult(entities.build(), null, missing.build(), deferred.build());
+  }
+
+  /**
+   * Return this result without its deferred keys, merged with the result
+   * of looking them up again.
+   */
+  QueryResult withDeferred(final QueryResult result) {
+    return merge(ImmutableList.of(new QueryResult(entities, cursor, missing, ImmutableList.of()), result));
+  }
+
+  /**
+   * Return the keys of a lookup that Datastore deferred rather than served.
+   */
+  List<com.google.datastore.v1.Key> getDeferred() {
+    return deferred;
+  }
+
   /**
    * Build an empty result.
    *
@@ -89,6 +141,17 @@ public final class QueryResult implements Result, Iterable<Entity> {
     return entities;
   }
 
+  /**
+   * Return the keys that were looked up but do not exist.
+   *
+   * Only lookups report missing keys; for queries this is always empty.
+   *
+   * @return a list of keys not found.
+   */
+  public List<Key> getMissingKeys() {
+    return missing;
+  }
+
   /**
    * An iterator for all entities returned from the query.
    *
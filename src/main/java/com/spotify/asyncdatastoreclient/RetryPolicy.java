@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.datastore.v1.CommitRequest;
+import com.google.datastore.v1.Mutation;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Retry policy used to retry failed requests.
+ * <p>
+ * Only idempotent requests are retried: lookups, queries, id allocation,
+ * beginning and rolling back transactions, and non-transactional commits
+ * made up of upserts and deletes. Requests are retried when they fail with
+ * one of the retryable status codes, or with an I/O error or timeout.
+ * <p>
+ * The delay between attempts uses decorrelated jitter, each delay chosen at
+ * random between the initial backoff and three times the previous delay, up
+ * to the maximum backoff. No attempt is started once the policy's timeout
+ * has elapsed.
+ * <p>
+ * Retries are limited by a budget of tokens: every failed attempt spends a
+ * token and every successful one returns a fraction of a token. Once fewer
+ * than half of the tokens remain no further retries are made until requests
+ * start succeeding again, so retries can't multiply load on an overloaded
+ * backend. The budget is kept by the policy, so a policy shared between
+ * many clients also shares its budget.
+ * <p>
+ * Use {@code RetryPolicy.builder()} to build a policy. Defaults are assigned
+ * for any options not provided.
+ */
+public final class RetryPolicy {
+
+  private static final Integer DEFAULT_MAX_ATTEMPTS = 3;
+  private static final Long DEFAULT_INITIAL_BACKOFF = 100L;
+  private static final Long DEFAULT_MAX_BACKOFF = 5000L;
+  private static final Long DEFAULT_TIMEOUT = -1L;
+  private static final Integer DEFAULT_BUDGET = 100;
+  private static final Double DEFAULT_BUDGET_RATIO = 0.1;
+  private static final Set<Integer> DEFAULT_RETRYABLE_STATUS_CODES = ImmutableSet.of(409, 429, 500, 502, 503, 504);
+
+  private static final Set<String> IDEMPOTENT_METHODS =
+      ImmutableSet.of("lookup", "runQuery", "allocateIds", "beginTransaction", "rollback");
+
+  // the budget is kept in thousandths of a token
+  private static final long TOKEN = 1000;
+
+  private static final RetryPolicy NONE = builder().maxAttempts(1).build();
+
+  private final int maxAttempts;
+  private final long initialBackoff;
+  private final long maxBackoff;
+  private final long timeout;
+  private final Set<Integer> retryableStatusCodes;
+  private final long maxTokens;
+  private final long tokenRatio;
+  private final AtomicLong tokens;
+
+  private RetryPolicy(final Integer maxAttempts,
+                      final Long initialBackoff,
+                      final Long maxBackoff,
+                      final Long timeout,
+                      final Set<Integer> retryableStatusCodes,
+                      final Integer budget,
+                      final Double budgetRatio) {
+    this.maxAttempts = firstNonNull(maxAttempts, DEFAULT_MAX_ATTEMPTS);
+    this.initialBackoff = firstNonNull(initialBackoff, DEFAULT_INITIAL_BACKOFF);
+    this.maxBackoff = Math.max(firstNonNull(maxBackoff, DEFAULT_MAX_BACKOFF), this.initialBackoff);
+    this.timeout = firstNonNull(timeout, DEFAULT_TIMEOUT);
+    this.retryableStatusCodes = ImmutableSet.copyOf(firstNonNull(retryableStatusCodes, DEFAULT_RETRYABLE_STATUS_CODES));
+    this.maxTokens = firstNonNull(budget, DEFAULT_BUDGET) * TOKEN;
+    this.tokenRatio = (long) (firstNonNull(budgetRatio, DEFAULT_BUDGET_RATIO) * TOKEN);
+    this.tokens = new AtomicLong(this.maxTokens);
+  }
+
+  public static final class Builder {
+    private Integer maxAttempts;
+    private Long initialBackoff;
+    private Long maxBackoff;
+    private Long timeout;
+    private Set<Integer> retryableStatusCodes;
+    private Integer budget;
+    private Double budgetRatio;
+
+    private Builder() {}
+
+    /**
+     * Creates a new {@code RetryPolicy}.
+     *
+     * @return a retry policy.
+     */
+    public RetryPolicy build() {
+      return new RetryPolicy(maxAttempts,
+                             initialBackoff,
+                             maxBackoff,
+                             timeout,
+                             retryableStatusCodes,
+                             budget,
+                             budgetRatio);
+    }
+
+    /**
+     * Set the maximum number of attempts made for a request, including
+     * the first.
+     *
+     * @param maxAttempts the maximum number of attempts.
+     * @return this policy builder.
+     */
+    public Builder maxAttempts(final int maxAttempts) {
+      checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Set the minimum time in milliseconds to wait before retrying.
+     *
+     * @param initialBackoff the time in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder initialBackoff(final long initialBackoff) {
+      checkArgument(initialBackoff >= 0, "initialBackoff must not be negative");
+      this.initialBackoff = initialBackoff;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in milliseconds to wait before retrying.
+     *
+     * @param maxBackoff the time in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder maxBackoff(final long maxBackoff) {
+      checkArgument(maxBackoff >= 0, "maxBackoff must not be negative");
+      this.maxBackoff = maxBackoff;
+      return this;
+    }
+
+    /**
+     * Set the time in milliseconds, from the first attempt, after which
+     * no further attempts are made. By default, there is no limit other
+     * than the number of attempts.
+     *
+     * @param timeout the time in milliseconds.
+     * @return this policy builder.
+     */
+    public Builder timeout(final long timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * Set the response status codes that are retried.
+     *
+     * @param retryableStatusCodes the HTTP status codes.
+     * @return this policy builder.
+     */
+    public Builder retryableStatusCodes(final Set<Integer> retryableStatusCodes) {
+      this.retryableStatusCodes = retryableStatusCodes;
+      return this;
+    }
+
+    /**
+     * Set the retry budget. Retries stop once fewer than half of
+     * {@code budget} tokens remain; every failed attempt spends a token
+     * and every successful request returns {@code ratio} tokens.
+     *
+     * @param budget the number of tokens.
+     * @param ratio the tokens returned by each successful request.
+     * @return this policy builder.
+     */
+    public Builder budget(final int budget, final double ratio) {
+      checkArgument(budget > 0, "budget must be positive");
+      checkArgument(ratio >= 0, "ratio must not be negative");
+      this.budget = budget;
+      this.budgetRatio = ratio;
+      return this;
+    }
+  }
+
+  public static RetryPolicy.Builder builder() {
+    return new RetryPolicy.Builder();
+  }
+
+  /**
+   * A policy that never retries.
+   *
+   * @return a retry policy.
+   */
+  public static RetryPolicy none() {
+    return NONE;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getInitialBackoff() {
+    return initialBackoff;
+  }
+
+  public long getMaxBackoff() {
+    return maxBackoff;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public Set<Integer> getRetryableStatusCodes() {
+    return retryableStatusCodes;
+  }
+
+  /**
+   * Return whether a request may safely be sent more than once.
+   */
+  boolean isIdempotent(final String method, final MessageLite request) {
+    if (IDEMPOTENT_METHODS.contains(method)) {
+      return true;
+    }
+    if (!"commit".equals(method) || !(request instanceof CommitRequest)) {
+      return false;
+    }
+    final CommitRequest commit = (CommitRequest) request;
+    if (commit.getMode() != CommitRequest.Mode.NON_TRANSACTIONAL) {
+      return false;
+    }
+    for (final Mutation mutation : commit.getMutationsList()) {
+      if (mutation.getOperationCase() != Mutation.OperationCase.UPSERT
+          && mutation.getOperationCase() != Mutation.OperationCase.DELETE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return whether a failed attempt may be retried.
+   */
+  boolean isRetryable(final Throwable t) {
+    Throwable cause = t;
+    while (cause instanceof DatastoreException) {
+      final Integer statusCode = ((DatastoreException) cause).getStatusCode();
+      if (statusCode != null) {
+        return retryableStatusCodes.contains(statusCode);
+      }
+      cause = cause.getCause();
+    }
+    return cause instanceof IOException || cause instanceof TimeoutException;
+  }
+
+  /**
+   * Return the time in milliseconds to wait before the next attempt.
+   *
+   * @param previous the previous backoff, or zero before the first retry.
+   */
+  long nextBackoff(final long previous) {
+    final long upper = Math.min(maxBackoff, Math.max(previous, initialBackoff) * 3);
+    if (upper <= initialBackoff) {
+      return upper;
+    }
+    return ThreadLocalRandom.current().nextLong(initialBackoff, upper + 1);
+  }
+
+  /**
+   * Spend a token for a failed attempt, returning whether the budget
+   * allows it to be retried.
+   */
+  boolean spend() {
+    final long remaining = tokens.updateAndGet(t -> Math.max(0, t - TOKEN));
+    return remaining > maxTokens / 2;
+  }
+
+  /**
+   * Return a fraction of a token to the budget for a successful request.
+   */
+  void refund() {
+    if (tokens.get() < maxTokens) {
+      tokens.updateAndGet(t -> Math.min(maxTokens, t + tokenRatio));
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Makes attempts at a request according to a {@link RetryPolicy}.
+ * <p>
+ * Cancelling the returned future cancels the current attempt, or any retry
+ * that has been scheduled.
+ */
+final class RetryingCall<T> implements Runnable {
+
+  /**
+   * Told each time a retry is scheduled.
+   */
+  @FunctionalInterface
+  interface Listener {
+
+    void retrying(int attempt, Throwable failure, long backoff);
+  }
+
+  private final Supplier<ListenableFuture<T>> attempt;
+  private final RetryPolicy policy;
+  private final ScheduledExecutorService scheduler;
+  private final long deadline;
+  private final Listener listener;
+  private final SettableFuture<T> result = SettableFuture.create();
+
+  private int attempts;
+  private long backoff;
+  private volatile Future<?> current;
+
+  private RetryingCall(final Supplier<ListenableFuture<T>> attempt,
+                       final RetryPolicy policy,
+                       final ScheduledExecutorService scheduler,
+                       final long deadline,
+                       final Listener listener) {
+    this.attempt = attempt;
+    this.policy = policy;
+    this.scheduler = scheduler;
+    this.deadline = deadline;
+    this.listener = listener;
+  }
+
+  /**
+   * Start making attempts.
+   *
+   * @param deadline the {@code System.nanoTime()} after which no attempt
+   *                 is started, or {@code Long.MAX_VALUE} for none.
+   * @param listener told each time a retry is scheduled.
+   */
+  static <T> ListenableFuture<T> start(final Supplier<ListenableFuture<T>> attempt,
+                                       final RetryPolicy policy,
+                                       final ScheduledExecutorService scheduler,
+                                       final long deadline,
+                                       final Listener listener) {
+    final RetryingCall<T> call = new RetryingCall<>(attempt, policy, scheduler, deadline, listener);
+    call.result.addListener(call::cancelled, MoreExecutors.directExecutor());
+    call.run();
+    return call.result;
+  }
+
+  @Override
+  public void run() {
+    if (result.isDone()) {
+      return;
+    }
+    attempts++;
+    ListenableFuture<T> future;
+    try {
+      future = attempt.get();
+    } catch (final RuntimeException e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    current = future;
+    Futures.addCallback(future, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T value) {
+        policy.refund();
+        result.set(value);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        retryOrFail(t);
+      }
+    }, MoreExecutors.directExecutor());
+    cancelled();
+  }
+
+  private void retryOrFail(final Throwable t) {
+    if (result.isDone()) {
+      return;
+    }
+    if (!policy.isRetryable(t) || !policy.spend() || attempts >= policy.getMaxAttempts()) {
+      result.setException(t);
+      return;
+    }
+    backoff = policy.nextBackoff(backoff);
+    if (deadline != Long.MAX_VALUE && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) - deadline >= 0) {
+      result.setException(t);
+      return;
+    }
+    listener.retrying(attempts, t, backoff);
+    current = scheduler.schedule(this, backoff, TimeUnit.MILLISECONDS);
+    cancelled();
+  }
+
+  private void cancelled() {
+    final Future<?> future = current;
+    if (result.isCancelled() && future != null) {
+      future.cancel(true);
+    }
+  }
+}
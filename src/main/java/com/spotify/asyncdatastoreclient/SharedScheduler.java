@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A timer shared by all clients, used to schedule retries and other delayed
+ * work. Tasks run on the timer thread so must not block.
+ */
+final class SharedScheduler {
+
+  static final ScheduledExecutorService INSTANCE = newScheduler();
+
+  private SharedScheduler() {}
+
+  private static ScheduledExecutorService newScheduler() {
+    final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+        1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-scheduler-%d").build());
+    // most scheduled tasks are cancelled, don't let them pile up
+    scheduler.setRemoveOnCancelPolicy(true);
+    return scheduler;
+  }
+}
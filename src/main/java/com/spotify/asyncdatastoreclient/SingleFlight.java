@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Shares the response to a request between every caller making an identical
+ * request while it is in flight.
+ * <p>
+ * A request is only shared while it is in flight, so callers never see a
+ * response older than their own request. Each caller gets its own future:
+ * cancelling it leaves the request to the others, and only once every caller
+ * has cancelled is the request itself cancelled.
+ */
+final class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, Flight> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * A request in flight and the number of callers waiting for it.
+   */
+  private final class Flight {
+
+    private final K key;
+    private final SettableFuture<V> response = SettableFuture.create();
+    private int callers;
+    private boolean abandoned;
+
+    private Flight(final K key) {
+      this.key = key;
+    }
+
+    private synchronized boolean join() {
+      if (abandoned) {
+        return false;
+      }
+      callers++;
+      return true;
+    }
+
+    private void leave() {
+      synchronized (this) {
+        if (abandoned || --callers > 0) {
+          return;
+        }
+        abandoned = true;
+      }
+      inFlight.remove(key, this);
+      response.cancel(true);
+    }
+
+    private ListenableFuture<V> view() {
+      final ListenableFuture<V> view = Futures.nonCancellationPropagating(response);
+      view.addListener(() -> {
+        if (view.isCancelled()) {
+          leave();
+        }
+      }, MoreExecutors.directExecutor());
+      return view;
+    }
+  }
+
+  /**
+   * Return the response to the request in flight for a key, or make the
+   * request if there is none.
+   *
+   * @param key the identity of the request.
+   * @param request makes the request.
+   * @param shared called when the response of a request in flight is shared.
+   */
+  ListenableFuture<V> call(final K key, final Supplier<ListenableFuture<V>> request, final Runnable shared) {
+    while (true) {
+      final Flight existing = inFlight.get(key);
+      if (existing != null) {
+        if (existing.join()) {
+          shared.run();
+          return existing.view();
+        }
+        inFlight.remove(key, existing);
+        continue;
+      }
+      final Flight flight = new Flight(key);
+      flight.join();
+      if (inFlight.putIfAbsent(key, flight) != null) {
+        continue;
+      }
+      flight.response.addListener(() -> inFlight.remove(key, flight), MoreExecutors.directExecutor());
+      final ListenableFuture<V> view = flight.view();
+      try {
+        flight.response.setFuture(request.get());
+      } catch (final RuntimeException e) {
+        flight.response.setException(e);
+      }
+      return view;
+    }
+  }
+
+  // package-private for testing
+  int size() {
+    return inFlight.size();
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+
+/**
+ * A bounded queue of requests waiting for permits, such as a concurrency
+ * limit or a byte budget.
+ * <p>
+ * The owner counts its permits, guarded by its lock. Requests are granted
+ * permits in order, and wait for at most the maximum queue time. A request
+ * that is sent must give its permits back with {@link #release(long)} once
+ * it completes; a request cancelled before it is sent gives them back here.
+ */
+final class WaitQueue {
+
+  private final Object lock;
+  private final LongPredicate tryAcquire;
+  private final LongConsumer release;
+  private final int maxQueueSize;
+  private final long maxQueueTime;
+  private final String name;
+
+  private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param lock the lock guarding the permits.
+   * @param tryAcquire takes a number of permits, if available, holding the lock.
+   * @param release gives back a number of permits, holding the lock.
+   * @param maxQueueSize the maximum number of waiting requests.
+   * @param maxQueueTime the maximum time in milliseconds a request may wait.
+   * @param name what requests wait for, used in errors.
+   */
+  WaitQueue(final Object lock, final LongPredicate tryAcquire, final LongConsumer release,
+            final int maxQueueSize, final long maxQueueTime, final String name) {
+    this.lock = lock;
+    this.tryAcquire = tryAcquire;
+    this.release = release;
+    this.maxQueueSize = maxQueueSize;
+    this.maxQueueTime = maxQueueTime;
+    this.name = name;
+  }
+
+  /**
+   * Return the number of requests waiting.
+   */
+  int size() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Return the number of requests that failed without being sent.
+   */
+  long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Send a request once a number of permits are acquired.
+   */
+  <T> ListenableFuture<T> submit(final long permits, final Supplier<ListenableFuture<T>> send) {
+    final ListenableFuture<Void> permit = acquire(permits);
+    final AtomicBoolean sent = new AtomicBoolean();
+    // cancelling the result while waiting also cancels the permit
+    final ListenableFuture<T> future = Futures.transformAsync(permit, granted -> {
+      if (!sent.compareAndSet(false, true)) {
+        return Futures.<T>immediateCancelledFuture();
+      }
+      return send.get();
+    }, MoreExecutors.directExecutor());
+    // the result may be cancelled once the permit is granted, but before it is used
+    future.addListener(() -> {
+      if (future.isCancelled()) {
+        permit.addListener(() -> {
+          if (isGranted(permit) && sent.compareAndSet(false, true)) {
+            release(permits);
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
+
+  /**
+   * Give back a number of permits, granting them to waiting requests.
+   */
+  void release(final long permits) {
+    final List<Waiter> permitted;
+    synchronized (lock) {
+      release.accept(permits);
+      permitted = poll();
+    }
+    grant(permitted);
+  }
+
+  private ListenableFuture<Void> acquire(final long permits) {
+    final Waiter waiter;
+    synchronized (lock) {
+      if (queue.isEmpty() && tryAcquire.test(permits)) {
+        return Futures.immediateFuture(null);
+      }
+      if (queue.size() >= maxQueueSize) {
+        waiter = null;
+      } else {
+        waiter = new Waiter(permits);
+        waiter.timeout = SharedScheduler.INSTANCE.schedule(() -> timeout(waiter), maxQueueTime, TimeUnit.MILLISECONDS);
+        queue.add(waiter);
+      }
+    }
+    if (waiter == null) {
+      rejected.incrementAndGet();
+      return Futures.immediateFailedFuture(new DatastoreException("Too many requests waiting for " + name));
+    }
+    waiter.permit.addListener(() -> {
+      if (waiter.permit.isCancelled()) {
+        removed(waiter);
+      }
+    }, MoreExecutors.directExecutor());
+    return waiter.permit;
+  }
+
+  private void timeout(final Waiter waiter) {
+    if (removed(waiter)) {
+      rejected.incrementAndGet();
+      waiter.permit.setException(new DatastoreException("Timed out waiting for " + name));
+    }
+  }
+
+  private boolean removed(final Waiter waiter) {
+    final List<Waiter> permitted;
+    synchronized (lock) {
+      if (!queue.remove(waiter)) {
+        return false;
+      }
+      // the waiter may have been holding up smaller requests behind it
+      permitted = poll();
+    }
+    grant(permitted);
+    return true;
+  }
+
+  private void grant(final List<Waiter> permitted) {
+    for (final Waiter waiter : permitted) {
+      waiter.timeout.cancel(false);
+      if (!waiter.permit.set(null)) {
+        // cancelled before it could be granted, pass the permits on
+        release(waiter.permits);
+      }
+    }
+  }
+
+  private List<Waiter> poll() {
+    final List<Waiter> permitted = new ArrayList<>();
+    while (!queue.isEmpty() && tryAcquire.test(queue.peek().permits)) {
+      permitted.add(queue.poll());
+    }
+    return permitted;
+  }
+
+  private static boolean isGranted(final ListenableFuture<Void> permit) {
+    try {
+      Futures.getDone(permit);
+      return true;
+    } catch (final CancellationException | ExecutionException e) {
+      return false;
+    }
+  }
+
+  private static final class Waiter {
+    private final long permits;
+    private final SettableFuture<Void> permit = SettableFuture.create();
+    private Future<?> timeout;
+
+    private Waiter(final long permits) {
+      this.permits = permits;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011-2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.asyncdatastoreclient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits JDK Flight Recorder events.
+ * <p>
+ * Events are only created while a recording has them enabled, so when
+ * not recording this costs a single check per request.
+ */
+final class JfrEvents {
+
+  private static final EventType CALL = EventType.getEventType(CallEvent.class);
+  private static final EventType TOKEN_REFRESH = EventType.getEventType(TokenRefreshEvent.class);
+  private static final EventType RETRY = EventType.getEventType(RetryEvent.class);
+
+  private JfrEvents() {}
+
+  @Name("com.spotify.datastore.Call")
+  @Label("Datastore Call")
+  @Category("Datastore")
+  @Description("A request to the Datastore API, including any waiting and retries")
+  static final class CallEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Kinds")
+    String kinds;
+
+    @Label("Keys")
+    int keys;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Size")
+    @DataAmount
+    long responseBytes;
+
+    @Label("Status Code")
+    int statusCode;
+  }
+
+  @Name("com.spotify.datastore.Retry")
+  @Label("Datastore Retry")
+  @Category("Datastore")
+  @Description("A failed attempt at a Datastore request that will be retried")
+  static final class RetryEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Backoff")
+    @Timespan(Timespan.MILLISECONDS)
+    long backoff;
+  }
+
+  @Name("com.spotify.datastore.TokenRefresh")
+  @Label("Datastore Access Token Refresh")
+  @Category("Datastore")
+  static final class TokenRefreshEvent extends Event {
+
+    @Label("Success")
+    boolean success;
+  }
+
+  static Object callStarted() {
+    if (!CALL.isEnabled()) {
+      return null;
+    }
+    final CallEvent event = new CallEvent();
+    event.begin();
+    return event;
+  }
+
+  static void callCompleted(final Object call, final String method, final String kinds, final int keys,
+                            final long requestBytes, final long responseBytes, final int statusCode) {
+    final CallEvent event = (CallEvent) call;
+    event.end();
+    if (event.shouldCommit()) {
+      event.method = method;
+      event.kinds = kinds;
+      event.keys = keys;
+      event.requestBytes = requestBytes;
+      event.responseBytes = responseBytes;
+      event.statusCode = statusCode;
+      event.commit();
+    }
+  }
+
+  static void retried(final String method, final int attempt, final int statusCode, final long backoff) {
+    if (!RETRY.isEnabled()) {
+      return;
+    }
+    final RetryEvent event = new RetryEvent();
+    if (event.shouldCommit()) {
+      event.method = method;
+      event.attempt = attempt;
+      event.statusCode = statusCode;
+      event.backoff = backoff;
+      event.commit();
+    }
+  }
+
+  static Object tokenRefreshStarted() {
+    if (!TOKEN_REFRESH.isEnabled()) {
+      return null;
+    }
+    final TokenRefreshEvent event = new TokenRefreshEvent();
+    event.begin();
+    return event;
+  }
+
+  static void tokenRefreshCompleted(final Object refresh, final boolean success) {
+    if (refresh == null) {
+      return;
+    }
+    final TokenRefreshEvent event = (TokenRefreshEvent) refresh;
+    event.end();
+    if (event.shouldCommit()) {
+      event.success = success;
+      event.commit();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.BytesValue;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteBudgetTest {
+
+  private static BytesValue message(final int size) {
+    // a tag byte, then the length as a varint of one or two bytes
+    final int length = size - 2 < 128 ? size - 2 : size - 3;
+    return BytesValue.newBuilder().setValue(ByteString.copyFrom(new byte[length])).build();
+  }
+
+  @Test
+  public void testRequestsWaitForBudget() throws Exception {
+    ByteBudget budget = ByteBudget.builder().maxBytes(1000).defaultResponseBytes(0).build();
+    SettableFuture<BytesValue> first = SettableFuture.create();
+
+    budget.submit("commit", message(600), () -> first);
+    ListenableFuture<BytesValue> second = budget.submit(
+        "commit", message(600), () -> Futures.immediateFuture(BytesValue.getDefaultInstance()));
+
+    assertEquals(600, budget.getUsedBytes());
+    assertEquals(1, budget.getQueued());
+    assertFalse(second.isDone());
+
+    first.set(BytesValue.getDefaultInstance());
+    second.get(1, TimeUnit.SECONDS);
+    assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testExpectedResponseSizeIsReserved() throws Exception {
+    ByteBudget budget = ByteBudget.builder().maxBytes(10000).defaultResponseBytes(100).build();
+    SettableFuture<BytesValue> first = SettableFuture.create();
+
+    budget.submit("lookup", message(10), () -> first);
+    assertEquals(110, budget.getUsedBytes());
+    first.set(message(1000));
+
+    budget.submit("lookup", message(10), SettableFuture::create);
+    assertEquals(1010, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testOversizedRequestIsSentAlone() throws Exception {
+    ByteBudget budget = ByteBudget.builder().maxBytes(100).defaultResponseBytes(0).build();
+
+    budget.submit("commit", message(1000), SettableFuture::create);
+
+    assertEquals(100, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testFailsFastWhenQueueIsFull() throws Exception {
+    ByteBudget budget = ByteBudget.builder().maxBytes(1000).defaultResponseBytes(0).maxQueueSize(0).build();
+
+    budget.submit("commit", message(600), SettableFuture::create);
+    try {
+      budget.submit("commit", message(600), SettableFuture::create).get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+    }
+    assertEquals(1, budget.getRejected());
+  }
+
+  @Test
+  public void testBytesAreReleasedWhenCancelledAsTheyAreReserved() throws Exception {
+    ByteBudget budget = ByteBudget.builder().maxBytes(1000).defaultResponseBytes(0).build();
+    CyclicBarrier barrier = new CyclicBarrier(2);
+
+    for (int i = 0; i < 1000; i++) {
+      SettableFuture<BytesValue> first = SettableFuture.create();
+      budget.submit("commit", message(600), () -> first);
+      ListenableFuture<BytesValue> second = budget.submit(
+          "commit", message(600), () -> Futures.immediateFuture(BytesValue.getDefaultInstance()));
+
+      Thread canceller = new Thread(() -> {
+        try {
+          barrier.await();
+        } catch (final Exception e) {
+          throw new RuntimeException(e);
+        }
+        second.cancel(false);
+      });
+      canceller.start();
+      barrier.await();
+      first.set(BytesValue.getDefaultInstance());
+      canceller.join();
+
+      assertEquals(0, budget.getUsedBytes());
+      assertEquals(0, budget.getQueued());
+    }
+  }
+}
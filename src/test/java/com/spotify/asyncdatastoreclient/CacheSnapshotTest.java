@@ -0,0 +1,84 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CacheSnapshotTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testSnapshotIsReadBack() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("cache/snapshot");
+
+    CacheSnapshot.write(file, ImmutableList.of(
+        new CacheSnapshot.Entry(bytes("a"), bytes("first"), 1000L),
+        new CacheSnapshot.Entry(bytes("b"), new byte[0], 2000L)));
+    List<CacheSnapshot.Entry> entries = CacheSnapshot.read(file);
+
+    assertEquals(2, entries.size());
+    assertArrayEquals(bytes("a"), entries.get(0).getKey());
+    assertArrayEquals(bytes("first"), entries.get(0).getEntity());
+    assertEquals(1000L, entries.get(0).getExpiresAt());
+    assertEquals(0, entries.get(1).getEntity().length);
+    // only the snapshot is left behind
+    assertEquals(1, folder.getRoot().toPath().resolve("cache").toFile().list().length);
+  }
+
+  @Test
+  public void testMissingSnapshotIsEmpty() throws Exception {
+    assertTrue(CacheSnapshot.read(folder.getRoot().toPath().resolve("snapshot")).isEmpty());
+  }
+
+  @Test
+  public void testTruncatedSnapshotIsRejected() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    CacheSnapshot.write(file, ImmutableList.of(new CacheSnapshot.Entry(bytes("a"), bytes("first"), 1000L)));
+    byte[] written = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(written, written.length - 2));
+
+    try {
+      CacheSnapshot.read(file);
+      fail("Expected exception");
+    } catch (final IOException e) {
+      assertTrue(e.getMessage().startsWith("Corrupt cache snapshot"));
+    }
+  }
+
+  @Test
+  public void testOverflowingLengthsAreRejected() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    CacheSnapshot.write(file, ImmutableList.of(new CacheSnapshot.Entry(bytes("a"), bytes("first"), 1000L)));
+    byte[] written = Files.readAllBytes(file);
+    // the key and entity lengths of the first entry, whose sum overflows an int
+    ByteBuffer.wrap(written).putInt(12, Integer.MAX_VALUE).putInt(16, Integer.MAX_VALUE);
+    Files.write(file, written);
+
+    try {
+      CacheSnapshot.read(file);
+      fail("Expected exception");
+    } catch (final IOException e) {
+      assertTrue(e.getMessage().startsWith("Corrupt cache snapshot"));
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void testRequestsQueueBeyondLimit() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(1).build();
+    SettableFuture<String> first = SettableFuture.create();
+
+    ListenableFuture<String> firstResult = limiter.submit(() -> first);
+    ListenableFuture<String> secondResult = limiter.submit(() -> Futures.immediateFuture("second"));
+
+    assertEquals(1, limiter.getInFlight());
+    assertEquals(1, limiter.getQueued());
+    assertFalse(secondResult.isDone());
+
+    first.set("first");
+    assertEquals("first", firstResult.get());
+    assertEquals("second", secondResult.get(1, TimeUnit.SECONDS));
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testFailsFastWhenQueueIsFull() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(1).maxQueueSize(0).build();
+
+    limiter.submit(SettableFuture::create);
+    try {
+      limiter.submit(() -> Futures.immediateFuture("second")).get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+    }
+    assertEquals(1, limiter.getRejected());
+  }
+
+  @Test
+  public void testQueuedRequestTimesOut() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(1).maxQueueTime(10).build();
+
+    limiter.submit(SettableFuture::create);
+    try {
+      limiter.submit(() -> Futures.immediateFuture("second")).get(1, TimeUnit.SECONDS);
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+    }
+    assertEquals(0, limiter.getQueued());
+  }
+
+  @Test
+  public void testCancelledRequestLeavesQueue() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(1).build();
+
+    limiter.submit(SettableFuture::create);
+    limiter.submit(() -> Futures.immediateFuture("second")).cancel(false);
+
+    assertEquals(0, limiter.getQueued());
+  }
+
+  @Test
+  public void testPermitIsReleasedWhenCancelledAsItIsGranted() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(1).maxLimit(1).build();
+    CyclicBarrier barrier = new CyclicBarrier(2);
+
+    for (int i = 0; i < 1000; i++) {
+      SettableFuture<String> first = SettableFuture.create();
+      limiter.submit(() -> first);
+      ListenableFuture<String> second = limiter.submit(() -> Futures.immediateFuture("second"));
+
+      Thread canceller = new Thread(() -> {
+        try {
+          barrier.await();
+        } catch (final Exception e) {
+          throw new RuntimeException(e);
+        }
+        second.cancel(false);
+      });
+      canceller.start();
+      barrier.await();
+      first.set("first");
+      canceller.join();
+
+      assertEquals(0, limiter.getInFlight());
+      assertEquals(0, limiter.getQueued());
+    }
+  }
+
+  @Test
+  public void testThrottlingShrinksLimit() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(100).build();
+
+    limiter.submit(() -> Futures.immediateFailedFuture(new DatastoreException(429, "Too many requests")));
+
+    assertEquals(90, limiter.getLimit());
+  }
+
+  @Test
+  public void testLimitGrowsWhileLatencyIsStable() throws Exception {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(2).build();
+
+    for (int i = 0; i < 20; i++) {
+      List<SettableFuture<String>> requests = new ArrayList<>();
+      for (int j = 0; j < limiter.getLimit(); j++) {
+        SettableFuture<String> request = SettableFuture.create();
+        requests.add(request);
+        limiter.submit(() -> request);
+      }
+      requests.forEach(request -> request.set("done"));
+    }
+
+    assertTrue(limiter.getLimit() > 2);
+  }
+}
@@ -1,20 +1,102 @@
 package com.spotify.asyncdatastoreclient;
 
+import com.google.api.client.auth.oauth2.BearerToken;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.protobuf.ProtoHttpContent;
-import com.google.protobuf.Int32Value;
-import org.asynchttpclient.Request;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.datastore.v1.BeginTransactionResponse;
+import com.google.datastore.v1.CommitResponse;
+import com.google.datastore.v1.EntityResult;
+import com.google.datastore.v1.LookupRequest;
+import com.google.datastore.v1.LookupResponse;
+import com.google.datastore.v1.PartitionId;
+import com.google.datastore.v1.QueryResultBatch;
+import com.google.datastore.v1.RunQueryRequest;
+import com.google.datastore.v1.RunQueryResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
 import org.junit.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DatastoreImplTest {
 
-  @Test
-  public void testEnsureCachedTokenUpdatesOnExternalRefresh() throws Exception {
+  /**
+   * An in-process transport that records requests and returns empty responses.
+   */
+  private static class FakeTransport implements DatastoreTransport {
+
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    private final Queue<MessageLite> responses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<MessageLite> sent = new CopyOnWriteArrayList<>();
+    private volatile String method;
+    private volatile String accessToken;
+    private volatile SettableFuture<?> pending;
+
+    @Override
+    public <T> ListenableFuture<T> send(final String method, final MessageLite request,
+                                        final Parser<T> parser, final CallContext context) {
+      this.method = method;
+      this.accessToken = context.getAccessToken();
+      requests.incrementAndGet();
+      sent.add(request);
+      final Throwable failure = failures.poll();
+      if (failure != null) {
+        return Futures.immediateFailedFuture(failure);
+      }
+      final MessageLite canned = responses.poll();
+      if (canned != null) {
+        try {
+          return Futures.immediateFuture(parser.parseFrom(canned.toByteString()));
+        } catch (final InvalidProtocolBufferException e) {
+          return Futures.immediateFailedFuture(e);
+        }
+      }
+      if (pending != null) {
+        final SettableFuture<T> response = SettableFuture.create();
+        pending = response;
+        return response;
+      }
+      try {
+        return Futures.immediateFuture(parser.parseFrom(ByteString.EMPTY));
+      } catch (final InvalidProtocolBufferException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    }
 
-    Credential mockCredential = new Credential.Builder(new Credential.AccessMethod() {
+    @Override
+    public void close() {
+    }
+  }
+
+  private static Credential mockCredential() {
+    return new Credential.Builder(new Credential.AccessMethod() {
       @Override
       public void intercept(HttpRequest httpRequest, String s) {
         // noop
@@ -25,8 +107,18 @@ public class DatastoreImplTest {
         return "";
       }
     }).build();
+  }
 
-    DatastoreConfig config = DatastoreConfig.builder().credential(mockCredential).build();
+  @Test
+  public void testEnsureCachedTokenUpdatesOnExternalRefresh() throws Exception {
+
+    Credential mockCredential = mockCredential();
+
+    FakeTransport transport = new FakeTransport();
+    DatastoreConfig config = DatastoreConfig.builder()
+        .credential(mockCredential)
+        .transport(c -> transport)
+        .build();
 
     DatastoreImpl client = new DatastoreImpl(config);
 
@@ -38,10 +130,776 @@ public class DatastoreImplTest {
     mockCredential.setAccessToken("access-token-2");
     client.refreshAccessToken();
 
-    Request request = client.prepareRequest("", new ProtoHttpContent(
-      Int32Value.newBuilder().setValue(123).build())).build();
+    client.transaction();
 
     // Make sure request is made with latest access token
-    assertEquals("Bearer access-token-2", request.getHeaders().get("Authorization"));
+    assertEquals("beginTransaction", transport.method);
+    assertEquals("access-token-2", transport.accessToken);
+    client.close();
+  }
+
+  /**
+   * A credential whose first refresh waits until it is allowed to finish.
+   */
+  private static Credential slowCredential(CountDownLatch refreshed) {
+    return new Credential(BearerToken.authorizationHeaderAccessMethod()) {
+      @Override
+      public boolean refreshToken() {
+        try {
+          refreshed.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        setAccessToken("access-token-1");
+        return true;
+      }
+    };
+  }
+
+  @Test
+  public void testRequestWaitsForFirstAccessToken() throws Exception {
+    CountDownLatch refreshed = new CountDownLatch(1);
+    FakeTransport transport = new FakeTransport();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .credential(slowCredential(refreshed))
+        .transport(c -> transport)
+        .build());
+
+    ListenableFuture<TransactionResult> ready = client.transactionAsync();
+    assertFalse(ready.isDone());
+    assertNull(transport.method);
+
+    refreshed.countDown();
+    ready.get(1, TimeUnit.SECONDS);
+    assertEquals("access-token-1", transport.accessToken);
+    client.close();
+  }
+
+  @Test
+  public void testRequestFailsWhenAccessTokenCannotBeRefreshed() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    // without a refresh token the credential can't get an access token
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .credential(mockCredential())
+        .transport(c -> transport)
+        .build());
+
+    try {
+      client.transaction();
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(401, e.getStatusCode().intValue());
+    }
+    assertNull(transport.method);
+    client.close();
+  }
+
+  @Test
+  public void testWaitForFirstAccessTokenIsBoundedByRequestTimeout() throws Exception {
+    CountDownLatch refreshed = new CountDownLatch(1);
+    FakeTransport transport = new FakeTransport();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .credential(slowCredential(refreshed))
+        .transport(c -> transport)
+        .requestTimeout(10)
+        .build());
+
+    try {
+      client.transactionAsync().get(1, TimeUnit.SECONDS);
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+    }
+    assertNull(transport.method);
+    refreshed.countDown();
+    client.close();
+  }
+
+  @Test
+  public void testClientsShareAccessTokenProvider() throws Exception {
+    Credential mockCredential = mockCredential();
+
+    AccessTokenProvider first = AccessTokenProvider.acquire(mockCredential);
+    AccessTokenProvider second = AccessTokenProvider.acquire(mockCredential);
+    assertSame(first, second);
+
+    first.release();
+    second.release();
+    AccessTokenProvider third = AccessTokenProvider.acquire(mockCredential);
+    assertNotSame(first, third);
+    third.release();
+  }
+
+  @Test
+  public void testClosingTwiceReleasesAccessTokenProviderOnce() throws Exception {
+    Credential mockCredential = mockCredential();
+    DatastoreConfig config = DatastoreConfig.builder()
+        .credential(mockCredential)
+        .transport(c -> new FakeTransport())
+        .build();
+    DatastoreImpl first = new DatastoreImpl(config);
+    DatastoreImpl second = new DatastoreImpl(config);
+    AccessTokenProvider provider = AccessTokenProvider.acquire(mockCredential);
+    provider.release();
+
+    first.close();
+    first.close();
+
+    // still in use by the second client
+    AccessTokenProvider shared = AccessTokenProvider.acquire(mockCredential);
+    assertSame(provider, shared);
+    shared.release();
+    second.close();
+  }
+
+  @Test
+  public void testIdempotentRequestIsRetried() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.failures.add(new DatastoreException(503, "Unavailable"));
+    transport.failures.add(new DatastoreException(503, "Unavailable"));
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .retryPolicy(RetryPolicy.builder().maxAttempts(3).initialBackoff(1).maxBackoff(1).build())
+        .build());
+
+    client.execute(QueryBuilder.query("employee", 1234567L));
+
+    assertEquals(3, transport.requests.get());
+    client.close();
+  }
+
+  @Test
+  public void testNonIdempotentRequestIsNotRetried() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.failures.add(new DatastoreException(503, "Unavailable"));
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .retryPolicy(RetryPolicy.builder().maxAttempts(3).initialBackoff(1).maxBackoff(1).build())
+        .build());
+
+    try {
+      client.execute(QueryBuilder.insert("employee", 1234567L).value("age", 40));
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(503, e.getStatusCode().intValue());
+    }
+    assertEquals(1, transport.requests.get());
+    client.close();
+  }
+
+  @Test
+  public void testCancellationReachesTransport() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.pending = SettableFuture.create();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .build());
+
+    client.executeAsync(QueryBuilder.query("employee", 1234567L)).cancel(true);
+
+    assertTrue(transport.pending.isCancelled());
+    client.close();
+  }
+
+  @Test
+  public void testDeadlineAbortsRequest() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.pending = SettableFuture.create();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .build());
+
+    try {
+      client.withCallOptions(CallOptions.builder().timeout(10).build())
+          .execute(QueryBuilder.query("employee", 1234567L));
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(504, e.getStatusCode().intValue());
+    }
+    // the request is cancelled just after the deadline fails the call
+    for (int i = 0; i < 100 && !transport.pending.isDone(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(transport.pending.isCancelled());
+    client.close();
+  }
+
+  @Test
+  public void testDefaultCallOptionsViewAppliesTimeout() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.pending = SettableFuture.create();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .build());
+    Datastore view = new CallOptionsView(client, CallOptions.builder().timeout(10).build());
+
+    try {
+      view.execute(QueryBuilder.query("employee", 1234567L));
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(504, e.getStatusCode().intValue());
+    }
+    for (int i = 0; i < 100 && !transport.pending.isDone(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(transport.pending.isCancelled());
+    client.close();
+  }
+
+  @Test
+  public void testResultsAreCompletedOnCallbackExecutor() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    AtomicInteger callbacks = new AtomicInteger();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .callbackExecutor(task -> {
+          callbacks.incrementAndGet();
+          task.run();
+        })
+        .build());
+
+    client.execute(QueryBuilder.query("employee", 1234567L));
+
+    assertEquals(1, callbacks.get());
+    client.close();
+  }
+
+  @Test
+  public void testMetricsAreRecorded() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.failures.add(new DatastoreException(503, "Unavailable"));
+    DatastoreStats stats = new DatastoreStats();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .retryPolicy(RetryPolicy.builder().maxAttempts(3).initialBackoff(1).maxBackoff(1).build())
+        .metrics(stats)
+        .build());
+
+    client.execute(QueryBuilder.query("employee", 1234567L));
+
+    DatastoreStats.MethodStats lookup = stats.getMethod("lookup");
+    assertEquals(0, lookup.getInFlight());
+    assertEquals(1, lookup.getRetries());
+    assertEquals(1, lookup.getLatency(200).getCount());
+    assertEquals(1, lookup.getAttemptLatency().get(503).getCount());
+    assertEquals(1, lookup.getAttemptLatency().get(200).getCount());
+    assertEquals(2, lookup.getQueueTime().getCount());
+    assertEquals(2, lookup.getRequestBytes().getCount());
+    client.close();
+  }
+
+  @Test
+  public void testFailedRequestIsRecordedWithStatusCode() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.failures.add(new DatastoreException(409, "Conflict"));
+    DatastoreStats stats = new DatastoreStats();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .metrics(stats)
+        .build());
+
+    try {
+      client.execute(QueryBuilder.insert("employee", 1234567L).value("age", 40));
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(409, e.getStatusCode().intValue());
+    }
+    assertEquals(1, stats.getMethod("commit").getLatency(409).getCount());
+    assertEquals(0, stats.getMethod("commit").getLatency(200).getCount());
+    assertEquals(0, stats.getMethod("commit").getInFlight());
+    client.close();
+  }
+
+  @Test
+  public void testStatusCode() throws Exception {
+    assertEquals(503, DatastoreImpl.statusCode(new DatastoreException(503, "Unavailable")));
+    assertEquals(504, DatastoreImpl.statusCode(new RuntimeException(new DatastoreException(504, "Timeout"))));
+    assertEquals(499, DatastoreImpl.statusCode(new java.util.concurrent.CancellationException()));
+    assertEquals(0, DatastoreImpl.statusCode(new java.io.IOException("Connection reset")));
+  }
+
+  @Test
+  public void testPhasesAreReportedToListener() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    List<String> phases = new CopyOnWriteArrayList<>();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .listenerFactory(method -> new DatastoreListener() {
+          @Override
+          public void queued(String method, long nanos) {
+            phases.add("queued " + method);
+          }
+
+          @Override
+          public void converted(String method, long nanos) {
+            phases.add("converted " + method);
+          }
+
+          @Override
+          public void completed(String method, long nanos, int statusCode) {
+            phases.add("completed " + method + " " + statusCode);
+          }
+        })
+        .build());
+
+    client.execute(QueryBuilder.query("employee", 1234567L));
+
+    assertEquals(Arrays.asList("queued lookup", "converted lookup", "completed lookup 200"), phases);
+    client.close();
+  }
+
+  @Test
+  public void testLargeLookupIsChunked() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .lookupChunkSize(1000)
+        .build());
+
+    List<KeyQuery> queries = IntStream.range(1, 2501)
+        .mapToObj(i -> QueryBuilder.query("employee", (long) i))
+        .collect(Collectors.toList());
+    client.execute(queries, TransactionResult.build(BeginTransactionResponse.newBuilder()
+        .setTransaction(ByteString.copyFromUtf8("txn")).build()));
+
+    assertEquals(3, transport.sent.size());
+    int keys = 0;
+    for (MessageLite request : transport.sent) {
+      LookupRequest lookup = (LookupRequest) request;
+      assertTrue(lookup.getKeysCount() <= 1000);
+      assertEquals(ByteString.copyFromUtf8("txn"), lookup.getReadOptions().getTransaction());
+      keys += lookup.getKeysCount();
+    }
+    assertEquals(2500, keys);
+    client.close();
+  }
+
+  private static EntityResult entityResult(long id) {
+    return EntityResult.newBuilder()
+        .setEntity(com.google.datastore.v1.Entity.newBuilder().setKey(keyPb(id)))
+        .build();
+  }
+
+  private static com.google.datastore.v1.Key keyPb(long id) {
+    return com.google.datastore.v1.Key.newBuilder()
+        .addPath(com.google.datastore.v1.Key.PathElement.newBuilder().setKind("employee").setId(id))
+        .build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLookupChunkSizeMustBePositive() throws Exception {
+    DatastoreConfig.builder().lookupChunkSize(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDeferredLookupRoundsMustNotBeNegative() throws Exception {
+    DatastoreConfig.builder().deferredLookupRounds(-1);
+  }
+
+  @Test
+  public void testDeferredKeysAreLookedUpAgain() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.responses.add(LookupResponse.newBuilder()
+        .addFound(entityResult(1))
+        .addMissing(entityResult(2))
+        .addDeferred(keyPb(3))
+        .build());
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(3)).build());
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .build());
+
+    QueryResult result = client.execute(ImmutableList.of(
+        QueryBuilder.query("employee", 1L), QueryBuilder.query("employee", 2L), QueryBuilder.query("employee", 3L)));
+
+    assertEquals(2, transport.sent.size());
+    assertEquals(ImmutableList.of(keyPb(3)), ((LookupRequest) transport.sent.get(1)).getKeysList());
+    assertEquals(2, result.getAll().size());
+    assertEquals(3L, result.getAll().get(1).getKey().getId().longValue());
+    assertEquals(ImmutableList.of(Key.builder("employee", 2L).build()), result.getMissingKeys());
+    client.close();
+  }
+
+  @Test
+  public void testLookupFailsWhenKeysAreStillDeferred() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    for (int i = 0; i < 3; i++) {
+      transport.responses.add(LookupResponse.newBuilder().addDeferred(keyPb(1)).build());
+    }
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .deferredLookupRounds(2)
+        .build());
+
+    try {
+      client.execute(QueryBuilder.query("employee", 1L));
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(503, e.getStatusCode().intValue());
+    }
+    assertEquals(3, transport.sent.size());
+    client.close();
+  }
+
+  @Test
+  public void testLookupResultIsInKeyOrder() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    // the server fills in the partition of keys, and may return them in any order
+    PartitionId partition = PartitionId.newBuilder().setProjectId("test").build();
+    transport.responses.add(LookupResponse.newBuilder()
+        .addFound(EntityResult.newBuilder()
+            .setEntity(com.google.datastore.v1.Entity.newBuilder().setKey(keyPb(3).toBuilder().setPartitionId(partition))))
+        .addFound(EntityResult.newBuilder()
+            .setEntity(com.google.datastore.v1.Entity.newBuilder().setKey(keyPb(1).toBuilder().setPartitionId(partition))))
+        .addMissing(entityResult(2))
+        .build());
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .build());
+
+    LookupResult result = client.lookup(ImmutableList.of(
+        QueryBuilder.query("employee", 1L), QueryBuilder.query("employee", 2L), QueryBuilder.query("employee", 3L)));
+
+    assertEquals(3, result.size());
+    assertEquals(1L, result.getEntity(0).getKey().getId().longValue());
+    assertNull(result.getEntity(1));
+    assertEquals(3L, result.getEntity(2).getKey().getId().longValue());
+    assertSame(result.getEntity(2), result.getEntity(Key.builder("employee", 3L).build()));
+    assertEquals(2, result.asMap().size());
+    assertEquals(ImmutableList.of(Key.builder("employee", 2L).build()), result.getMissingKeys());
+    client.close();
+  }
+
+  @Test
+  public void testLookupResultIsMatchedByNamespace() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    Key first = Key.builder("employee", 1L).namespace("first").build();
+    Key second = Key.builder("employee", 1L).namespace("second").build();
+    transport.responses.add(LookupResponse.newBuilder()
+        .addFound(EntityResult.newBuilder().setEntity(com.google.datastore.v1.Entity.newBuilder().setKey(
+            second.getPb().toBuilder().setPartitionId(PartitionId.newBuilder()
+                .setProjectId("test").setNamespaceId("second")))))
+        .addMissing(EntityResult.newBuilder().setEntity(com.google.datastore.v1.Entity.newBuilder().setKey(
+            first.getPb().toBuilder().setPartitionId(PartitionId.newBuilder()
+                .setProjectId("test").setNamespaceId("first")))))
+        .build());
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .build());
+
+    LookupResult result = client.lookup(ImmutableList.of(QueryBuilder.query(first), QueryBuilder.query(second)));
+
+    assertNull(result.getEntity(0));
+    assertEquals("second", result.getEntity(1).getKey().getNamespace());
+    client.close();
+  }
+
+  @Test
+  public void testConcurrentLookupsAreBatched() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .lookupBatching(LookupBatching.builder().maxDelay(200).build())
+        .build());
+
+    ListenableFuture<QueryResult> first = client.executeAsync(QueryBuilder.query("employee", 1L));
+    ListenableFuture<QueryResult> second = client.executeAsync(QueryBuilder.query("employee", 2L));
+    // lookups in a transaction are sent on their own, straight away
+    client.execute(QueryBuilder.query("employee", 3L), TransactionResult.build(BeginTransactionResponse.newBuilder()
+        .setTransaction(ByteString.copyFromUtf8("txn")).build()));
+    assertEquals(1, transport.sent.size());
+    transport.responses.add(LookupResponse.newBuilder()
+        .addFound(entityResult(1))
+        .addMissing(entityResult(2))
+        .build());
+
+    assertEquals(1L, first.get().getEntity().getKey().getId().longValue());
+    assertNull(second.get().getEntity());
+    assertEquals(ImmutableList.of(Key.builder("employee", 2L).build()), second.get().getMissingKeys());
+    assertEquals(2, transport.sent.size());
+    assertEquals(ImmutableList.of(keyPb(1), keyPb(2)), ((LookupRequest) transport.sent.get(1)).getKeysList());
+    client.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testIdenticalReadsInFlightAreDeduplicated() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.pending = SettableFuture.create();
+    DatastoreStats stats = new DatastoreStats();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .deduplicateReads(true)
+        .metrics(stats)
+        .build());
+    Query query = QueryBuilder.query().kindOf("employee");
+
+    ListenableFuture<QueryResult> first = client.executeAsync(query);
+    ListenableFuture<QueryResult> second = client.executeAsync(QueryBuilder.query().kindOf("employee"));
+    SettableFuture<RunQueryResponse> response = (SettableFuture<RunQueryResponse>) transport.pending;
+    client.executeAsync(QueryBuilder.query().kindOf("manager"));
+    assertEquals(2, transport.requests.get());
+
+    // the request is shared until every caller has cancelled
+    first.cancel(true);
+    assertFalse(response.isCancelled());
+    response.set(RunQueryResponse.getDefaultInstance());
+    assertEquals(0, second.get().getAll().size());
+    assertEquals(1, stats.getMethod("runQuery").getDeduplicated());
+
+    // a completed read is not shared
+    client.executeAsync(query);
+    assertEquals(3, transport.requests.get());
+    client.close();
+  }
+
+  @Test
+  public void testCachedEntitiesAreNotLookedUp() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    EntityCache cache = EntityCache.builder().build();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .entityCache(cache)
+        .build());
+
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(1)).build());
+    client.execute(QueryBuilder.query("employee", 1L));
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(2)).build());
+    QueryResult result = client.execute(ImmutableList.of(
+        QueryBuilder.query("employee", 1L), QueryBuilder.query("employee", 2L)));
+
+    assertEquals(2, result.getAll().size());
+    assertEquals(ImmutableList.of(keyPb(2)), ((LookupRequest) transport.sent.get(1)).getKeysList());
+    assertEquals(1, cache.getHits());
+
+    // writes through the client remove entities from the cache
+    client.execute(QueryBuilder.delete("employee", 1L));
+    client.execute(QueryBuilder.query("employee", 1L));
+    assertEquals(ImmutableList.of(keyPb(1)), ((LookupRequest) transport.sent.get(3)).getKeysList());
+    client.close();
+  }
+
+  @Test
+  public void testKeysMissingFromBloomFilterAreNotLookedUp() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    NegativeCache cache = NegativeCache.builder().build();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .negativeCache(cache)
+        .build());
+
+    transport.responses.add(RunQueryResponse.newBuilder()
+        .setBatch(QueryResultBatch.newBuilder().addEntityResults(entityResult(1)).addEntityResults(entityResult(2)))
+        .build());
+    assertEquals(2L, cache.populate(client, "employee", 100).get().longValue());
+    assertEquals(2, transport.sent.size());
+
+    QueryResult result = client.execute(QueryBuilder.query("employee", 3L));
+    assertEquals(ImmutableList.of(Key.builder("employee", 3L).build()), result.getMissingKeys());
+    assertEquals(2, transport.sent.size());
+
+    // inserted keys are added to the filter
+    client.execute(QueryBuilder.insert("employee", 3L));
+    client.execute(QueryBuilder.query("employee", 3L));
+    assertEquals(ImmutableList.of(keyPb(3)), ((LookupRequest) transport.sent.get(3)).getKeysList());
+    client.close();
+  }
+
+  @Test
+  public void testBloomFilterScanPagesThroughCursors() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    NegativeCache cache = NegativeCache.builder().build();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .negativeCache(cache)
+        .build());
+
+    transport.responses.add(RunQueryResponse.newBuilder()
+        .setBatch(QueryResultBatch.newBuilder().addEntityResults(entityResult(1)).addEntityResults(entityResult(2))
+                      .setEndCursor(ByteString.copyFromUtf8("first")))
+        .build());
+    transport.responses.add(RunQueryResponse.newBuilder()
+        .setBatch(QueryResultBatch.newBuilder().addEntityResults(entityResult(3))
+                      .setEndCursor(ByteString.copyFromUtf8("second")))
+        .build());
+    assertEquals(3L, cache.populate(client, "employee", 100).get().longValue());
+
+    assertEquals(3, transport.sent.size());
+    assertTrue(((RunQueryRequest) transport.sent.get(0)).getQuery().getStartCursor().isEmpty());
+    assertEquals(ByteString.copyFromUtf8("first"), ((RunQueryRequest) transport.sent.get(1)).getQuery().getStartCursor());
+    assertEquals(ByteString.copyFromUtf8("second"), ((RunQueryRequest) transport.sent.get(2)).getQuery().getStartCursor());
+
+    // keys scanned on every page are looked up, others are missing
+    client.execute(ImmutableList.of(QueryBuilder.query("employee", 1L), QueryBuilder.query("employee", 3L),
+                                    QueryBuilder.query("employee", 4L)));
+    assertEquals(ImmutableList.of(keyPb(1), keyPb(3)), ((LookupRequest) transport.sent.get(3)).getKeysList());
+    client.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testKeyCreatedDuringScanIsNotMissing() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    transport.pending = SettableFuture.create();
+    NegativeCache cache = NegativeCache.builder().build();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .negativeCache(cache)
+        .build());
+
+    ListenableFuture<Long> scanned = cache.populate(client, "employee", 100);
+    SettableFuture<RunQueryResponse> page = (SettableFuture<RunQueryResponse>) transport.pending;
+    transport.responses.add(CommitResponse.getDefaultInstance());
+    client.execute(QueryBuilder.insert("employee", 2L));
+
+    // the scan read its page before the key was created
+    transport.responses.add(RunQueryResponse.getDefaultInstance());
+    page.set(RunQueryResponse.newBuilder()
+                 .setBatch(QueryResultBatch.newBuilder().addEntityResults(entityResult(1)))
+                 .build());
+    assertEquals(1L, scanned.get().longValue());
+
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(2)).build());
+    QueryResult result = client.execute(QueryBuilder.query("employee", 2L));
+    assertEquals(2L, result.getEntity().getKey().getId().longValue());
+    client.close();
+  }
+
+  @Test
+  public void testFailedScanDoesNotInstallBloomFilter() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    NegativeCache cache = NegativeCache.builder().build();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .negativeCache(cache)
+        .build());
+
+    transport.failures.add(new DatastoreException(400, "Bad request"));
+    try {
+      cache.populate(client, "employee", 100).get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+    }
+
+    // without a filter every key is looked up
+    client.execute(QueryBuilder.query("employee", 2L));
+    assertEquals(ImmutableList.of(keyPb(2)), ((LookupRequest) transport.sent.get(1)).getKeysList());
+    assertEquals(0, cache.getHits());
+    client.close();
+  }
+
+  @Test
+  public void testStaleEntityIsServedWhenLookupFails() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .entityCache(EntityCache.builder().ttl(1).staleIfError(60000).build())
+        .build());
+
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(1)).build());
+    client.execute(QueryBuilder.query("employee", 1L));
+    Thread.sleep(5);
+
+    transport.failures.add(new DatastoreException(503, "Unavailable"));
+    QueryResult result = client.execute(QueryBuilder.query("employee", 1L));
+    assertEquals(1L, result.getEntity().getKey().getId().longValue());
+    assertEquals(2, transport.sent.size());
+
+    // client errors are not masked
+    transport.failures.add(new DatastoreException(403, "Forbidden"));
+    try {
+      client.execute(QueryBuilder.query("employee", 1L));
+      fail("Expected exception");
+    } catch (final DatastoreException e) {
+      assertEquals(403, e.getStatusCode().intValue());
+    }
+    client.close();
+  }
+
+  @Test
+  public void testStaleEntityIsServedWhileRefreshed() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .entityCache(EntityCache.builder().ttl(1).staleWhileRevalidate(60000).build())
+        .build());
+
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(1)).build());
+    client.execute(QueryBuilder.query("employee", 1L));
+    Thread.sleep(5);
+
+    transport.pending = SettableFuture.create();
+    QueryResult result = client.execute(QueryBuilder.query("employee", 1L));
+    assertEquals(1L, result.getEntity().getKey().getId().longValue());
+    assertEquals(2, transport.sent.size());
+    assertEquals(ImmutableList.of(keyPb(1)), ((LookupRequest) transport.sent.get(1)).getKeysList());
+
+    // not refreshed again while the refresh is in flight
+    client.execute(QueryBuilder.query("employee", 1L));
+    assertEquals(2, transport.sent.size());
+    transport.pending.cancel(false);
+    client.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRefreshRacingUnrelatedWriteIsCached() throws Exception {
+    FakeTransport transport = new FakeTransport();
+    EntityCache cache = EntityCache.builder().ttl(60000).refreshAhead(60000).build();
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .entityCache(cache)
+        .build());
+
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(1)).build());
+    client.execute(QueryBuilder.query("employee", 1L));
+
+    transport.pending = SettableFuture.create();
+    client.execute(QueryBuilder.query("employee", 1L));
+    SettableFuture<LookupResponse> refresh = (SettableFuture<LookupResponse>) transport.pending;
+    transport.responses.add(CommitResponse.getDefaultInstance());
+    client.execute(QueryBuilder.delete("employee", 2L));
+
+    // the refresh read its entity while another entity was being written
+    refresh.set(LookupResponse.newBuilder()
+                    .addFound(EntityResult.newBuilder().setEntity(entityResult(1).getEntity().toBuilder()
+                        .putProperties("name", com.google.datastore.v1.Value.newBuilder().setStringValue("refreshed").build())))
+                    .build());
+    Entity cached = cache.get(keyPb(1));
+    for (int i = 0; i < 100 && cached != null && cached.getString("name") == null; i++) {
+      Thread.sleep(10);
+      cached = cache.get(keyPb(1));
+    }
+    assertEquals("refreshed", cached == null ? null : cached.getString("name"));
+    client.close();
+  }
+
+  @Test
+  public void testCacheIsRestoredFromSnapshotAndRevalidated() throws Exception {
+    Path snapshot = Files.createTempDirectory("cache").resolve("snapshot");
+    FakeTransport transport = new FakeTransport();
+    transport.responses.add(LookupResponse.newBuilder().addFound(entityResult(1)).addFound(entityResult(2)).build());
+    DatastoreImpl client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> transport)
+        .entityCache(EntityCache.builder().snapshotFile(snapshot).build())
+        .build());
+    client.execute(ImmutableList.of(QueryBuilder.query("employee", 1L), QueryBuilder.query("employee", 2L)));
+    client.close();
+
+    // entity 2 has since been deleted
+    FakeTransport restarted = new FakeTransport();
+    restarted.responses.add(LookupResponse.newBuilder().addFound(entityResult(1)).addMissing(entityResult(2)).build());
+    EntityCache cache = EntityCache.builder().snapshotFile(snapshot).build();
+    client = new DatastoreImpl(DatastoreConfig.builder()
+        .transport(c -> restarted)
+        .entityCache(cache)
+        .build());
+
+    assertEquals(1, restarted.sent.size());
+    assertEquals(2, ((LookupRequest) restarted.sent.get(0)).getKeysCount());
+    assertEquals(1L, cache.get(keyPb(1)).getKey().getId().longValue());
+    assertNull(cache.get(keyPb(2)));
+    client.close();
   }
 }
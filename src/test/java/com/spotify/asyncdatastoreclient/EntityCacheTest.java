@@ -0,0 +1,192 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.datastore.v1.PartitionId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EntityCacheTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static com.google.datastore.v1.Key keyPb(String kind, long id) {
+    return com.google.datastore.v1.Key.newBuilder()
+        .addPath(com.google.datastore.v1.Key.PathElement.newBuilder().setKind(kind).setId(id))
+        .build();
+  }
+
+  private static Entity entity(com.google.datastore.v1.Key key) {
+    return Entity.builder(com.google.datastore.v1.Entity.newBuilder().setKey(key).build()).build();
+  }
+
+  @Test
+  public void testEntityIsCachedByPathAndNamespace() throws Exception {
+    EntityCache cache = EntityCache.builder().build();
+    com.google.datastore.v1.Key key = keyPb("employee", 1);
+    // keys returned by the server have their project filled in
+    Entity entity = entity(key.toBuilder().setPartitionId(PartitionId.newBuilder().setProjectId("test")).build());
+
+    cache.putAll(ImmutableList.of(entity), cache.generation());
+
+    assertSame(entity, cache.get(key));
+    assertNull(cache.get(key.toBuilder().setPartitionId(PartitionId.newBuilder().setNamespaceId("other")).build()));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testKindWithoutTtlIsNotCached() throws Exception {
+    EntityCache cache = EntityCache.builder().ttl("session", 0).build();
+
+    cache.putAll(ImmutableList.of(entity(keyPb("session", 1)), entity(keyPb("employee", 1))), cache.generation());
+
+    assertNull(cache.get(keyPb("session", 1)));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testExpiredEntityIsNotReturned() throws Exception {
+    EntityCache cache = EntityCache.builder().ttl(1).build();
+
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), cache.generation());
+    Thread.sleep(5);
+
+    assertNull(cache.get(keyPb("employee", 1)));
+    assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void testStaleEntityIsServedAndRefreshedOnce() throws Exception {
+    EntityCache cache = EntityCache.builder().ttl(1).staleWhileRevalidate(60000).build();
+
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), cache.generation());
+    Thread.sleep(5);
+
+    EntityCache.Read read = cache.read(ImmutableList.of(keyPb("employee", 1)));
+    assertEquals(1, read.getHits().size());
+    assertEquals(ImmutableList.of(keyPb("employee", 1)), read.getRefresh());
+    // already being refreshed
+    assertTrue(cache.read(ImmutableList.of(keyPb("employee", 1))).getRefresh().isEmpty());
+
+    cache.refreshed(ImmutableList.of(keyPb("employee", 1)));
+    assertEquals(1, cache.read(ImmutableList.of(keyPb("employee", 1))).getRefresh().size());
+  }
+
+  @Test
+  public void testEntityIsRefreshedAheadOfExpiry() throws Exception {
+    EntityCache cache = EntityCache.builder().ttl(60000).refreshAhead(30000).build();
+
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), cache.generation());
+    assertTrue(cache.read(ImmutableList.of(keyPb("employee", 1))).getRefresh().isEmpty());
+
+    cache = EntityCache.builder().ttl(60000).refreshAhead(60000).build();
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), cache.generation());
+    EntityCache.Read read = cache.read(ImmutableList.of(keyPb("employee", 1)));
+    assertEquals(1, read.getHits().size());
+    assertEquals(1, read.getRefresh().size());
+  }
+
+  @Test
+  public void testExpiredEntityIsKeptAsFallback() throws Exception {
+    EntityCache cache = EntityCache.builder().ttl(1).staleIfError(60000).build();
+
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), cache.generation());
+    Thread.sleep(5);
+
+    EntityCache.Read read = cache.read(ImmutableList.of(keyPb("employee", 1)));
+    assertTrue(read.getHits().isEmpty());
+    assertEquals(ImmutableList.of(keyPb("employee", 1)), read.getMisses());
+    assertTrue(read.getFallbacks().containsKey(keyPb("employee", 1)));
+  }
+
+  @Test
+  public void testReadRacingWriteIsNotCached() throws Exception {
+    EntityCache cache = EntityCache.builder().build();
+    long generation = cache.generation();
+
+    cache.invalidate(ImmutableList.of(keyPb("employee", 1)));
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), generation);
+
+    assertNull(cache.get(keyPb("employee", 1)));
+  }
+
+  @Test
+  public void testReadRacingWriteToOtherKeyIsCached() throws Exception {
+    EntityCache cache = EntityCache.builder().build();
+    Entity entity = entity(keyPb("employee", 1));
+    long generation = cache.generation();
+
+    cache.invalidate(ImmutableList.of(keyPb("employee", 2)));
+    cache.putAll(ImmutableList.of(entity, entity(keyPb("employee", 2))), generation);
+
+    assertSame(entity, cache.get(keyPb("employee", 1)));
+    assertNull(cache.get(keyPb("employee", 2)));
+  }
+
+  @Test
+  public void testReadRacingInvalidateAllIsNotCached() throws Exception {
+    EntityCache cache = EntityCache.builder().build();
+    long generation = cache.generation();
+
+    cache.invalidateAll();
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), generation);
+
+    assertNull(cache.get(keyPb("employee", 1)));
+  }
+
+  @Test
+  public void testCacheIsBounded() throws Exception {
+    EntityCache cache = EntityCache.builder().maxEntries(10).build();
+
+    for (int i = 0; i < 100; i++) {
+      cache.putAll(ImmutableList.of(entity(keyPb("employee", i))), cache.generation());
+    }
+
+    assertEquals(10, cache.size());
+    assertEquals(90, cache.getEvictions());
+  }
+
+  @Test
+  public void testEntityEvictedFromHeapIsReadOffHeap() throws Exception {
+    EntityCache cache = EntityCache.builder().maxEntries(10).offHeapBytes(1024 * 1024).build();
+
+    for (int i = 0; i < 100; i++) {
+      cache.putAll(ImmutableList.of(entity(keyPb("employee", i))), cache.generation());
+    }
+
+    assertEquals(10, cache.size());
+    assertEquals(entity(keyPb("employee", 0)).getKey(), cache.get(keyPb("employee", 0)).getKey());
+    assertEquals(1, cache.getOffHeapHits());
+    assertEquals(0, cache.getEvictions());
+    assertTrue(cache.getOffHeapUsedBytes() > 0);
+
+    cache.invalidate(ImmutableList.of(keyPb("employee", 1)));
+    assertNull(cache.get(keyPb("employee", 1)));
+  }
+
+  @Test
+  public void testSnapshotIsSavedOnceLastClientIsClosed() throws Exception {
+    Path snapshot = folder.getRoot().toPath().resolve("snapshot");
+    EntityCache cache = EntityCache.builder().snapshotFile(snapshot).build();
+    cache.putAll(ImmutableList.of(entity(keyPb("employee", 1))), cache.generation());
+
+    cache.attach();
+    cache.attach();
+    cache.detach();
+    assertFalse(Files.exists(snapshot));
+
+    cache.detach();
+    assertEquals(1, CacheSnapshot.read(snapshot).size());
+  }
+}
@@ -0,0 +1,86 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FanOutTest {
+
+  @Test
+  public void testResultsAreInOrder() throws Exception {
+    List<Supplier<ListenableFuture<Integer>>> requests = IntStream.range(0, 10000)
+        .<Supplier<ListenableFuture<Integer>>>mapToObj(i -> () -> Futures.immediateFuture(i))
+        .collect(Collectors.toList());
+
+    List<Integer> results = FanOut.start(requests, 4).get();
+
+    assertEquals(IntStream.range(0, 10000).boxed().collect(Collectors.toList()), results);
+  }
+
+  @Test
+  public void testRequestsInFlightAreLimited() throws Exception {
+    List<SettableFuture<Integer>> pending = new ArrayList<>();
+    List<Supplier<ListenableFuture<Integer>>> requests = IntStream.range(0, 5)
+        .<Supplier<ListenableFuture<Integer>>>mapToObj(i -> () -> {
+          SettableFuture<Integer> future = SettableFuture.create();
+          pending.add(future);
+          return future;
+        })
+        .collect(Collectors.toList());
+
+    ListenableFuture<List<Integer>> result = FanOut.start(requests, 2);
+
+    assertEquals(2, pending.size());
+    pending.get(1).set(1);
+    assertEquals(3, pending.size());
+    pending.get(0).set(0);
+    pending.get(2).set(2);
+    pending.get(3).set(3);
+    pending.get(4).set(4);
+    assertEquals(ImmutableList.of(0, 1, 2, 3, 4), result.get());
+  }
+
+  @Test
+  public void testFailureCancelsRequestsInFlight() throws Exception {
+    SettableFuture<Integer> slow = SettableFuture.create();
+    List<Supplier<ListenableFuture<Integer>>> requests = ImmutableList.of(
+        () -> slow,
+        () -> Futures.immediateFailedFuture(new DatastoreException(503, "Unavailable")),
+        () -> Futures.immediateFuture(3));
+
+    ListenableFuture<List<Integer>> result = FanOut.start(requests, 2);
+
+    try {
+      result.get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertEquals(503, ((DatastoreException) e.getCause()).getStatusCode().intValue());
+    }
+    assertTrue(slow.isCancelled());
+  }
+
+  @Test
+  public void testCancellationCancelsRequestsInFlight() throws Exception {
+    SettableFuture<Integer> slow = SettableFuture.create();
+    List<Supplier<ListenableFuture<Integer>>> requests = ImmutableList.of(() -> slow, () -> slow);
+
+    FanOut.start(requests, 1).cancel(true);
+
+    assertTrue(slow.isCancelled());
+    assertFalse(FanOut.start(ImmutableList.<Supplier<ListenableFuture<Integer>>>of(), 1).isCancelled());
+  }
+}
@@ -0,0 +1,116 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.datastore.v1.LookupRequest;
+import com.google.datastore.v1.LookupResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GrpcTransportTest {
+
+  private static final Metadata.Key<String> AUTHORIZATION =
+      Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+  private final AtomicReference<LookupRequest> received = new AtomicReference<>();
+  private final AtomicReference<String> authorization = new AtomicReference<>();
+  private final AtomicReference<Status> status = new AtomicReference<>(Status.OK);
+
+  private Server server;
+  private ManagedChannel channel;
+  private GrpcTransport transport;
+
+  @Before
+  public void before() throws Exception {
+    final MethodDescriptor<LookupRequest, LookupResponse> lookup =
+        MethodDescriptor.<LookupRequest, LookupResponse>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName("google.datastore.v1.Datastore/Lookup")
+            .setRequestMarshaller(new GrpcTransport.ProtoMarshaller<>(LookupRequest.parser()))
+            .setResponseMarshaller(new GrpcTransport.ProtoMarshaller<>(null))
+            .build();
+
+    final ServerServiceDefinition service = ServerServiceDefinition
+        .builder("google.datastore.v1.Datastore")
+        .addMethod(lookup, (ServerCall<LookupRequest, LookupResponse> call, Metadata headers) -> {
+          authorization.set(headers.get(AUTHORIZATION));
+          call.request(1);
+          return new ServerCall.Listener<LookupRequest>() {
+            @Override
+            public void onMessage(final LookupRequest request) {
+              received.set(request);
+            }
+
+            @Override
+            public void onHalfClose() {
+              if (status.get().isOk()) {
+                call.sendHeaders(new Metadata());
+                call.sendMessage(LookupResponse.getDefaultInstance());
+              }
+              call.close(status.get(), new Metadata());
+            }
+          };
+        })
+        .build();
+
+    server = InProcessServerBuilder.forName("datastore").addService(service).directExecutor().build().start();
+    channel = InProcessChannelBuilder.forName("datastore").directExecutor().build();
+    transport = new GrpcTransport(ImmutableList.of(channel),
+                                  DatastoreConfig.builder().project("test").build());
+  }
+
+  @After
+  public void after() throws Exception {
+    transport.close();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void testSendRequest() throws Exception {
+    final LookupResponse response = transport.send("lookup", LookupRequest.getDefaultInstance(),
+                                                   LookupResponse.parser(), new CallContext("access-token", Long.MAX_VALUE)).get();
+
+    assertEquals(LookupResponse.getDefaultInstance(), response);
+    assertEquals("test", received.get().getProjectId());
+    assertEquals("Bearer access-token", authorization.get());
+  }
+
+  @Test
+  public void testRequestWithoutTimeoutHasNoDeadline() throws Exception {
+    final GrpcTransport unlimited = new GrpcTransport(
+        ImmutableList.of(channel), DatastoreConfig.builder().project("test").requestTimeout(-1).build());
+
+    final LookupResponse response = unlimited.send("lookup", LookupRequest.getDefaultInstance(),
+                                                   LookupResponse.parser(), new CallContext(null, Long.MAX_VALUE)).get();
+
+    assertEquals(LookupResponse.getDefaultInstance(), response);
+  }
+
+  @Test
+  public void testFailedRequestHasStatusCode() throws Exception {
+    status.set(Status.ABORTED);
+    try {
+      transport.send("lookup", LookupRequest.getDefaultInstance(), LookupResponse.parser(), new CallContext(null, Long.MAX_VALUE)).get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+      assertEquals(409, ((DatastoreException) e.getCause()).getStatusCode().intValue());
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgedCallTest {
+
+  @Test
+  public void testSlowRequestIsHedged() throws Exception {
+    HedgingPolicy policy = HedgingPolicy.builder().initialDelay(1).budgetRatio(1).build();
+    SettableFuture<String> slow = SettableFuture.create();
+    AtomicInteger requests = new AtomicInteger();
+
+    ListenableFuture<String> result = HedgedCall.start(
+        () -> requests.getAndIncrement() == 0 ? slow : Futures.immediateFuture("hedge"),
+        policy, SharedScheduler.INSTANCE);
+
+    assertEquals("hedge", result.get(1, TimeUnit.SECONDS));
+    // the loser is cancelled by a listener that may still be running
+    for (int i = 0; i < 100 && !slow.isDone(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(slow.isCancelled());
+    assertEquals(1, policy.getHedges());
+    assertEquals(1, policy.getHedgeWins());
+  }
+
+  @Test
+  public void testFastRequestIsNotHedged() throws Exception {
+    HedgingPolicy policy = HedgingPolicy.builder().initialDelay(1).budgetRatio(1).build();
+
+    ListenableFuture<String> result = HedgedCall.start(
+        () -> Futures.immediateFuture("primary"), policy, SharedScheduler.INSTANCE);
+
+    assertEquals("primary", result.get(1, TimeUnit.SECONDS));
+    Thread.sleep(10);
+    assertEquals(0, policy.getHedges());
+  }
+
+  @Test
+  public void testHedgesAreLimitedByBudget() throws Exception {
+    HedgingPolicy policy = HedgingPolicy.builder().initialDelay(1).budgetRatio(0).build();
+    SettableFuture<String> slow = SettableFuture.create();
+
+    ListenableFuture<String> result = HedgedCall.start(() -> slow, policy, SharedScheduler.INSTANCE);
+
+    Thread.sleep(10);
+    slow.set("primary");
+    assertEquals("primary", result.get(1, TimeUnit.SECONDS));
+    assertEquals(0, policy.getHedges());
+  }
+
+  @Test
+  public void testFailsOnceAllRequestsFail() throws Exception {
+    HedgingPolicy policy = HedgingPolicy.builder().initialDelay(1).budgetRatio(1).build();
+    SettableFuture<String> slow = SettableFuture.create();
+    AtomicInteger requests = new AtomicInteger();
+
+    ListenableFuture<String> result = HedgedCall.start(
+        () -> requests.getAndIncrement() == 0
+              ? slow : Futures.immediateFailedFuture(new DatastoreException(503, "Unavailable")),
+        policy, SharedScheduler.INSTANCE);
+
+    Thread.sleep(10);
+    assertEquals(2, requests.get());
+    slow.setException(new DatastoreException(500, "Internal"));
+    try {
+      result.get(1, TimeUnit.SECONDS);
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertEquals(500, ((DatastoreException) e.getCause()).getStatusCode().intValue());
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.spotify.asyncdatastoreclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+  @Test
+  public void testBucketBounds() {
+    for (long value = 0; value < 100000; value++) {
+      final int bucket = Histogram.bucket(value);
+      assertTrue(value <= Histogram.upperBound(bucket));
+      assertTrue(bucket == 0 || value > Histogram.upperBound(bucket - 1));
+    }
+  }
+
+  @Test
+  public void testQuantiles() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500500, histogram.getSum());
+    assertEquals(1, histogram.getQuantile(0));
+    assertEquals(500, histogram.getQuantile(0.5), 500 * 0.125);
+    assertEquals(990, histogram.getQuantile(0.99), 990 * 0.125);
+    assertEquals(1000, histogram.getQuantile(1));
+  }
+
+  @Test
+  public void testEmptyHistogram() {
+    assertEquals(0, new Histogram().getQuantile(0.99));
+  }
+}
@@ -0,0 +1,320 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.protobuf.Int32Value;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.DefaultAsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpTransportTest {
+
+  private final AtomicInteger status = new AtomicInteger(200);
+  private final AtomicReference<String> path = new AtomicReference<>();
+
+  private HttpServer server;
+  private HttpTransport transport;
+
+  @Before
+  public void before() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      path.set(exchange.getRequestURI().getPath());
+      final Int32Value request = Int32Value.parseFrom(exchange.getRequestBody());
+      final byte[] response = status.get() == 200
+                              ? Int32Value.newBuilder().setValue(request.getValue() + 1).build().toByteArray()
+                              : "Unavailable".getBytes("UTF-8");
+      if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+          gzip.write(response);
+        }
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(status.get(), compressed.size());
+        try (OutputStream body = exchange.getResponseBody()) {
+          compressed.writeTo(body);
+        }
+      } else {
+        exchange.sendResponseHeaders(status.get(), response.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+          body.write(response);
+        }
+      }
+    });
+    server.start();
+
+    transport = new HttpTransport(DatastoreConfig.builder()
+        .host("http://localhost:" + server.getAddress().getPort())
+        .project("test")
+        .build());
+  }
+
+  @After
+  public void after() throws Exception {
+    transport.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void testSendRequest() throws Exception {
+    Int32Value response = transport.send("lookup", Int32Value.newBuilder().setValue(123).build(),
+                                         Int32Value.parser(), new CallContext("access-token", Long.MAX_VALUE)).get();
+
+    assertEquals(124, response.getValue());
+    assertEquals("/v1/projects/test:lookup", path.get());
+  }
+
+  @Test
+  public void testLargeResponseIsDecodedOnExecutor() throws Exception {
+    AtomicInteger decodes = new AtomicInteger();
+    DatastoreConfig config = DatastoreConfig.builder()
+        .host("http://localhost:" + server.getAddress().getPort())
+        .project("test")
+        .decodeExecutor(task -> {
+          decodes.incrementAndGet();
+          task.run();
+        })
+        .inlineDecodeThreshold(0)
+        .build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      Int32Value response = transport.send("lookup", Int32Value.newBuilder().setValue(123).build(),
+                                           Int32Value.parser(), new CallContext(null, Long.MAX_VALUE)).get();
+
+      assertEquals(124, response.getValue());
+      assertEquals(1, decodes.get());
+    }
+  }
+
+  @Test
+  public void testSmallResponseIsDecodedInline() throws Exception {
+    AtomicInteger decodes = new AtomicInteger();
+    DatastoreConfig config = DatastoreConfig.builder()
+        .host("http://localhost:" + server.getAddress().getPort())
+        .project("test")
+        .decodeExecutor(task -> {
+          decodes.incrementAndGet();
+          task.run();
+        })
+        .build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      transport.send("lookup", Int32Value.newBuilder().setValue(123).build(),
+                     Int32Value.parser(), new CallContext(null, Long.MAX_VALUE)).get();
+
+      assertEquals(0, decodes.get());
+    }
+  }
+
+  @Test
+  public void testFailedRequestHasStatusCode() throws Exception {
+    status.set(503);
+    try {
+      transport.send("lookup", Int32Value.newBuilder().setValue(123).build(),
+                     Int32Value.parser(), new CallContext("access-token", Long.MAX_VALUE)).get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+      assertEquals(503, ((DatastoreException) e.getCause()).getStatusCode().intValue());
+      assertEquals("Unavailable", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testRequestIsMadeWithAccessToken() throws Exception {
+    DatastoreConfig config = DatastoreConfig.builder().project("test").build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      ByteBuf body = HttpTransport.serialize(Int32Value.newBuilder().setValue(123).build(), ByteBufAllocator.DEFAULT);
+      Request request = transport.prepareRequest("lookup", body, new CallContext("access-token", Long.MAX_VALUE)).build();
+
+      assertEquals("https://datastore.googleapis.com/v1/projects/test:lookup", request.getUrl());
+      assertEquals("Bearer access-token", request.getHeaders().get("Authorization"));
+      body.release();
+    }
+  }
+
+  @Test
+  public void testRequestWithoutAccessToken() throws Exception {
+    DatastoreConfig config = DatastoreConfig.builder().project("test").build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      ByteBuf body = HttpTransport.serialize(Int32Value.newBuilder().setValue(123).build(), ByteBufAllocator.DEFAULT);
+      Request request = transport.prepareRequest("lookup", body, new CallContext(null, Long.MAX_VALUE)).build();
+
+      assertFalse(request.getHeaders().contains("Authorization"));
+      body.release();
+    }
+  }
+
+  @Test
+  public void testRequestTimeoutIsLimitedByDeadline() throws Exception {
+    DatastoreConfig config = DatastoreConfig.builder().project("test").requestTimeout(5000).build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      ByteBuf body = HttpTransport.serialize(Int32Value.newBuilder().setValue(123).build(), ByteBufAllocator.DEFAULT);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+      Request request = transport.prepareRequest("lookup", body, new CallContext(null, deadline)).build();
+
+      assertTrue(request.getRequestTimeout() <= 100);
+      body.release();
+    }
+  }
+
+  @Test
+  public void testDeadlineAppliesWithoutRequestTimeout() throws Exception {
+    DatastoreConfig config = DatastoreConfig.builder().project("test").requestTimeout(-1).build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      ByteBuf body = HttpTransport.serialize(Int32Value.newBuilder().setValue(123).build(), ByteBufAllocator.DEFAULT);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5000);
+      Request request = transport.prepareRequest("lookup", body, new CallContext(null, deadline)).build();
+
+      assertTrue(request.getRequestTimeout() > 1000);
+      assertTrue(request.getRequestTimeout() <= 5000);
+      body.release();
+    }
+  }
+
+  @Test
+  public void testExpiredRequestIsNotSent() throws Exception {
+    try {
+      transport.send("lookup", Int32Value.newBuilder().setValue(123).build(),
+                     Int32Value.parser(), new CallContext(null, System.nanoTime() - 1)).get();
+      fail("Expected exception");
+    } catch (final ExecutionException e) {
+      assertEquals(504, ((DatastoreException) e.getCause()).getStatusCode().intValue());
+    }
+    assertEquals(null, path.get());
+  }
+
+  @Test
+  public void testSerializeRequest() throws Exception {
+    Int32Value message = Int32Value.newBuilder().setValue(123).build();
+    ByteBuf body = HttpTransport.serialize(message, ByteBufAllocator.DEFAULT);
+
+    assertTrue(body.isDirect());
+    assertEquals(message.getSerializedSize(), body.readableBytes());
+    assertEquals(message, Int32Value.parseFrom(new ByteBufInputStream(body)));
+    body.release();
+  }
+
+  @Test
+  public void testRequestBodyIsReleasedFromEventLoop() throws Exception {
+    ByteBuf body = HttpTransport.serialize(Int32Value.newBuilder().setValue(123).build(), ByteBufAllocator.DEFAULT);
+    HttpResponseHandler<Int32Value> handler = new HttpResponseHandler<>(
+        "lookup", Int32Value.parser(), ByteBufAllocator.DEFAULT, DatastoreMetrics.noop(), null,
+        Runnable::run, 0, body);
+    EmbeddedChannel connection = new EmbeddedChannel();
+    handler.onTcpConnectSuccess(null, connection);
+
+    // the write may still be queued when the request is cancelled
+    handler.onThrowable(new CancellationException());
+    handler.onThrowable(new CancellationException());
+    assertEquals(1, body.refCnt());
+
+    connection.runPendingTasks();
+    assertEquals(0, body.refCnt());
+    connection.finishAndReleaseAll();
+  }
+
+  @Test
+  public void testSharedHttpClientIsNotClosed() throws Exception {
+    try (AsyncHttpClient client = new DefaultAsyncHttpClient()) {
+      HttpTransport shared = new HttpTransport(DatastoreConfig.builder()
+          .host("http://localhost:" + server.getAddress().getPort())
+          .project("test")
+          .httpClient(client)
+          .build());
+
+      Int32Value response = shared.send("lookup", Int32Value.newBuilder().setValue(1).build(),
+                                        Int32Value.parser(), new CallContext(null, Long.MAX_VALUE)).get();
+      shared.close();
+
+      assertEquals(2, response.getValue());
+      assertFalse(client.isClosed());
+    }
+  }
+
+  @Test
+  public void testResponseBytesAreMeasured() throws Exception {
+    DatastoreStats stats = new DatastoreStats();
+    DatastoreConfig config = DatastoreConfig.builder()
+        .host("http://localhost:" + server.getAddress().getPort())
+        .project("test")
+        .metrics(stats)
+        .build();
+
+    try (HttpTransport transport = new HttpTransport(config)) {
+      Int32Value response = transport.send("lookup", Int32Value.newBuilder().setValue(123).build(),
+                                           Int32Value.parser(), new CallContext(null, Long.MAX_VALUE)).get();
+
+      DatastoreStats.MethodStats lookup = stats.getMethod("lookup");
+      assertEquals(response.getSerializedSize(), lookup.getResponseBytes().getMax());
+      // the compressed body and headers as received
+      assertEquals(1, lookup.getResponseWireBytes().getCount());
+      assertTrue(lookup.getResponseWireBytes().getMax() > response.getSerializedSize());
+    }
+  }
+
+  @Test
+  public void testPhasesAreReportedToListener() throws Exception {
+    List<String> phases = new CopyOnWriteArrayList<>();
+    DatastoreListener listener = new DatastoreListener() {
+      @Override
+      public void connectionAcquired(String method, long nanos) {
+        phases.add("connectionAcquired");
+      }
+
+      @Override
+      public void requestWritten(String method, long nanos) {
+        phases.add("requestWritten");
+      }
+
+      @Override
+      public void firstByte(String method, long nanos) {
+        phases.add("firstByte");
+      }
+
+      @Override
+      public void bodyComplete(String method, long nanos) {
+        phases.add("bodyComplete");
+      }
+
+      @Override
+      public void decoded(String method, long nanos) {
+        phases.add("decoded");
+      }
+    };
+
+    transport.send("lookup", Int32Value.newBuilder().setValue(123).build(), Int32Value.parser(),
+                   new CallContext(null, Long.MAX_VALUE, System.nanoTime(), listener)).get();
+
+    assertEquals(Arrays.asList("connectionAcquired", "requestWritten", "firstByte", "bodyComplete", "decoded"),
+                 phases);
+  }
+}
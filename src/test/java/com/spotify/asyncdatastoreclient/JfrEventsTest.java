@@ -0,0 +1,65 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+public class JfrEventsTest {
+
+  private static final String VERSIONED = "META-INF/versions/11/";
+
+  /**
+   * Loads the Java 11 versions of the events classes, as a multi-release jar
+   * would, leaving every other class to its parent.
+   */
+  private static final class VersionedClassLoader extends ClassLoader {
+
+    private VersionedClassLoader(final ClassLoader parent) {
+      super(parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+      if (!name.startsWith(JfrEvents.class.getName())) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        final Class<?> loaded = findLoadedClass(name);
+        if (loaded != null) {
+          return loaded;
+        }
+        final String resource = VERSIONED + name.replace('.', '/') + ".class";
+        try (InputStream in = getParent().getResourceAsStream(resource)) {
+          if (in == null) {
+            throw new ClassNotFoundException(resource);
+          }
+          final byte[] bytes = ByteStreams.toByteArray(in);
+          return defineClass(name, bytes, 0, bytes.length);
+        } catch (final IOException e) {
+          throw new ClassNotFoundException(name, e);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testVersionedEventsAreLoadable() throws Exception {
+    assumeTrue(!System.getProperty("java.specification.version").startsWith("1."));
+    ClassLoader parent = JfrEventsTest.class.getClassLoader();
+    assertNotNull(parent.getResource(VERSIONED + JfrEvents.class.getName().replace('.', '/') + ".class"));
+
+    Class<?> events = Class.forName(JfrEvents.class.getName(), true, new VersionedClassLoader(parent));
+    Method callStarted = events.getDeclaredMethod("callStarted");
+    callStarted.setAccessible(true);
+
+    // no recording is running
+    assertNull(callStarted.invoke(null));
+  }
+}
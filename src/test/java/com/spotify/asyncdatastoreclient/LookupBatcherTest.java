@@ -0,0 +1,132 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.datastore.v1.EntityResult;
+import com.google.datastore.v1.LookupResponse;
+import com.google.datastore.v1.PartitionId;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LookupBatcherTest {
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final List<List<com.google.datastore.v1.Key>> sent = new CopyOnWriteArrayList<>();
+  private final SettableFuture<QueryResult> response = SettableFuture.create();
+
+  @After
+  public void after() {
+    scheduler.shutdownNow();
+  }
+
+  private LookupBatcher batcher(final long maxDelay, final int maxKeys) {
+    return new LookupBatcher(LookupBatching.builder().maxDelay(maxDelay).maxKeys(maxKeys).build(), 1000,
+                             keys -> {
+                               sent.add(keys);
+                               return response;
+                             }, scheduler);
+  }
+
+  private static com.google.datastore.v1.Key keyPb(long id) {
+    return com.google.datastore.v1.Key.newBuilder()
+        .addPath(com.google.datastore.v1.Key.PathElement.newBuilder().setKind("employee").setId(id))
+        .build();
+  }
+
+  private static QueryResult found(long... ids) {
+    LookupResponse.Builder response = LookupResponse.newBuilder();
+    for (long id : ids) {
+      response.addFound(EntityResult.newBuilder()
+          .setEntity(com.google.datastore.v1.Entity.newBuilder().setKey(keyPb(id))));
+    }
+    return QueryResult.build(response.build());
+  }
+
+  @Test
+  public void testBatchIsSentAfterDelay() throws Exception {
+    LookupBatcher batcher = batcher(10, 100);
+
+    ListenableFuture<QueryResult> first = batcher.lookup(ImmutableList.of(keyPb(1)));
+    ListenableFuture<QueryResult> second = batcher.lookup(ImmutableList.of(keyPb(2), keyPb(1)));
+    response.set(found(1, 2));
+
+    assertEquals(1L, first.get().getEntity().getKey().getId().longValue());
+    assertEquals(2, second.get().getAll().size());
+    assertEquals(2L, second.get().getAll().get(0).getKey().getId().longValue());
+    // keys wanted by several callers are looked up once
+    assertEquals(ImmutableList.of(ImmutableList.of(keyPb(1), keyPb(2))), sent);
+  }
+
+  @Test
+  public void testKeysInDifferentNamespacesAreNotMerged() throws Exception {
+    LookupBatcher batcher = batcher(10, 100);
+    com.google.datastore.v1.Key first = keyPb(1).toBuilder()
+        .setPartitionId(PartitionId.newBuilder().setNamespaceId("first")).build();
+    com.google.datastore.v1.Key second = keyPb(1).toBuilder()
+        .setPartitionId(PartitionId.newBuilder().setNamespaceId("second")).build();
+
+    ListenableFuture<QueryResult> firstResult = batcher.lookup(ImmutableList.of(first));
+    ListenableFuture<QueryResult> secondResult = batcher.lookup(ImmutableList.of(second));
+    // keys returned by the server have their project filled in
+    response.set(QueryResult.build(LookupResponse.newBuilder()
+        .addFound(EntityResult.newBuilder().setEntity(com.google.datastore.v1.Entity.newBuilder()
+            .setKey(second.toBuilder().setPartitionId(second.getPartitionId().toBuilder().setProjectId("test")))))
+        .addMissing(EntityResult.newBuilder().setEntity(com.google.datastore.v1.Entity.newBuilder()
+            .setKey(first.toBuilder().setPartitionId(first.getPartitionId().toBuilder().setProjectId("test")))))
+        .build()));
+
+    assertTrue(firstResult.get().getAll().isEmpty());
+    assertEquals(1, firstResult.get().getMissingKeys().size());
+    assertEquals("second", secondResult.get().getEntity().getKey().getNamespace());
+    assertEquals(ImmutableList.of(ImmutableList.of(first, second)), sent);
+  }
+
+  @Test
+  public void testFullBatchIsSentStraightAway() throws Exception {
+    LookupBatcher batcher = batcher(60000, 3);
+
+    assertTrue(batcher.accepts(2));
+    assertFalse(batcher.accepts(3));
+    batcher.lookup(ImmutableList.of(keyPb(1), keyPb(2)));
+    assertEquals(0, sent.size());
+    batcher.lookup(ImmutableList.of(keyPb(3), keyPb(4)));
+    assertEquals(ImmutableList.of(ImmutableList.of(keyPb(1), keyPb(2))), sent);
+
+    // a batch that is exactly full doesn't wait either
+    batcher.lookup(ImmutableList.of(keyPb(5)));
+    assertEquals(ImmutableList.of(ImmutableList.of(keyPb(1), keyPb(2)),
+                                  ImmutableList.of(keyPb(3), keyPb(4), keyPb(5))), sent);
+  }
+
+  @Test
+  public void testFailureFailsEveryCaller() throws Exception {
+    LookupBatcher batcher = batcher(0, 100);
+    DatastoreException failure = new DatastoreException(503, "Unavailable");
+
+    ListenableFuture<QueryResult> first = batcher.lookup(ImmutableList.of(keyPb(1)));
+    ListenableFuture<QueryResult> second = batcher.lookup(ImmutableList.of(keyPb(2)));
+    response.setException(failure);
+
+    for (ListenableFuture<QueryResult> result : ImmutableList.of(first, second)) {
+      try {
+        result.get();
+        fail("Expected exception");
+      } catch (final ExecutionException e) {
+        assertSame(failure, e.getCause());
+      }
+    }
+  }
+}
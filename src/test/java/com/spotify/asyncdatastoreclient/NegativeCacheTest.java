@@ -0,0 +1,62 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.collect.ImmutableList;
+import com.google.datastore.v1.PartitionId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NegativeCacheTest {
+
+  private static com.google.datastore.v1.Key keyPb(long id) {
+    return com.google.datastore.v1.Key.newBuilder()
+        .addPath(com.google.datastore.v1.Key.PathElement.newBuilder().setKind("settings").setId(id))
+        .build();
+  }
+
+  @Test
+  public void testMissingKeyIsRemembered() throws Exception {
+    NegativeCache cache = NegativeCache.builder().build();
+    // keys returned by the server have their project filled in
+    Key missing = Key.builder(keyPb(1).toBuilder()
+        .setPartitionId(PartitionId.newBuilder().setProjectId("test")).build()).build();
+
+    cache.putAll(ImmutableList.of(missing), cache.generation());
+
+    assertTrue(cache.isMissing(keyPb(1)));
+    assertFalse(cache.isMissing(keyPb(2)));
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void testCreatedKeyIsNotMissing() throws Exception {
+    NegativeCache cache = NegativeCache.builder().build();
+
+    cache.putAll(ImmutableList.of(Key.builder(keyPb(1)).build()), cache.generation());
+    cache.created(ImmutableList.of(keyPb(1)));
+
+    assertFalse(cache.isMissing(keyPb(1)));
+  }
+
+  @Test
+  public void testReadRacingCreateIsNotRemembered() throws Exception {
+    NegativeCache cache = NegativeCache.builder().build();
+    long generation = cache.generation();
+
+    cache.created(ImmutableList.of(keyPb(1)));
+    cache.putAll(ImmutableList.of(Key.builder(keyPb(1)).build()), generation);
+
+    assertFalse(cache.isMissing(keyPb(1)));
+  }
+
+  @Test
+  public void testMissingKeysAreNotRememberedWithoutTtl() throws Exception {
+    NegativeCache cache = NegativeCache.builder().ttl(0).build();
+
+    cache.putAll(ImmutableList.of(Key.builder(keyPb(1)).build()), cache.generation());
+
+    assertFalse(cache.isMissing(keyPb(1)));
+  }
+}
@@ -0,0 +1,100 @@
+package com.spotify.asyncdatastoreclient;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapStoreTest {
+
+  private static final long FOREVER = Long.MAX_VALUE;
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testValueIsStored() throws Exception {
+    OffHeapStore store = new OffHeapStore(1024 * 1024);
+
+    store.put(bytes("a"), bytes("first"), System.nanoTime() + 1000000000L);
+    store.put(bytes("b"), bytes("second"), FOREVER);
+
+    assertArrayEquals(bytes("first"), store.get(bytes("a")).getBytes());
+    assertArrayEquals(bytes("second"), store.get(bytes("b")).getBytes());
+    assertNull(store.get(bytes("c")));
+  }
+
+  @Test
+  public void testValueIsReplacedAndRemoved() throws Exception {
+    OffHeapStore store = new OffHeapStore(1024 * 1024);
+
+    store.put(bytes("a"), bytes("first"), FOREVER);
+    store.put(bytes("a"), bytes("second"), FOREVER);
+    assertArrayEquals(bytes("second"), store.get(bytes("a")).getBytes());
+
+    store.remove(bytes("a"));
+    assertNull(store.get(bytes("a")));
+  }
+
+  @Test
+  public void testValueTooLargeReplacesPreviousValue() throws Exception {
+    OffHeapStore store = new OffHeapStore(1024 * 1024);
+
+    store.put(bytes("a"), bytes("first"), FOREVER);
+    store.put(bytes("a"), new byte[1024 * 1024], FOREVER);
+
+    assertNull(store.get(bytes("a")));
+  }
+
+  @Test
+  public void testExpiredValueIsNotReturned() throws Exception {
+    OffHeapStore store = new OffHeapStore(1024 * 1024);
+
+    store.put(bytes("a"), bytes("first"), System.nanoTime() - 1);
+
+    assertNull(store.get(bytes("a")));
+    assertEquals(1, store.evictions());
+  }
+
+  @Test
+  public void testOldestValuesAreDroppedWhenFull() throws Exception {
+    OffHeapStore store = new OffHeapStore(64 * 1024);
+    byte[] value = new byte[100];
+
+    for (int i = 0; i < 10000; i++) {
+      store.put(bytes("key" + i), value, FOREVER);
+    }
+
+    assertNull(store.get(bytes("key0")));
+    assertArrayEquals(value, store.get(bytes("key9999")).getBytes());
+    assertTrue(store.usedBytes() <= 64 * 1024);
+    assertTrue(store.evictions() > 0);
+  }
+
+  @Test
+  public void testManyValuesAreIndexed() throws Exception {
+    OffHeapStore store = new OffHeapStore(64L * 1024 * 1024);
+
+    for (int i = 0; i < 100000; i++) {
+      store.put(bytes("key" + i), bytes("value" + i), FOREVER);
+    }
+    for (int i = 0; i < 100000; i += 2) {
+      store.remove(bytes("key" + i));
+    }
+
+    for (int i = 0; i < 100000; i++) {
+      OffHeapStore.Value value = store.get(bytes("key" + i));
+      if (i % 2 == 0) {
+        assertNull(value);
+      } else {
+        assertArrayEquals(bytes("value" + i), value.getBytes());
+      }
+    }
+    assertEquals(0, store.evictions());
+  }
+}
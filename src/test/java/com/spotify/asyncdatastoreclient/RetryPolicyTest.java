@@ -0,0 +1,70 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.datastore.v1.CommitRequest;
+import com.google.datastore.v1.Entity;
+import com.google.datastore.v1.LookupRequest;
+import com.google.datastore.v1.Mutation;
+import org.junit.Test;
+
+import java.net.ConnectException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+  private static CommitRequest commit(final CommitRequest.Mode mode, final Mutation mutation) {
+    return CommitRequest.newBuilder().setMode(mode).addMutations(mutation).build();
+  }
+
+  @Test
+  public void testIdempotentRequests() {
+    RetryPolicy policy = RetryPolicy.builder().build();
+    Mutation upsert = Mutation.newBuilder().setUpsert(Entity.getDefaultInstance()).build();
+    Mutation insert = Mutation.newBuilder().setInsert(Entity.getDefaultInstance()).build();
+
+    assertTrue(policy.isIdempotent("lookup", LookupRequest.getDefaultInstance()));
+    assertTrue(policy.isIdempotent("commit", commit(CommitRequest.Mode.NON_TRANSACTIONAL, upsert)));
+    assertFalse(policy.isIdempotent("commit", commit(CommitRequest.Mode.NON_TRANSACTIONAL, insert)));
+    assertFalse(policy.isIdempotent("commit", commit(CommitRequest.Mode.TRANSACTIONAL, upsert)));
+  }
+
+  @Test
+  public void testRetryableFailures() {
+    RetryPolicy policy = RetryPolicy.builder().build();
+
+    assertTrue(policy.isRetryable(new DatastoreException(503, "Unavailable")));
+    assertTrue(policy.isRetryable(new DatastoreException(409, "Aborted")));
+    assertTrue(policy.isRetryable(new ConnectException()));
+    assertTrue(policy.isRetryable(new DatastoreException(new ConnectException())));
+    assertFalse(policy.isRetryable(new DatastoreException(400, "Bad request")));
+    assertFalse(policy.isRetryable(new IllegalStateException()));
+  }
+
+  @Test
+  public void testBackoffIsBounded() {
+    RetryPolicy policy = RetryPolicy.builder().initialBackoff(10).maxBackoff(100).build();
+
+    long backoff = 0;
+    for (int i = 0; i < 100; i++) {
+      backoff = policy.nextBackoff(backoff);
+      assertTrue(backoff >= 10 && backoff <= 100);
+    }
+  }
+
+  @Test
+  public void testBudgetLimitsRetries() {
+    RetryPolicy policy = RetryPolicy.builder().budget(10, 1).build();
+
+    int allowed = 0;
+    while (policy.spend()) {
+      allowed++;
+    }
+    assertEquals(4, allowed);
+
+    policy.refund();
+    policy.refund();
+    assertTrue(policy.spend());
+  }
+}
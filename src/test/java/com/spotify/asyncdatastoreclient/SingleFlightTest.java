@@ -0,0 +1,74 @@
+package com.spotify.asyncdatastoreclient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+  private final SingleFlight<String, Integer> flights = new SingleFlight<>();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger shared = new AtomicInteger();
+
+  private ListenableFuture<Integer> call(String key, SettableFuture<Integer> response) {
+    return flights.call(key, () -> {
+      requests.incrementAndGet();
+      return response;
+    }, shared::incrementAndGet);
+  }
+
+  @Test
+  public void testIdenticalRequestsAreShared() throws Exception {
+    SettableFuture<Integer> response = SettableFuture.create();
+
+    ListenableFuture<Integer> first = call("a", response);
+    ListenableFuture<Integer> second = call("a", SettableFuture.create());
+    response.set(1);
+
+    assertEquals(1, first.get().intValue());
+    assertEquals(1, second.get().intValue());
+    assertEquals(1, requests.get());
+    assertEquals(1, shared.get());
+    assertEquals(0, flights.size());
+  }
+
+  @Test
+  public void testDifferentRequestsAreNotShared() throws Exception {
+    call("a", SettableFuture.create());
+    call("b", SettableFuture.create());
+
+    assertEquals(2, requests.get());
+    assertEquals(0, shared.get());
+  }
+
+  @Test
+  public void testCompletedRequestIsNotShared() throws Exception {
+    call("a", SettableFuture.create()).cancel(true);
+    SettableFuture<Integer> response = SettableFuture.create();
+    response.set(1);
+    call("a", response);
+    call("a", SettableFuture.create());
+
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testRequestIsCancelledWhenEveryCallerHasCancelled() throws Exception {
+    SettableFuture<Integer> response = SettableFuture.create();
+
+    ListenableFuture<Integer> first = call("a", response);
+    ListenableFuture<Integer> second = call("a", SettableFuture.create());
+    first.cancel(true);
+    assertFalse(response.isCancelled());
+    second.cancel(true);
+
+    assertTrue(response.isCancelled());
+    assertEquals(0, flights.size());
+  }
+}